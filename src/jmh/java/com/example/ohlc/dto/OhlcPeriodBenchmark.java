@@ -0,0 +1,44 @@
+package com.example.ohlc.dto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** bucketing of a quote timestamp, which replaced getQuotePeriodMillis */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OhlcPeriodBenchmark {
+    @Param({"M1", "H1", "D1", "W1"})
+    private OhlcPeriod period;
+    private long timestamp = 1_646_128_830_000L;
+
+    @Benchmark
+    public long getStartPeriod() {
+        return period.getStartPeriod(timestamp++);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long getStartPeriodContended() {
+        return period.getStartPeriod(timestamp++);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return period.contains(1_646_128_800_000L, timestamp++);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.TaskLanes;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.dto.Quote;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcStorage;
+
+import java.lang.reflect.Field;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/** service wiring shared by the benchmarks, bars are stored nowhere and the time moves only on demand */
+final class BenchmarkSupport {
+    static final OhlcPeriod[] PERIODS = {OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1};
+    /** 2022-03-01 10:00:30 UTC, in the middle of every bar */
+    static final long START_MILLIS = 1_646_128_830_000L;
+
+    private BenchmarkSupport() {
+    }
+
+    static OhlcServiceImpl createService(OhlcStorage storage, QuoteShardExecutor executor, int instruments, ManualClock clock) {
+        var service = new OhlcServiceImpl(storage, executor, clock,
+                new RecentBarCache(300, Math.max(instruments * PERIODS.length, 1), 600_000, clock), new TaskLanes());
+        setField(service, "periods", PERIODS.clone());
+        setField(service, "expectedInstruments", instruments);
+        service.start();
+        return service;
+    }
+
+    static Quote[] createQuotes(int instruments, int count, long utcTimestamp) {
+        var quotes = new Quote[count];
+        for (int i = 0; i < count; i++) {
+            quotes[i] = new BenchmarkQuote(i % instruments, 100 + (i % 100) / 100.0, utcTimestamp);
+        }
+        return quotes;
+    }
+
+    static OhlcStorage noStorage() {
+        return new OhlcStorage() {
+            @Override
+            public void store(Ohlc ohlc) {
+            }
+
+            @Override
+            public void amend(Ohlc ohlc) {
+            }
+
+            @Override
+            public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars) {
+            }
+
+            @Override
+            public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+                return new ArrayList<>();
+            }
+        };
+    }
+
+    static void setField(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class ManualClock extends Clock {
+        private volatile long millis;
+
+        ManualClock(long millis) {
+            this.millis = millis;
+        }
+
+        void setMillis(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    static final class BenchmarkQuote implements Quote {
+        private final long instrumentId;
+        private final double price;
+        private final long utcTimestamp;
+
+        BenchmarkQuote(long instrumentId, double price, long utcTimestamp) {
+            this.instrumentId = instrumentId;
+            this.price = price;
+            this.utcTimestamp = utcTimestamp;
+        }
+
+        @Override
+        public double getPrice() {
+            return price;
+        }
+
+        @Override
+        public long getInstrumentId() {
+            return instrumentId;
+        }
+
+        @Override
+        public long getUtcTimestamp() {
+            return utcTimestamp;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.VirtualThreads;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of concurrent getHistoricalAndCurrent requests whose storage blocks like a database query.
+ * PLATFORM serves them with a pool as large as the default Tomcat pool, VIRTUAL with a virtual thread each,
+ * like the virtual profile does. Queries hold one of as many connections as the virtual profile pools,
+ * so neither mode can run more queries at once than the database would serve. VIRTUAL needs Java 21, run with -PvirtualThreads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingReadBenchmark {
+    private static final int PLATFORM_THREADS = 200;
+    /** spring.datasource.hikari.maximum-pool-size of the virtual profile */
+    private static final int CONNECTIONS = 20;
+
+    public enum Threads {
+        PLATFORM, VIRTUAL
+    }
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private Threads threads;
+    @Param({"200", "2000"})
+    private int concurrency;
+    @Param({"5", "50"})
+    private long queryMillis;
+    private QuoteShardExecutor executor;
+    private OhlcServiceImpl service;
+    private ExecutorService requests;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var clock = new BenchmarkSupport.ManualClock(BenchmarkSupport.START_MILLIS);
+        executor = new QuoteShardExecutor(4, 1 << 16);
+        service = BenchmarkSupport.createService(new BlockingStorage(queryMillis), executor, concurrency, clock);
+        for (int i = 0; i < concurrency; i++) {
+            service.onQuote(new BenchmarkSupport.BenchmarkQuote(i, 1, BenchmarkSupport.START_MILLIS));
+        }
+        executor.awaitProcessed();
+        requests = threads == Threads.VIRTUAL
+                ? VirtualThreads.newThreadPerTaskExecutor("request-")
+                : Executors.newFixedThreadPool(PLATFORM_THREADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        requests.shutdownNow();
+        executor.shutdown();
+    }
+
+    /** time until every request of the burst is answered */
+    @Benchmark
+    public int burst() throws InterruptedException, ExecutionException {
+        List<Future<List<Ohlc>>> answers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            long instrumentId = i;
+            answers.add(requests.submit(() -> service.getHistoricalAndCurrent(instrumentId, OhlcPeriod.M1)));
+        }
+        int bars = 0;
+        for (Future<List<Ohlc>> answer : answers) {
+            bars += answer.get().size();
+        }
+        return bars;
+    }
+
+    private static final class BlockingStorage implements OhlcStorage {
+        private final Semaphore connections = new Semaphore(CONNECTIONS);
+        private final long queryMillis;
+
+        private BlockingStorage(long queryMillis) {
+            this.queryMillis = queryMillis;
+        }
+
+        @Override
+        public void store(Ohlc ohlc) {
+        }
+
+        @Override
+        public void amend(Ohlc ohlc) {
+        }
+
+        @Override
+        public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
+            block();
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+            block();
+            return new ArrayList<>();
+        }
+
+        /** waits for a free connection like the pool does, then holds it for the query */
+        private void block() {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                Thread.sleep(queryMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                connections.release();
+            }
+        }
+    }
+}
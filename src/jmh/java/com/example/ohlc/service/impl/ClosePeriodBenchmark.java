@@ -0,0 +1,72 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.dto.Quote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closing every open M1 bar at the minute end against the count of instruments.
+ * With more shards the bars are closed by several threads in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+public class ClosePeriodBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int instruments;
+    @Param({"1", "4"})
+    private int shards;
+    private BenchmarkSupport.ManualClock clock;
+    private QuoteShardExecutor executor;
+    private OhlcServiceImpl service;
+    private long minute;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clock = new BenchmarkSupport.ManualClock(BenchmarkSupport.START_MILLIS);
+        executor = new QuoteShardExecutor(shards, 1 << 18);
+        service = BenchmarkSupport.createService(BenchmarkSupport.noStorage(), executor, instruments, clock);
+        minute = OhlcPeriod.M1.getStartPeriod(BenchmarkSupport.START_MILLIS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /** opens a bar of the next minute for every instrument, the clock stays inside that minute */
+    @Setup(Level.Invocation)
+    public void openBars() {
+        minute += OhlcPeriod.M1.getMillis();
+        clock.setMillis(minute);
+        Quote[] quotes = BenchmarkSupport.createQuotes(instruments, instruments, minute);
+        for (Quote quote : quotes) {
+            service.onQuote(quote);
+        }
+        executor.awaitProcessed();
+        clock.setMillis(minute + OhlcPeriod.M1.getMillis());
+    }
+
+    @Benchmark
+    public void closePeriod() {
+        service.closeQuotePeriod().join();
+    }
+}
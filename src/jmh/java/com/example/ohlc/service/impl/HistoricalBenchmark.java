@@ -0,0 +1,125 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getHistoricalAndCurrent latency of the service itself: the storage returns prepared bars,
+ * so the database is not measured. The ranged variant is answered by the recent bar cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoricalBenchmark {
+    @Param({"300"})
+    private int bars;
+    private QuoteShardExecutor executor;
+    private OhlcServiceImpl service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var clock = new BenchmarkSupport.ManualClock(BenchmarkSupport.START_MILLIS);
+        List<Ohlc> stored = new ArrayList<>();
+        long start = OhlcPeriod.M1.getStartPeriod(BenchmarkSupport.START_MILLIS);
+        for (int i = bars; i > 0; i--) {
+            stored.add(Ohlc.builder()
+                    .instrumentId(1)
+                    .period(OhlcPeriod.M1)
+                    .startPeriod(start - i * OhlcPeriod.M1.getMillis())
+                    .openPrice(1).highPrice(2).lowPrice(0.5).closePrice(1.5)
+                    .build());
+        }
+        OhlcStorage storage = new PreparedStorage(stored);
+        executor = new QuoteShardExecutor(4, 1 << 16);
+        service = BenchmarkSupport.createService(storage, executor, 1, clock);
+        // closes every stored bar again through the service, which fills the recent bar cache
+        for (Ohlc ohlc : stored) {
+            clock.setMillis(ohlc.getStartPeriod());
+            service.onQuote(new BenchmarkSupport.BenchmarkQuote(1, ohlc.getClosePrice(), ohlc.getStartPeriod()));
+        }
+        clock.setMillis(BenchmarkSupport.START_MILLIS);
+        service.onQuote(new BenchmarkSupport.BenchmarkQuote(1, 1, BenchmarkSupport.START_MILLIS));
+        executor.awaitProcessed();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public List<Ohlc> getHistoricalAndCurrent() {
+        return service.getHistoricalAndCurrent(1, OhlcPeriod.M1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Ohlc> getHistoricalAndCurrentContended() {
+        return service.getHistoricalAndCurrent(1, OhlcPeriod.M1);
+    }
+
+    @Benchmark
+    public List<Ohlc> getRecentAndCurrent() {
+        return service.getHistoricalAndCurrent(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, bars);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Ohlc> getRecentAndCurrentContended() {
+        return service.getHistoricalAndCurrent(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, bars);
+    }
+
+    private static final class PreparedStorage implements OhlcStorage {
+        private final List<Ohlc> stored;
+
+        private PreparedStorage(List<Ohlc> stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public void store(Ohlc ohlc) {
+        }
+
+        @Override
+        public void amend(Ohlc ohlc) {
+        }
+
+        @Override
+        public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
+            return new ArrayList<>(stored);
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+            return new ArrayList<>(stored.subList(Math.max(0, stored.size() - limit), stored.size()));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.dto.Quote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quote ingestion throughput, all quotes update the current bars without closing them.
+ * saveQuoteRawData is the aggregation alone on the calling thread,
+ * onQuote and onQuotes go through the shards and include the handoff.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuoteBenchmark {
+    private static final int BATCH = 1024;
+
+    @Param({"1", "1000", "100000"})
+    private int instruments;
+    @Param({"4"})
+    private int shards;
+    private QuoteShardExecutor executor;
+    private OhlcServiceImpl service;
+    private Quote[] quotes;
+    private int[] quoteShards;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var clock = new BenchmarkSupport.ManualClock(BenchmarkSupport.START_MILLIS);
+        executor = new QuoteShardExecutor(shards, 1 << 16);
+        service = BenchmarkSupport.createService(BenchmarkSupport.noStorage(), executor, instruments, clock);
+        quotes = BenchmarkSupport.createQuotes(instruments, Math.max(instruments, BATCH), BenchmarkSupport.START_MILLIS);
+        quoteShards = new int[quotes.length];
+        for (int i = 0; i < quotes.length; i++) {
+            quoteShards[i] = executor.shardOf(quotes[i].getInstrumentId());
+            service.saveQuoteRawData(quoteShards[i], quotes[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /** the shard threads stay idle, the benchmark thread acts as the owner of every shard */
+    @Benchmark
+    public void saveQuoteRawData() {
+        service.saveQuoteRawData(quoteShards[next], quotes[next]);
+        next = next + 1 == quotes.length ? 0 : next + 1;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void onQuote(Producer producer) {
+        producer.sendSingle(this);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public void onQuoteContended(Producer producer) {
+        producer.sendSingle(this);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void onQuotes(Producer producer) {
+        producer.sendBatch(this);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public void onQuotesContended(Producer producer) {
+        producer.sendBatch(this);
+    }
+
+    /** every producer thread sends its own slice of the instruments */
+    @State(Scope.Thread)
+    public static class Producer {
+        private Quote[] batch;
+        private long[] instrumentIds;
+        private double[] prices;
+        private long[] utcTimestamps;
+
+        @Setup(Level.Trial)
+        public void setUp(QuoteBenchmark benchmark) {
+            int offset = (int) (Thread.currentThread().getId() * BATCH % benchmark.quotes.length);
+            batch = new Quote[BATCH];
+            instrumentIds = new long[BATCH];
+            prices = new double[BATCH];
+            utcTimestamps = new long[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                var quote = benchmark.quotes[(offset + i) % benchmark.quotes.length];
+                batch[i] = quote;
+                instrumentIds[i] = quote.getInstrumentId();
+                prices[i] = quote.getPrice();
+                utcTimestamps[i] = quote.getUtcTimestamp();
+            }
+        }
+
+        void sendSingle(QuoteBenchmark benchmark) {
+            for (Quote quote : batch) {
+                benchmark.service.onQuote(quote);
+            }
+            benchmark.executor.awaitProcessed();
+        }
+
+        void sendBatch(QuoteBenchmark benchmark) {
+            benchmark.service.onQuotes(instrumentIds, prices, utcTimestamps, BATCH);
+            benchmark.executor.awaitProcessed();
+        }
+    }
+}
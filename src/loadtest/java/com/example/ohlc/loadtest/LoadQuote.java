@@ -0,0 +1,15 @@
+package com.example.ohlc.loadtest;
+
+import com.example.ohlc.dto.Quote;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/** synthetic quote which remembers when it was sent */
+@Getter
+@AllArgsConstructor
+public class LoadQuote implements Quote {
+    private final long instrumentId;
+    private final double price;
+    private final long utcTimestamp;
+    private final long sendNanos;
+}
@@ -0,0 +1,202 @@
+package com.example.ohlc.loadtest;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.QuoteListener;
+import com.example.ohlc.service.impl.OhlcStorageImpl;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test mode, enabled by the loadtest profile: synthetic quote generators feed the application
+ * with its embedded database for a fixed time, then quote rate, latency percentiles, rejections,
+ * heap and GC pauses are reported and the application exits.
+ * Quote-to-update latency is measured for single quotes only, batches lose the send time.
+ */
+@Slf4j
+@Component
+@Profile("loadtest")
+@RequiredArgsConstructor
+public class LoadTestRunner implements ApplicationRunner {
+    private final QuoteListener quoteListener;
+    private final QuoteShardExecutor quoteShardExecutor;
+    private final Optional<OhlcStorageImpl> ohlcStorage;
+    private final Clock clock;
+    private final ConfigurableApplicationContext applicationContext;
+    @Value("${loadtest.duration.seconds}")
+    private int durationSeconds;
+    @Value("${loadtest.report.interval.seconds}")
+    private int reportIntervalSeconds;
+    @Value("${loadtest.generators}")
+    private int generators;
+    @Value("${loadtest.rate}")
+    private double rate;
+    @Value("${loadtest.batch.size}")
+    private int batchSize;
+    @Value("${loadtest.instruments}")
+    private int instruments;
+    @Value("${loadtest.hot.instruments}")
+    private int hotInstruments;
+    @Value("${loadtest.hot.share}")
+    private double hotShare;
+    @Value("${loadtest.out.of.order.rate}")
+    private double outOfOrderRate;
+    @Value("${loadtest.out.of.order.max.ms}")
+    private long outOfOrderMaxMillis;
+    @Value("${loadtest.exit}")
+    private boolean exit;
+
+    /** microseconds from onQuote to the end of the bar update */
+    private final Histogram updateLatency = new ConcurrentHistogram(3);
+    /** milliseconds from the end of the bar period to the database commit */
+    private final Histogram persistLatency = new ConcurrentHistogram(3);
+    private final Histogram gcPauses = new ConcurrentHistogram(3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong persisted = new AtomicLong();
+    private long maxHeapUsed;
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        log.info("Load test: {} quotes/s from {} generators in batches of {} for {} instruments, {} hot with {} share, "
+                        + "{} late up to {} ms, {} s",
+                rate, generators, batchSize, instruments, hotInstruments, hotShare, outOfOrderRate, outOfOrderMaxMillis,
+                durationSeconds);
+        quoteShardExecutor.setProbe((shard, quote) -> {
+            if (quote instanceof LoadQuote) {
+                updateLatency.recordValue((System.nanoTime() - ((LoadQuote) quote).getSendNanos()) / 1_000);
+            }
+        });
+        ohlcStorage.ifPresent(storage -> storage.setCommitListener(this::onCommit));
+        var gcListeners = listenToGc();
+
+        var running = new ArrayList<QuoteGenerator>();
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < generators; i++) {
+            var generator = QuoteGenerator.builder()
+                    .quoteListener(quoteListener)
+                    .clock(clock)
+                    .seed(i)
+                    .ratePerSecond(rate / generators)
+                    .batchSize(batchSize)
+                    .instruments(instruments)
+                    .hotInstruments(hotInstruments)
+                    .hotShare(hotShare)
+                    .outOfOrderRate(outOfOrderRate)
+                    .outOfOrderMaxMillis(outOfOrderMaxMillis)
+                    .sent(sent)
+                    .rejected(rejected)
+                    .build();
+            var thread = new Thread(generator, "quote-generator-" + i);
+            running.add(generator);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = startNanos + TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+        long lastSent = 0;
+        long lastReport = startNanos;
+        while (System.nanoTime() < endNanos) {
+            Thread.sleep(1_000);
+            maxHeapUsed = Math.max(maxHeapUsed, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                long total = sent.get();
+                log.info("{} quotes/s, update p99 {} us, rejected {}, heap {} MB",
+                        (total - lastSent) * TimeUnit.SECONDS.toNanos(1) / (now - lastReport),
+                        updateLatency.getValueAtPercentile(99), rejected.get(), maxHeapUsed >> 20);
+                lastSent = total;
+                lastReport = now;
+                nextReport += TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+            }
+        }
+        running.forEach(QuoteGenerator::stop);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        quoteShardExecutor.awaitProcessed();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        quoteShardExecutor.setProbe(null);
+        ohlcStorage.ifPresent(storage -> storage.setCommitListener(null));
+        gcListeners.forEach(Runnable::run);
+
+        report(elapsedNanos);
+        if (exit) {
+            System.exit(SpringApplication.exit(applicationContext));
+        }
+    }
+
+    private void onCommit(List<Ohlc> batch) {
+        long now = clock.millis();
+        for (Ohlc ohlc : batch) {
+            persistLatency.recordValue(Math.max(0, now - ohlc.getStartPeriod() - ohlc.getPeriod().getMillis()));
+        }
+        persisted.addAndGet(batch.size());
+    }
+
+    private void report(long elapsedNanos) {
+        log.info("Sustained {} quotes/s, sent {}, rejected {}",
+                sent.get() * TimeUnit.SECONDS.toNanos(1) / elapsedNanos, sent.get(), rejected.get());
+        log.info("Quote to bar update, us: {}", percentiles(updateLatency));
+        log.info("Bar close to persist of {} bars, ms: {}", persisted.get(), percentiles(persistLatency));
+        log.info("GC pauses, ms: {}, total {} ms", percentiles(gcPauses),
+                (long) (gcPauses.getMean() * gcPauses.getTotalCount()));
+        log.info("Heap used max {} MB of {} MB", maxHeapUsed >> 20,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax() >> 20);
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return String.format("count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d", histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+
+    /** @return actions removing the listeners */
+    private List<Runnable> listenToGc() {
+        List<Runnable> removers = new ArrayList<>();
+        NotificationListener listener = (notification, handback) -> {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                gcPauses.recordValue(info.getGcInfo().getDuration());
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                var emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(listener, null, null);
+                removers.add(() -> {
+                    try {
+                        emitter.removeNotificationListener(listener);
+                    } catch (Exception e) {
+                        log.debug("GC listener already removed", e);
+                    }
+                });
+            }
+        }
+        return removers;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.ohlc.loadtest;
+
+import com.example.ohlc.dto.Quote;
+import com.example.ohlc.service.QuoteListener;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends quotes at a fixed rate until stopped. A share of the quotes goes to a few hot instruments,
+ * some quotes are late by up to outOfOrderMaxMillis. Quotes rejected by a full shard are dropped and counted.
+ */
+@Slf4j
+@Builder
+public class QuoteGenerator implements Runnable {
+    private final QuoteListener quoteListener;
+    private final Clock clock;
+    private final long seed;
+    private final double ratePerSecond;
+    private final int batchSize;
+    private final int instruments;
+    private final int hotInstruments;
+    private final double hotShare;
+    private final double outOfOrderRate;
+    private final long outOfOrderMaxMillis;
+    private final AtomicLong sent;
+    private final AtomicLong rejected;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    public void stop() {
+        stopped.set(true);
+    }
+
+    @Override
+    public void run() {
+        var random = new SplittableRandom(seed);
+        double quotesPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        long startNanos = System.nanoTime();
+        long count = 0;
+        List<Quote> frame = new ArrayList<>(batchSize);
+        while (!stopped.get()) {
+            long due = (long) ((System.nanoTime() - startNanos) * quotesPerNano);
+            if (count >= due) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            long sendNanos = System.nanoTime();
+            frame.clear();
+            for (int i = 0; i < batchSize; i++) {
+                frame.add(nextQuote(random, sendNanos));
+            }
+            try {
+                if (batchSize == 1) {
+                    quoteListener.onQuote(frame.get(0));
+                } else {
+                    quoteListener.onQuotes(frame);
+                }
+                sent.addAndGet(batchSize);
+            } catch (RejectedExecutionException e) {
+                rejected.addAndGet(batchSize);
+            }
+            count += batchSize;
+        }
+    }
+
+    private Quote nextQuote(SplittableRandom random, long sendNanos) {
+        long instrumentId = hotInstruments > 0 && random.nextDouble() < hotShare
+                ? random.nextInt(hotInstruments)
+                : random.nextInt(instruments);
+        long timestamp = clock.millis();
+        if (outOfOrderRate > 0 && random.nextDouble() < outOfOrderRate) {
+            timestamp -= random.nextLong(outOfOrderMaxMillis + 1);
+        }
+        double price = 100 + (instrumentId % 100) + random.nextDouble();
+        return new LoadQuote(instrumentId, price, timestamp, sendNanos);
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.ohlc.backfill;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+@Getter
+@ToString
+@AllArgsConstructor
+public class BackfillResult {
+    /** rebuilt range, aligned to the coarsest period */
+    private final long from;
+    private final long to;
+    private final long quotesRead;
+    private final long quotesInRange;
+    private final long instruments;
+    private final long barsWritten;
+    private final long millis;
+}
@@ -0,0 +1,50 @@
+package com.example.ohlc.backfill;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Backfill mode, enabled by the backfill profile: rebuilds the bars of backfill.from - backfill.to
+ * (ISO-8601 instants) from backfill.archives and exits. It runs next to a serving instance
+ * sharing the database, the mapped storage has to be rebuilt while no instance serves it.
+ */
+@Slf4j
+@Component
+@Profile("backfill")
+@RequiredArgsConstructor
+public class BackfillRunner implements ApplicationRunner {
+    private final BarBackfill barBackfill;
+    private final ConfigurableApplicationContext applicationContext;
+    @Value("${backfill.archives}")
+    private String[] archives;
+    @Value("${backfill.from}")
+    private String from;
+    @Value("${backfill.to}")
+    private String to;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int status = 0;
+        try {
+            barBackfill.run(Arrays.stream(archives).map(Paths::get).collect(Collectors.toList()),
+                    Instant.parse(from).toEpochMilli(), Instant.parse(to).toEpochMilli());
+        } catch (RuntimeException e) {
+            log.error("Backfill failed", e);
+            status = 1;
+        }
+        int exitStatus = status;
+        System.exit(SpringApplication.exit(applicationContext, () -> exitStatus));
+    }
+}
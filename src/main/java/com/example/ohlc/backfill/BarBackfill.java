@@ -0,0 +1,336 @@
+package com.example.ohlc.backfill;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcStorage;
+import com.example.ohlc.service.impl.RecentBarCache;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds the stored bars of a time range from quote archives, away from the shards and their current bars.
+ * Archive chunks are read in parallel and their quotes are scattered by instrument into partition files,
+ * then every partition is aggregated on its own with the period bucketing of the live path and its bars
+ * replace the stored bars of the range instrument by instrument, so running it again gives the same bars.
+ * The open and close of a bar are the quotes with the lowest and highest timestamp, equal timestamps
+ * are ordered by archive and position. The range is widened to whole bars of the coarsest period and
+ * bars which ended less than backfill.live.margin.ms ago are left to the live path.
+ * Only instruments with quotes in the archives are touched.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BarBackfill {
+    /** instrumentId, price, utcTimestamp and sequence */
+    private static final int RECORD_SIZE = 4 * Long.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final OhlcStorage ohlcStorage;
+    private final RecentBarCache recentBarCache;
+    private final Clock clock;
+    /** ordered from the finest to the coarsest after start */
+    @Value("${ohlc.periods}")
+    private OhlcPeriod[] periods;
+    /** threads of the backfill pool, 0 for half of the processors to leave the rest to the live path */
+    @Value("${backfill.parallelism}")
+    private int parallelism;
+    /** every partition is aggregated in memory at once */
+    @Value("${backfill.partitions}")
+    private int partitions;
+    /** archives are read in chunks of this size in parallel */
+    @Value("${backfill.chunk.bytes}")
+    private long chunkBytes;
+    @Value("${backfill.work.dir}")
+    private String workDirectory;
+    @Value("${backfill.live.margin.ms}")
+    private long liveMarginMillis;
+
+    @PostConstruct
+    public void start() {
+        periods = EnumSet.copyOf(Arrays.asList(periods)).toArray(new OhlcPeriod[0]);
+    }
+
+    /** @param to exclusive */
+    public BackfillResult run(List<Path> archives, long from, long to) {
+        long startMillis = clock.millis();
+        var coarsest = periods[periods.length - 1];
+        long alignedFrom = coarsest.getStartPeriod(from);
+        long alignedTo = coarsest.getStartPeriod(to - 1) + coarsest.getMillis();
+        long liveLimit = startMillis - liveMarginMillis;
+        var chunks = new ArrayList<QuoteArchiveChunk>();
+        for (int i = 0; i < archives.size(); i++) {
+            chunks.addAll(QuoteArchiveChunk.split(archives.get(i), i, chunkBytes));
+        }
+        int threads = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        log.info("Backfilling {} - {} from {} archives in {} chunks with {} threads",
+                alignedFrom, alignedTo, archives.size(), chunks.size(), threads);
+        var pool = new ForkJoinPool(threads);
+        Path work = null;
+        var channels = new FileChannel[partitions];
+        try {
+            work = Files.createTempDirectory(Files.createDirectories(Paths.get(workDirectory)), "backfill-");
+            for (int i = 0; i < partitions; i++) {
+                channels[i] = FileChannel.open(work.resolve("partition-" + i), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            var read = new LongAdder();
+            long inRange = pool.submit(() -> chunks.parallelStream()
+                    .mapToLong(chunk -> scatter(chunk, alignedFrom, alignedTo, channels, read))
+                    .sum()).get();
+            var totals = pool.submit(() -> IntStream.range(0, partitions).parallel()
+                    .mapToObj(i -> aggregate(channels[i], alignedFrom, alignedTo, liveLimit))
+                    .reduce(new long[2], (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]})).get();
+            var result = new BackfillResult(alignedFrom, alignedTo, read.sum(), inRange, totals[0], totals[1],
+                    clock.millis() - startMillis);
+            log.info("Backfill done: {}", result);
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create partition files in " + workDirectory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Backfill interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Backfill failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (FileChannel channel : channels) {
+                close(channel);
+            }
+            delete(work);
+        }
+    }
+
+    /** @return quotes in the range */
+    private long scatter(QuoteArchiveChunk chunk, long from, long to, FileChannel[] channels, LongAdder read) {
+        var buffers = new ByteBuffer[channels.length];
+        long[] inRange = new long[1];
+        read.add(chunk.read((instrumentId, price, utcTimestamp, sequence) -> {
+            if (utcTimestamp < from || utcTimestamp >= to) {
+                return;
+            }
+            int partition = partition(instrumentId);
+            var buffer = buffers[partition];
+            if (buffer == null) {
+                buffer = buffers[partition] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            } else if (buffer.remaining() < RECORD_SIZE) {
+                write(channels[partition], buffer);
+            }
+            buffer.putLong(instrumentId).putDouble(price).putLong(utcTimestamp).putLong(sequence);
+            inRange[0]++;
+        }));
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] != null) {
+                write(channels[i], buffers[i]);
+            }
+        }
+        return inRange[0];
+    }
+
+    /** @return instruments and bars written */
+    private long[] aggregate(FileChannel channel, long from, long to, long liveLimit) {
+        var instruments = new HashMap<Long, InstrumentBars>();
+        var buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            long position = 0;
+            int n;
+            while ((n = channel.read(buffer, position)) > 0) {
+                position += n;
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long instrumentId = buffer.getLong();
+                    double price = buffer.getDouble();
+                    long utcTimestamp = buffer.getLong();
+                    long sequence = buffer.getLong();
+                    instruments.computeIfAbsent(instrumentId, id -> new InstrumentBars())
+                            .add(periods[0], price, utcTimestamp, sequence);
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read a partition file", e);
+        }
+        long bars = 0;
+        for (var entry : instruments.entrySet()) {
+            bars += replaceBars(entry.getKey(), entry.getValue(), from, to, liveLimit);
+        }
+        return new long[]{instruments.size(), bars};
+    }
+
+    /** replaces the bars of every period which ended before liveLimit */
+    private long replaceBars(long instrumentId, InstrumentBars instrumentBars, long from, long to, long liveLimit) {
+        var finest = instrumentBars.toOhlcs(instrumentId, periods[0]);
+        long written = 0;
+        for (OhlcPeriod period : periods) {
+            long end = Math.min(to, period.getStartPeriod(liveLimit));
+            if (end <= from) {
+                continue;
+            }
+            var bars = period == periods[0] ? finest : rollUp(finest, period);
+            int count = 0;
+            while (count < bars.size() && bars.get(count).getStartPeriod() < end) {
+                count++;
+            }
+            ohlcStorage.replace(instrumentId, period, from, end, bars.subList(0, count));
+            recentBarCache.evict(instrumentId, period);
+            written += count;
+        }
+        return written;
+    }
+
+    /** merges finest bars sorted by start into the bars of a coarser period */
+    private static List<Ohlc> rollUp(List<Ohlc> finest, OhlcPeriod period) {
+        var result = new ArrayList<Ohlc>();
+        Ohlc current = null;
+        for (Ohlc bar : finest) {
+            long start = period.getStartPeriod(bar.getStartPeriod());
+            if (current == null || current.getStartPeriod() != start) {
+                current = Ohlc.builder()
+                        .instrumentId(bar.getInstrumentId())
+                        .period(period)
+                        .startPeriod(start)
+                        .openPrice(bar.getOpenPrice())
+                        .highPrice(bar.getHighPrice())
+                        .lowPrice(bar.getLowPrice())
+                        .closePrice(bar.getClosePrice())
+                        .build();
+                result.add(current);
+            } else {
+                current.setHighPrice(Math.max(current.getHighPrice(), bar.getHighPrice()));
+                current.setLowPrice(Math.min(current.getLowPrice(), bar.getLowPrice()));
+                current.setClosePrice(bar.getClosePrice());
+            }
+        }
+        return result;
+    }
+
+    private int partition(long instrumentId) {
+        return Math.floorMod(Long.hashCode(instrumentId * 0x9E3779B97F4A7C15L), partitions);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            synchronized (channel) {
+                long position = channel.size();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write a partition file", e);
+        }
+        buffer.clear();
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close a partition file", e);
+        }
+    }
+
+    private static void delete(Path work) {
+        if (work == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(work)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Failed to delete {}", work, e);
+        }
+    }
+
+    /** finest bars of one instrument, quotes mostly come in time order, so the last bar is kept at hand */
+    private static final class InstrumentBars {
+        private final Map<Long, BarBuilder> bars = new HashMap<>();
+        private BarBuilder last;
+
+        private void add(OhlcPeriod period, double price, long utcTimestamp, long sequence) {
+            if (last == null || !period.contains(last.startPeriod, utcTimestamp)) {
+                long start = period.getStartPeriod(utcTimestamp);
+                last = bars.computeIfAbsent(start, BarBuilder::new);
+            }
+            last.add(price, utcTimestamp, sequence);
+        }
+
+        private List<Ohlc> toOhlcs(long instrumentId, OhlcPeriod period) {
+            var result = new ArrayList<Ohlc>(bars.size());
+            for (BarBuilder bar : bars.values()) {
+                result.add(Ohlc.builder()
+                        .instrumentId(instrumentId)
+                        .period(period)
+                        .startPeriod(bar.startPeriod)
+                        .openPrice(bar.openPrice)
+                        .highPrice(bar.highPrice)
+                        .lowPrice(bar.lowPrice)
+                        .closePrice(bar.closePrice)
+                        .build());
+            }
+            result.sort(Comparator.comparingLong(Ohlc::getStartPeriod));
+            return result;
+        }
+    }
+
+    /** quotes can come in any order, open and close keep the timestamp and sequence they were taken at */
+    private static final class BarBuilder {
+        private final long startPeriod;
+        private long openTimestamp = Long.MAX_VALUE;
+        private long openSequence;
+        private double openPrice;
+        private long closeTimestamp = Long.MIN_VALUE;
+        private long closeSequence;
+        private double closePrice;
+        private double highPrice = Double.NEGATIVE_INFINITY;
+        private double lowPrice = Double.POSITIVE_INFINITY;
+
+        private BarBuilder(long startPeriod) {
+            this.startPeriod = startPeriod;
+        }
+
+        private void add(double price, long utcTimestamp, long sequence) {
+            if (utcTimestamp < openTimestamp || utcTimestamp == openTimestamp && sequence < openSequence) {
+                openTimestamp = utcTimestamp;
+                openSequence = sequence;
+                openPrice = price;
+            }
+            if (utcTimestamp > closeTimestamp || utcTimestamp == closeTimestamp && sequence > closeSequence) {
+                closeTimestamp = utcTimestamp;
+                closeSequence = sequence;
+                closePrice = price;
+            }
+            highPrice = Math.max(highPrice, price);
+            lowPrice = Math.min(lowPrice, price);
+        }
+    }
+}
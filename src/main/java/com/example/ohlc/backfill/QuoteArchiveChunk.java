@@ -0,0 +1,211 @@
+package com.example.ohlc.backfill;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range of a quote archive read through a read-only mapping. Archives ending with .csv hold
+ * instrumentId,price,utcTimestamp lines, an optional header line is skipped. Other archives hold
+ * little endian records of instrumentId, price and utcTimestamp like the checkpoint journals.
+ * A CSV chunk reads the lines starting inside its range, so chunks can split a file anywhere.
+ */
+@Getter
+@RequiredArgsConstructor
+public class QuoteArchiveChunk {
+    static final int RECORD_SIZE = 3 * Long.BYTES;
+    private static final int MAX_LINE = 256;
+    private static final long MAX_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Path path;
+    /** index of the archive, orders quotes with equal timestamps from different archives */
+    private final int archive;
+    private final long start;
+    private final long end;
+
+    /** receives the quotes of a chunk, sequence orders quotes with equal timestamps by their archive position */
+    @FunctionalInterface
+    public interface QuoteConsumer {
+        void accept(long instrumentId, double price, long utcTimestamp, long sequence);
+    }
+
+    /** splits the archive into chunks of about chunkSize bytes */
+    public static List<QuoteArchiveChunk> split(Path path, int archive, long chunkSize) {
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+        boolean csv = isCsv(path);
+        long step = csv ? chunkSize : Math.max(1, chunkSize / RECORD_SIZE) * RECORD_SIZE;
+        var chunks = new ArrayList<QuoteArchiveChunk>();
+        for (long position = 0; position < size; position += step) {
+            chunks.add(new QuoteArchiveChunk(path, archive, position, Math.min(size, position + step)));
+        }
+        return chunks;
+    }
+
+    /** @return count of the quotes read */
+    public long read(QuoteConsumer quotes) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return isCsv(path) ? readCsv(channel, quotes) : readRecords(channel, quotes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+    }
+
+    static boolean isCsv(Path path) {
+        return path.getFileName().toString().endsWith(".csv");
+    }
+
+    private long readRecords(FileChannel channel, QuoteConsumer quotes) throws IOException {
+        // a torn last record is dropped
+        long count = (end - start) / RECORD_SIZE;
+        var buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, count * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long sequence = sequence(start / RECORD_SIZE);
+        for (long i = 0; i < count; i++) {
+            quotes.accept(buffer.getLong(), buffer.getDouble(), buffer.getLong(), sequence++);
+        }
+        return count;
+    }
+
+    private long readCsv(FileChannel channel, QuoteConsumer quotes) throws IOException {
+        long size = channel.size();
+        // mapped from the byte before the chunk to know whether the chunk starts a line
+        long mapStart = Math.max(0, start - 1);
+        long mapEnd = Math.min(size, end + MAX_LINE);
+        var buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = buffer.limit();
+        int position = 0;
+        if (start > 0) {
+            while (position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+        long count = 0;
+        while (position < limit && mapStart + position < end) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && mapEnd < size) {
+                throw new IllegalStateException("Line longer than " + MAX_LINE + " bytes at " + (mapStart + position) + " of " + path);
+            }
+            if (parseLine(buffer, position, lineEnd, sequence(mapStart + position), quotes)) {
+                count++;
+            }
+            position = lineEnd + 1;
+        }
+        return count;
+    }
+
+    /** @return false for blank and header lines */
+    private boolean parseLine(MappedByteBuffer buffer, int from, int to, long sequence, QuoteConsumer quotes) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        if (from == to) {
+            return false;
+        }
+        byte first = buffer.get(from);
+        if (first != '-' && (first < '0' || first > '9')) {
+            return false;
+        }
+        int idEnd = indexOf(buffer, ',', from, to);
+        int priceEnd = indexOf(buffer, ',', idEnd + 1, to);
+        if (idEnd < 0 || priceEnd < 0) {
+            throw new IllegalArgumentException("Expected instrumentId,price,utcTimestamp at " + sequence + " of " + path);
+        }
+        quotes.accept(parseLong(buffer, from, idEnd), parseDouble(buffer, idEnd + 1, priceEnd),
+                parseLong(buffer, priceEnd + 1, to), sequence);
+        return true;
+    }
+
+    private long sequence(long position) {
+        return (long) archive << 40 | position;
+    }
+
+    private static int indexOf(MappedByteBuffer buffer, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long parseLong(MappedByteBuffer buffer, int from, int to) {
+        boolean negative = from < to && buffer.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {
+            throw new NumberFormatException("Empty number in " + path);
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: " + text(buffer, from, to));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /** plain decimals are parsed exactly without a string, others by Double.parseDouble */
+    private double parseDouble(MappedByteBuffer buffer, int from, int to) {
+        boolean negative = from < to && buffer.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || mantissa > (MAX_MANTISSA - 10) / 10) {
+                return Double.parseDouble(text(buffer, from, to));
+            }
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if (fraction >= 0) {
+                fraction++;
+            }
+        }
+        if (digits == 0 || fraction >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(text(buffer, from, to));
+        }
+        // both are exact doubles, so the division is rounded once like parseDouble
+        double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static String text(MappedByteBuffer buffer, int from, int to) {
+        var bytes = new byte[to - from];
+        buffer.duplicate().position(from).get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.ohlc.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges the quotes of one instrument within the same conflation window into a single entry,
+ * read back as up to four quotes: open, high, low and close. Every bar period is a union of windows,
+ * so the bars come out exactly as from the raw quotes, only the quote count is lost.
+ * A quote of another window than the newest entry of the instrument starts a new entry, keeping the order.
+ */
+final class ConflationBuffer implements QuoteOverflow {
+    private final long windowMillis;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    /** newest entry of every instrument */
+    private final Map<Long, Entry> latest = new HashMap<>();
+    private long size;
+    private long conflated;
+
+    ConflationBuffer(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public synchronized void add(long instrumentId, double price, long utcTimestamp) {
+        long window = Math.floorDiv(utcTimestamp, windowMillis);
+        var entry = latest.get(instrumentId);
+        if (entry != null && entry.window == window) {
+            entry.highPrice = Math.max(entry.highPrice, price);
+            entry.lowPrice = Math.min(entry.lowPrice, price);
+            entry.closePrice = price;
+            entry.lastTimestamp = utcTimestamp;
+            if (entry.count++ == 1) {
+                size += 3;
+            }
+            conflated++;
+            return;
+        }
+        entry = new Entry(instrumentId, window, price, utcTimestamp);
+        entries.add(entry);
+        latest.put(instrumentId, entry);
+        size++;
+    }
+
+    /** reads whole entries, at least one even if it has more quotes than the limit */
+    @Override
+    public synchronized int read(QuoteBatch batch, int limit) {
+        batch.clear();
+        Entry entry;
+        while ((entry = entries.peek()) != null) {
+            int quotes = entry.count > 1 ? 4 : 1;
+            if (batch.size() > 0 && batch.size() + quotes > limit) {
+                break;
+            }
+            entries.poll();
+            latest.remove(entry.instrumentId, entry);
+            size -= quotes;
+            batch.add(entry.instrumentId, entry.openPrice, entry.firstTimestamp);
+            if (entry.count > 1) {
+                batch.add(entry.instrumentId, entry.highPrice, entry.firstTimestamp);
+                batch.add(entry.instrumentId, entry.lowPrice, entry.firstTimestamp);
+                batch.add(entry.instrumentId, entry.closePrice, entry.lastTimestamp);
+            }
+        }
+        return batch.size();
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    /** quotes merged into an earlier quote of the same window */
+    synchronized long getConflated() {
+        return conflated;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static final class Entry {
+        private final long instrumentId;
+        private final long window;
+        private final double openPrice;
+        private final long firstTimestamp;
+        private double highPrice;
+        private double lowPrice;
+        private double closePrice;
+        private long lastTimestamp;
+        private int count = 1;
+
+        private Entry(long instrumentId, long window, double price, long utcTimestamp) {
+            this.instrumentId = instrumentId;
+            this.window = window;
+            this.openPrice = price;
+            this.highPrice = price;
+            this.lowPrice = price;
+            this.closePrice = price;
+            this.firstTimestamp = utcTimestamp;
+            this.lastTimestamp = utcTimestamp;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.ohlc.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue.
+ * Every cell carries a sequence number, so producers only contend on one CAS
+ * and the consumer never writes shared counters except with lazy stores.
+ */
+public final class MpscArrayQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    public MpscArrayQueue(int requestedCapacity) {
+        if (requestedCapacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + requestedCapacity);
+        }
+        int capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    /** @return false if the queue is full */
+    public boolean offer(E e) {
+        long position = producerIndex.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, e);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = producerIndex.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = producerIndex.get();
+            }
+        }
+    }
+
+    /** must be called only by the single consumer thread */
+    public E poll() {
+        long position = consumerIndex.get();
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        consumerIndex.lazySet(position + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** approximate number of queued elements, may be stale under contention */
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
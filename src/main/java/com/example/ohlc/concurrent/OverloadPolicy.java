@@ -0,0 +1,13 @@
+package com.example.ohlc.concurrent;
+
+/** what a shard does with quotes which don't fit into its full queue */
+public enum OverloadPolicy {
+    /** the quote is rejected with RejectedExecutionException */
+    REJECT,
+    /** the caller waits for free space up to the block timeout, then the quote is rejected */
+    BLOCK,
+    /** the quote is appended to a spill file of the shard, drained when the queue is empty */
+    SPILL,
+    /** quotes of one instrument within the conflation window are merged into open, high, low and close */
+    CONFLATE
+}
@@ -0,0 +1,58 @@
+package com.example.ohlc.concurrent;
+
+import com.example.ohlc.dto.Quote;
+
+/**
+ * Quotes of one shard in parallel arrays, queued as a single element.
+ * While the shard handles it the batch is also the view of its current quote,
+ * so handling a batch allocates nothing per quote.
+ */
+final class QuoteBatch implements Quote {
+    private final long[] instrumentIds;
+    private final double[] prices;
+    private final long[] utcTimestamps;
+    private int size;
+    private int position;
+
+    QuoteBatch(int capacity) {
+        this.instrumentIds = new long[capacity];
+        this.prices = new double[capacity];
+        this.utcTimestamps = new long[capacity];
+    }
+
+    void add(long instrumentId, double price, long utcTimestamp) {
+        instrumentIds[size] = instrumentId;
+        prices[size] = price;
+        utcTimestamps[size] = utcTimestamp;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** moves the view to the quote */
+    Quote at(int position) {
+        this.position = position;
+        return this;
+    }
+
+    @Override
+    public double getPrice() {
+        return prices[position];
+    }
+
+    @Override
+    public long getInstrumentId() {
+        return instrumentIds[position];
+    }
+
+    @Override
+    public long getUtcTimestamp() {
+        return utcTimestamps[position];
+    }
+}
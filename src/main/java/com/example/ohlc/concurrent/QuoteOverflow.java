@@ -0,0 +1,18 @@
+package com.example.ohlc.concurrent;
+
+/**
+ * Quotes of one shard which did not fit into its queue. Producers add under the lock of the overflow,
+ * the shard thread reads them back in order once its queue is empty.
+ */
+interface QuoteOverflow {
+
+    void add(long instrumentId, double price, long utcTimestamp);
+
+    /** moves at most limit quotes in arrival order into the cleared batch */
+    int read(QuoteBatch batch, int limit);
+
+    /** count of quotes still to read */
+    long size();
+
+    void close();
+}
@@ -0,0 +1,567 @@
+package com.example.ohlc.concurrent;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.dto.Quote;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Routes quotes to single-threaded shards by instrument id.
+ * All quotes of one instrument are handled by the same thread in arrival order,
+ * so the handler may keep per-shard state without any locking.
+ * Quotes which don't fit into a full shard queue are handled by the {@link OverloadPolicy}.
+ * Once a shard overflows, its quotes go to the overflow until the shard has read it to the end.
+ */
+@Slf4j
+public class QuoteShardExecutor {
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int OVERFLOW_CHUNK = 4096;
+
+    private final Shard[] shards;
+    private volatile boolean running;
+    private volatile ShardHandler probe;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+    private long blockTimeoutMillis = 1_000;
+    private Path spillDirectory;
+    private long conflationMillis = 60_000;
+    private int threadPriority = Thread.NORM_PRIORITY;
+    private int maxDrain = Integer.MAX_VALUE;
+
+    @FunctionalInterface
+    public interface ShardHandler {
+        /** the quote of a batch is a reused view, valid only during the call */
+        void onQuote(int shard, Quote quote);
+    }
+
+    public QuoteShardExecutor(int shardCount, int queueCapacity) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity);
+        }
+    }
+
+    public void start(ShardHandler handler) {
+        start(handler, shard -> { });
+    }
+
+    /** @param timer called by every shard thread between quote batches and at least once per idle park */
+    public synchronized void start(ShardHandler handler, IntConsumer timer) {
+        if (running) {
+            throw new IllegalStateException("Shards are already started");
+        }
+        for (Shard shard : shards) {
+            shard.overflow = createOverflow(shard.index);
+            shard.overflowing = shard.overflow != null && shard.overflow.size() > 0;
+        }
+        running = true;
+        for (Shard shard : shards) {
+            shard.start(handler, timer);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (Shard shard : shards) {
+            if (shard.overflow != null) {
+                shard.overflow.close();
+            }
+        }
+    }
+
+    /** set before start */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /** longest wait of a producer for free space with {@link OverloadPolicy#BLOCK} */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /** set before start */
+    public void setThreadPriority(int threadPriority) {
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Quotes handled between two timer calls, so a quote flood delays the closing of expired bars
+     * by at most that many quotes. Set before start.
+     */
+    public void setMaxDrain(int maxDrain) {
+        if (maxDrain < 1) {
+            throw new IllegalArgumentException("Max drain must be positive: " + maxDrain);
+        }
+        this.maxDrain = maxDrain;
+    }
+
+    /** directory of the spill files with {@link OverloadPolicy#SPILL} */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Window of {@link OverloadPolicy#CONFLATE}. Set before start.
+     * @param periods aggregated bar periods, each has to start and end on a window, else conflated quotes would move between bars
+     */
+    public void setConflationMillis(long conflationMillis, OhlcPeriod... periods) {
+        if (conflationMillis < 1) {
+            throw new IllegalArgumentException("Conflation window must be positive: " + conflationMillis);
+        }
+        for (OhlcPeriod period : periods) {
+            if (period.getMillis() % conflationMillis != 0 || period.getAlignment() % conflationMillis != 0) {
+                throw new IllegalArgumentException("Period " + period + " is not a multiple of the conflation window "
+                        + conflationMillis + " ms");
+            }
+        }
+        this.conflationMillis = conflationMillis;
+    }
+
+    /** @param probe called by the shard thread after every handled quote, e.g. to measure latency, or null */
+    public void setProbe(ShardHandler probe) {
+        this.probe = probe;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(long instrumentId) {
+        int h = Long.hashCode(instrumentId * 0x9E3779B97F4A7C15L);
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    public void execute(Quote quote) {
+        if (!running) {
+            rejected.increment();
+            throw new RejectedExecutionException("Shards are not running");
+        }
+        enqueue(shards[shardOf(quote.getInstrumentId())], quote);
+    }
+
+    /**
+     * Splits the quotes by shard and queues one batch per shard, keeping the order of every instrument.
+     * With the REJECT policy all batches are rejected when a shard queue is full. Only when another
+     * thread fills a queue meanwhile is the batch of that shard rejected after earlier batches were queued.
+     */
+    public void executeAll(List<? extends Quote> quotes) {
+        var batches = split(quotes.size(), i -> quotes.get(i).getInstrumentId());
+        for (int i = 0; i < quotes.size(); i++) {
+            var quote = quotes.get(i);
+            batches[shardOf(quote.getInstrumentId())].add(quote.getInstrumentId(), quote.getPrice(), quote.getUtcTimestamp());
+        }
+        offer(batches);
+    }
+
+    /** same as {@link #executeAll(List)} for quotes in parallel arrays, the first count quotes are queued */
+    public void executeAll(long[] instrumentIds, double[] prices, long[] utcTimestamps, int count) {
+        var batches = split(count, i -> instrumentIds[i]);
+        for (int i = 0; i < count; i++) {
+            batches[shardOf(instrumentIds[i])].add(instrumentIds[i], prices[i], utcTimestamps[i]);
+        }
+        offer(batches);
+    }
+
+    /**
+     * Runs the task on every shard thread after the quotes queued before this call.
+     * The future completes when all shards have run it.
+     */
+    public CompletableFuture<Void> executeOnAllShards(IntConsumer task) {
+        if (!running) {
+            throw new RejectedExecutionException("Shards are not running");
+        }
+        var result = new CompletableFuture<Void>();
+        var remaining = new AtomicInteger(shards.length);
+        for (Shard shard : shards) {
+            shard.controlTasks.add(() -> {
+                try {
+                    task.accept(shard.index);
+                } catch (Throwable e) {
+                    log.error("Task failed on shard {}", shard.index, e);
+                    result.completeExceptionally(e);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete(null);
+                    }
+                }
+            });
+            shard.wakeUp();
+        }
+        return result;
+    }
+
+    /** blocks until every quote queued before this call has been handled */
+    public void awaitProcessed() {
+        executeOnAllShards(shard -> { }).join();
+    }
+
+    /** queued elements of the shard, a batch counts once */
+    public int getQueueSize(int shard) {
+        return shards[shard].queue.size();
+    }
+
+    /** quotes handled by the shard thread */
+    public long getHandledCount(int shard) {
+        return shards[shard].handled.get();
+    }
+
+    /** time the shard thread spent in the handler */
+    public long getHandlingNanos(int shard) {
+        return shards[shard].handlingNanos.get();
+    }
+
+    /** quotes rejected because a shard queue was full or the shards were not running */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /** producers which waited for free space in a shard queue */
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    public long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    /** quotes spilled or conflated because a shard queue was full */
+    public long getOverflowedCount() {
+        return overflowed.sum();
+    }
+
+    /** quotes merged into an earlier quote by {@link OverloadPolicy#CONFLATE} */
+    public long getConflatedCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            if (shard.overflow instanceof ConflationBuffer) {
+                count += ((ConflationBuffer) shard.overflow).getConflated();
+            }
+        }
+        return count;
+    }
+
+    /** quotes of the shard waiting in its spill file or conflation buffer */
+    public long getOverflowSize(int shard) {
+        var overflow = shards[shard].overflow;
+        return overflow == null ? 0 : overflow.size();
+    }
+
+    private QuoteBatch[] split(int count, IntToLongFunction instrumentIds) {
+        if (!running) {
+            rejected.add(count);
+            throw new RejectedExecutionException("Shards are not running");
+        }
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < count; i++) {
+            counts[shardOf(instrumentIds.applyAsLong(i))]++;
+        }
+        var batches = new QuoteBatch[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            batches[i] = new QuoteBatch(counts[i]);
+        }
+        return batches;
+    }
+
+    private void offer(QuoteBatch[] batches) {
+        if (overloadPolicy == OverloadPolicy.REJECT) {
+            // rejects all batches while none is queued, so a sender retrying them doesn't repeat quotes on other shards
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i].size() > 0 && shards[i].queue.size() >= shards[i].queue.capacity()) {
+                    int count = 0;
+                    for (QuoteBatch batch : batches) {
+                        count += batch.size();
+                    }
+                    rejected.add(count);
+                    throw new RejectedExecutionException("Shard " + i + " queue is full");
+                }
+            }
+        }
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i].size() > 0) {
+                enqueue(shards[i], batches[i]);
+            }
+        }
+    }
+
+    /** @param element a quote or a quote batch */
+    private void enqueue(Shard shard, Object element) {
+        if (!shard.overflowing && shard.queue.offer(element)) {
+            shard.wakeUp();
+            return;
+        }
+        switch (overloadPolicy) {
+            case BLOCK:
+                block(shard, element);
+                break;
+            case SPILL:
+            case CONFLATE:
+                shard.overflow(element);
+                overflowed.add(sizeOf(element));
+                break;
+            default:
+                rejected.add(sizeOf(element));
+                throw new RejectedExecutionException("Shard " + shard.index + " queue is full");
+        }
+        shard.wakeUp();
+    }
+
+    private void block(Shard shard, Object element) {
+        long start = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        blocked.increment();
+        try {
+            do {
+                if (System.nanoTime() - start >= timeout || !running) {
+                    rejected.add(sizeOf(element));
+                    throw new RejectedExecutionException("Shard " + shard.index + " queue is full for " + blockTimeoutMillis + " ms");
+                }
+                shard.wakeUp();
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            } while (!shard.queue.offer(element));
+        } finally {
+            blockedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private QuoteOverflow createOverflow(int shard) {
+        switch (overloadPolicy) {
+            case SPILL:
+                try {
+                    Files.createDirectories(spillDirectory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to create " + spillDirectory, e);
+                }
+                return new SpillFile(spillDirectory.resolve("shard-" + shard + ".spill"));
+            case CONFLATE:
+                return new ConflationBuffer(conflationMillis);
+            default:
+                return null;
+        }
+    }
+
+    private static int sizeOf(Object element) {
+        return element instanceof QuoteBatch ? ((QuoteBatch) element).size() : 1;
+    }
+
+    private class Shard implements Runnable {
+        private final int index;
+        /** single quotes and quote batches */
+        private final MpscArrayQueue<Object> queue;
+        private final ConcurrentLinkedQueue<Runnable> controlTasks = new ConcurrentLinkedQueue<>();
+        /** written only by the shard thread once per drain */
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong handlingNanos = new AtomicLong();
+        private final QuoteBatch overflowBatch = new QuoteBatch(OVERFLOW_CHUNK);
+        private QuoteOverflow overflow;
+        /** set by producers under the overflow lock, cleared by the shard thread when the overflow is read */
+        private volatile boolean overflowing;
+        private volatile boolean parked;
+        private Thread thread;
+        private ShardHandler handler;
+        private IntConsumer timer;
+
+        Shard(int index, int queueCapacity) {
+            this.index = index;
+            this.queue = new MpscArrayQueue<>(queueCapacity);
+        }
+
+        void start(ShardHandler handler, IntConsumer timer) {
+            this.handler = handler;
+            this.timer = timer;
+            this.thread = new Thread(this, "quote-shard-" + index);
+            this.thread.setDaemon(true);
+            this.thread.setPriority(threadPriority);
+            this.thread.start();
+        }
+
+        void overflow(Object element) {
+            synchronized (overflow) {
+                if (element instanceof QuoteBatch) {
+                    var batch = (QuoteBatch) element;
+                    for (int i = 0; i < batch.size(); i++) {
+                        var quote = batch.at(i);
+                        overflow.add(quote.getInstrumentId(), quote.getPrice(), quote.getUtcTimestamp());
+                    }
+                } else {
+                    var quote = (Quote) element;
+                    overflow.add(quote.getInstrumentId(), quote.getPrice(), quote.getUtcTimestamp());
+                }
+                overflowing = true;
+            }
+        }
+
+        void wakeUp() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int idleCount = 0;
+            while (running) {
+                int work = drain(maxDrain, queue.capacity());
+                work += drainOverflow(Math.min(maxDrain, OVERFLOW_CHUNK));
+                work += runControlTasks();
+                runTimer();
+                if (work > 0) {
+                    idleCount = 0;
+                } else if (++idleCount < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    park();
+                }
+            }
+            drain(Integer.MAX_VALUE, Integer.MAX_VALUE);
+            drainOverflow(Long.MAX_VALUE);
+            runControlTasks();
+            // lets the timer flush what the last quotes left behind
+            runTimer();
+        }
+
+        /**
+         * stops after quoteLimit quotes or elementLimit queue elements, a batch is one element of many quotes
+         * @return count of the handled quotes
+         */
+        private int drain(int quoteLimit, int elementLimit) {
+            int count = 0;
+            int elements = 0;
+            var p = probe;
+            long start = System.nanoTime();
+            Object element;
+            while (count < quoteLimit && elements < elementLimit && (element = queue.poll()) != null) {
+                elements++;
+                if (element instanceof QuoteBatch) {
+                    var batch = (QuoteBatch) element;
+                    for (int i = 0; i < batch.size(); i++) {
+                        handle(batch.at(i), p);
+                    }
+                    count += batch.size();
+                } else {
+                    handle((Quote) element, p);
+                    count++;
+                }
+            }
+            record(count, start);
+            return count;
+        }
+
+        /** reads the overflow once the queue is empty, its quotes are newer than the queued ones */
+        private int drainOverflow(long limit) {
+            if (!overflowing || !queue.isEmpty()) {
+                return 0;
+            }
+            var p = probe;
+            long start = System.nanoTime();
+            int count = 0;
+            while (count < limit) {
+                int read = overflow.read(overflowBatch, (int) Math.min(OVERFLOW_CHUNK, limit - count));
+                if (read == 0) {
+                    synchronized (overflow) {
+                        if (overflow.size() == 0) {
+                            overflowing = false;
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                for (int i = 0; i < read; i++) {
+                    handle(overflowBatch.at(i), p);
+                }
+                count += read;
+            }
+            record(count, start);
+            return count;
+        }
+
+        private void record(int count, long start) {
+            if (count > 0) {
+                handlingNanos.lazySet(handlingNanos.get() + System.nanoTime() - start);
+                handled.lazySet(handled.get() + count);
+            }
+        }
+
+        private void handle(Quote quote, ShardHandler p) {
+            try {
+                handler.onQuote(index, quote);
+                if (p != null) {
+                    p.onQuote(index, quote);
+                }
+            } catch (Throwable e) {
+                // like a failing control task, an Error must not end the shard thread
+                log.error("Quote handling failed on shard {}", index, e);
+            }
+        }
+
+        private void runTimer() {
+            try {
+                timer.accept(index);
+            } catch (Throwable e) {
+                log.error("Timer failed on shard {}", index, e);
+            }
+        }
+
+        private int runControlTasks() {
+            int count = 0;
+            Runnable task;
+            while ((task = controlTasks.poll()) != null) {
+                // quotes offered before the task was queued must be handled first, they are all in the queue now
+                drain(Integer.MAX_VALUE, queue.size());
+                drainOverflow(overflow == null ? 0 : overflow.size());
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // an Error must not end the shard thread, later quotes and tasks would wait forever
+                    log.error("Control task failed on shard {}", index, e);
+                }
+                count++;
+            }
+            return count;
+        }
+
+        private void park() {
+            parked = true;
+            if (queue.isEmpty() && controlTasks.isEmpty() && !overflowing && running) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            parked = false;
+        }
+    }
+}
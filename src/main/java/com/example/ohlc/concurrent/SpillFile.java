@@ -0,0 +1,145 @@
+package com.example.ohlc.concurrent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file of quote records: instrumentId long, price double and utcTimestamp long, little-endian,
+ * behind a header of a magic number and the offset of the first unread record.
+ * Records are buffered and written in blocks, the file is truncated whenever it has been read to the end.
+ * The offset is written before records are handed to the shard, so a file left by a stopped process
+ * is read from where it stopped: a crash loses the unwritten buffer and the records being handled, none is handled twice.
+ */
+final class SpillFile implements QuoteOverflow {
+    private static final int RECORD_SIZE = 2 * Long.BYTES + Double.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** "OHLCSPL1" */
+    private static final long MAGIC = 0x4F484C4353504C31L;
+    private static final int HEADER_SIZE = 2 * Long.BYTES;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long writePosition;
+    private long readPosition;
+
+    SpillFile(Path path) {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < HEADER_SIZE) {
+                channel.truncate(0);
+                writePosition = HEADER_SIZE;
+                readPosition = HEADER_SIZE;
+                writeHeader();
+            } else {
+                readHeader();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open spill file " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void add(long instrumentId, double price, long utcTimestamp) {
+        if (writeBuffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        writeBuffer.putLong(instrumentId).putDouble(price).putLong(utcTimestamp);
+    }
+
+    @Override
+    public synchronized int read(QuoteBatch batch, int limit) {
+        batch.clear();
+        flush();
+        if (readPosition == writePosition) {
+            return 0;
+        }
+        int length = (int) Math.min(Math.min(limit, BUFFER_SIZE / RECORD_SIZE) * (long) RECORD_SIZE, writePosition - readPosition);
+        readBuffer.clear().limit(length);
+        try {
+            while (readBuffer.hasRemaining()) {
+                if (channel.read(readBuffer, readPosition + readBuffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + (readPosition + readBuffer.position()));
+                }
+            }
+            readPosition += length;
+            if (readPosition == writePosition) {
+                // a crash before the header is written leaves an offset past the end, which is read as empty
+                channel.truncate(HEADER_SIZE);
+                readPosition = HEADER_SIZE;
+                writePosition = HEADER_SIZE;
+            }
+            writeHeader();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spill file " + path, e);
+        }
+        for (int offset = 0; offset < length; offset += RECORD_SIZE) {
+            batch.add(readBuffer.getLong(offset), readBuffer.getDouble(offset + Long.BYTES),
+                    readBuffer.getLong(offset + Long.BYTES + Double.BYTES));
+        }
+        return batch.size();
+    }
+
+    @Override
+    public synchronized long size() {
+        return (writePosition - readPosition + writeBuffer.position()) / RECORD_SIZE;
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close spill file " + path, e);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of header");
+            }
+        }
+        if (header.getLong(0) != MAGIC) {
+            throw new IllegalStateException("Not a spill file or written by an older version, move it away: " + path);
+        }
+        writePosition = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        long offset = header.getLong(Long.BYTES);
+        readPosition = offset < HEADER_SIZE || offset > writePosition || (offset - HEADER_SIZE) % RECORD_SIZE != 0
+                ? writePosition : offset;
+    }
+
+    private void writeHeader() throws IOException {
+        header.clear();
+        header.putLong(0, MAGIC).putLong(Long.BYTES, readPosition);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private void flush() {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                writePosition += channel.write(writeBuffer, writePosition);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write spill file " + path, e);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+}
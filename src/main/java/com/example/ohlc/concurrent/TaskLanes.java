@@ -0,0 +1,175 @@
+package com.example.ohlc.concurrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Worker lanes for the work done off the quote shards. Every lane has its own threads, bounded queue
+ * and thread priority, so a burst of one kind of tasks never delays or rejects the others.
+ * Quote ingestion and bar closing run on the threads of {@link QuoteShardExecutor}, a lane of their own.
+ * A task which doesn't fit into its full lane runs on the caller thread, which slows the producer down.
+ * Every lane records how long its tasks waited for a thread.
+ * With virtual threads the lanes keep their limits, but a task blocked on the database holds no platform thread.
+ */
+@Slf4j
+public class TaskLanes {
+
+    public enum Lane {
+        /** writes of closed bars */
+        PERSISTENCE,
+        /** checkpoints and other housekeeping which may take a while */
+        MAINTENANCE
+    }
+
+    private final LaneExecutor[] lanes = new LaneExecutor[Lane.values().length];
+    private final int[] threads = new int[Lane.values().length];
+    private final int[] queueCapacities = new int[Lane.values().length];
+    private final int[] priorities = new int[Lane.values().length];
+    private boolean virtualThreads;
+    private volatile boolean started;
+
+    public TaskLanes() {
+        for (Lane lane : Lane.values()) {
+            configure(lane, 1, 100, Thread.NORM_PRIORITY);
+        }
+    }
+
+    /** set before start */
+    public void configure(Lane lane, int threadCount, int queueCapacity, int priority) {
+        if (threadCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Lane " + lane + " needs a thread and a queue: " + threadCount + ", " + queueCapacity);
+        }
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Priority of lane " + lane + " is out of range: " + priority);
+        }
+        threads[lane.ordinal()] = threadCount;
+        queueCapacities[lane.ordinal()] = queueCapacity;
+        priorities[lane.ordinal()] = priority;
+    }
+
+    /** set before start, lane threads are virtual and ignore their priority, see {@link VirtualThreads} */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21, running on " + Runtime.version());
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException("Lanes are already started");
+        }
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            lanes[i] = new LaneExecutor(lane, threads[i], queueCapacities[i], priorities[i], virtualThreads);
+        }
+        started = true;
+    }
+
+    /** lets the queued tasks finish */
+    public synchronized void shutdown() {
+        if (!started) {
+            return;
+        }
+        for (LaneExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        for (LaneExecutor lane : lanes) {
+            try {
+                if (!lane.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.warn("Tasks of lane {} did not finish in time", lane.lane);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void execute(Lane lane, Runnable task) {
+        if (!started) {
+            throw new RejectedExecutionException("Lanes are not started");
+        }
+        lanes[lane.ordinal()].executeTimed(task);
+    }
+
+    public int getQueueSize(Lane lane) {
+        return started ? lanes[lane.ordinal()].getQueue().size() : 0;
+    }
+
+    public int getActiveCount(Lane lane) {
+        return started ? lanes[lane.ordinal()].getActiveCount() : 0;
+    }
+
+    /** tasks which started, on a lane thread or on the caller */
+    public long getWaitCount(Lane lane) {
+        return started ? lanes[lane.ordinal()].waitCount.sum() : 0;
+    }
+
+    public long getWaitNanos(Lane lane) {
+        return started ? lanes[lane.ordinal()].waitNanos.sum() : 0;
+    }
+
+    public long getLastWaitNanos(Lane lane) {
+        return started ? lanes[lane.ordinal()].lastWaitNanos.get() : 0;
+    }
+
+    /** tasks run by the caller because the lane was full */
+    public long getCallerRunsCount(Lane lane) {
+        return started ? lanes[lane.ordinal()].callerRuns.sum() : 0;
+    }
+
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+        private final Lane lane;
+        private final LongAdder waitCount = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final AtomicLong lastWaitNanos = new AtomicLong();
+        private final LongAdder callerRuns = new LongAdder();
+
+        private LaneExecutor(Lane lane, int threads, int queueCapacity, int priority, boolean virtual) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity));
+            this.lane = lane;
+            var name = "lane-" + lane.name().toLowerCase() + "-";
+            if (virtual) {
+                setThreadFactory(VirtualThreads.newThreadFactory(name));
+            } else {
+                var count = new AtomicInteger();
+                setThreadFactory(task -> {
+                    var thread = new Thread(task, name + count.incrementAndGet());
+                    thread.setPriority(priority);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            setRejectedExecutionHandler((task, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Lane " + lane + " is shut down");
+                }
+                callerRuns.increment();
+                task.run();
+            });
+        }
+
+        private void executeTimed(Runnable task) {
+            long queued = System.nanoTime();
+            execute(() -> {
+                long wait = System.nanoTime() - queued;
+                waitNanos.add(wait);
+                waitCount.increment();
+                lastWaitNanos.lazySet(wait);
+                task.run();
+            });
+        }
+    }
+}
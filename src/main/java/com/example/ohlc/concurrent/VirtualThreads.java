@@ -0,0 +1,69 @@
+package com.example.ohlc.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of Java 21 for a build which targets Java 11: the API is looked up at runtime,
+ * so the same jar runs with platform threads on older JDKs. Virtual threads suit blocking work only,
+ * CPU-bound work like quote aggregation stays on platform threads.
+ */
+public final class VirtualThreads {
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle FACTORY;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+        try {
+            var lookup = MethodHandles.publicLookup();
+            var builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(builder));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class, long.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /** true on Java 21 and later */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /** virtual threads named prefix0, prefix1 and so on */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21, running on " + Runtime.version());
+        }
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(), prefix, 0L));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to create virtual threads", e);
+        }
+    }
+
+    /** an unbounded executor which starts a virtual thread for every task */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        var factory = newThreadFactory(prefix);
+        try {
+            var newExecutor = MethodHandles.publicLookup().findStatic(Executors.class,
+                    "newThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+            return (ExecutorService) newExecutor.invoke(factory);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.ohlc.config;
+
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.TaskLanes;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.service.impl.BarPublisher;
+import com.example.ohlc.service.impl.OhlcServiceImpl;
+import com.example.ohlc.service.impl.OhlcStorageImpl;
+import com.example.ohlc.service.impl.RecentBarCache;
+import com.example.ohlc.service.impl.ShardStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Meters read the counters the shards, the task lanes and the storage keep anyway,
+ * nothing is recorded into Micrometer on the quote path.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+    @Bean
+    @Profile("!backfill")
+    public MeterBinder quoteMetrics(QuoteShardExecutor quoteShardExecutor, OhlcServiceImpl ohlcService) {
+        return registry -> {
+            FunctionCounter.builder("ohlc.quote.rejected", quoteShardExecutor, QuoteShardExecutor::getRejectedCount)
+                    .description("Quotes rejected by a full shard queue")
+                    .register(registry);
+            FunctionTimer.builder("ohlc.quote.blocked", quoteShardExecutor,
+                            QuoteShardExecutor::getBlockedCount, QuoteShardExecutor::getBlockedNanos, TimeUnit.NANOSECONDS)
+                    .description("Producers waiting for free space in a full shard queue")
+                    .register(registry);
+            FunctionCounter.builder("ohlc.quote.overflowed", quoteShardExecutor, QuoteShardExecutor::getOverflowedCount)
+                    .description("Quotes spilled or conflated because a shard queue was full")
+                    .register(registry);
+            FunctionCounter.builder("ohlc.quote.conflated", quoteShardExecutor, QuoteShardExecutor::getConflatedCount)
+                    .description("Quotes merged into an earlier quote of the same window")
+                    .register(registry);
+            for (int i = 0; i < quoteShardExecutor.getShardCount(); i++) {
+                int shard = i;
+                String tag = String.valueOf(shard);
+                Gauge.builder("ohlc.shard.queue", quoteShardExecutor, e -> e.getQueueSize(shard))
+                        .description("Queued quotes and quote batches")
+                        .tag("shard", tag)
+                        .register(registry);
+                Gauge.builder("ohlc.shard.overflow", quoteShardExecutor, e -> e.getOverflowSize(shard))
+                        .description("Quotes waiting in the spill file or conflation buffer")
+                        .tag("shard", tag)
+                        .register(registry);
+                FunctionTimer.builder("ohlc.quote.processing", quoteShardExecutor,
+                                e -> e.getHandledCount(shard), e -> e.getHandlingNanos(shard), TimeUnit.NANOSECONDS)
+                        .description("Time the shard thread spent handling quotes")
+                        .tag("shard", tag)
+                        .register(registry);
+                var stats = ohlcService.getShardStats(shard);
+                timer(registry, "ohlc.quote.lag", "Event time lag of sampled quotes", tag, stats,
+                        ShardStats::getLagSamples, ShardStats::getLagMillis, TimeUnit.MILLISECONDS);
+                Gauge.builder("ohlc.quote.lag.last", stats, ShardStats::getLastLagMillis)
+                        .description("Event time lag of the last sampled quote")
+                        .tag("shard", tag)
+                        .baseUnit("milliseconds")
+                        .register(registry);
+                timer(registry, "ohlc.close.period", "Closing of expired bars", tag, stats,
+                        ShardStats::getCloseCount, ShardStats::getCloseNanos, TimeUnit.NANOSECONDS);
+                timer(registry, "ohlc.close.delay", "Delay of closing behind the earliest bar deadline", tag, stats,
+                        ShardStats::getCloseDelays, ShardStats::getCloseDelayMillis, TimeUnit.MILLISECONDS);
+                Gauge.builder("ohlc.close.delay.last", stats, ShardStats::getLastCloseDelayMillis)
+                        .description("Delay of the last closing behind the earliest bar deadline")
+                        .tag("shard", tag)
+                        .baseUnit("milliseconds")
+                        .register(registry);
+                FunctionCounter.builder("ohlc.bars.closed", stats, ShardStats::getBarsClosed)
+                        .description("Bars closed at the end of their period")
+                        .tag("shard", tag)
+                        .register(registry);
+                timer(registry, "ohlc.storage.store", "Storing closed bars", tag, stats,
+                        ShardStats::getStoreCount, ShardStats::getStoreNanos, TimeUnit.NANOSECONDS);
+                FunctionCounter.builder("ohlc.quotes.late", stats, ShardStats::getLateQuotes)
+                        .description("Out-of-order quotes merged within the reorder window")
+                        .tag("shard", tag)
+                        .register(registry);
+                FunctionCounter.builder("ohlc.bars.amended", stats, ShardStats::getAmendedBars)
+                        .description("Stored bars amended by quotes later than the reorder window")
+                        .tag("shard", tag)
+                        .register(registry);
+            }
+            for (OhlcPeriod period : OhlcPeriod.values()) {
+                Gauge.builder("ohlc.bars.live", ohlcService, s -> liveBars(s, quoteShardExecutor.getShardCount(), period))
+                        .description("Current bars")
+                        .tag("period", period.name())
+                        .register(registry);
+            }
+            FunctionTimer.builder("ohlc.storage.historical", ohlcService,
+                            OhlcServiceImpl::getHistoricalCount, OhlcServiceImpl::getHistoricalNanos, TimeUnit.NANOSECONDS)
+                    .description("Historical queries")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder storageMetrics(Optional<OhlcStorageImpl> ohlcStorage, RecentBarCache recentBarCache) {
+        return registry -> {
+            ohlcStorage.ifPresent(storage -> {
+                Gauge.builder("ohlc.storage.backlog", storage, OhlcStorageImpl::getBacklog)
+                        .description("Closed bars which are not committed yet")
+                        .register(registry);
+                FunctionTimer.builder("ohlc.storage.batch", storage,
+                                OhlcStorageImpl::getBatchCount, OhlcStorageImpl::getBatchNanos, TimeUnit.NANOSECONDS)
+                        .description("Committed batches")
+                        .register(registry);
+                FunctionCounter.builder("ohlc.storage.batch.bars", storage, OhlcStorageImpl::getBatchBars)
+                        .description("Bars of the committed batches")
+                        .register(registry);
+                FunctionCounter.builder("ohlc.storage.dropped.bars", storage, OhlcStorageImpl::getDroppedBars)
+                        .description("Bars the database refused after all retries")
+                        .register(registry);
+            });
+            FunctionCounter.builder("ohlc.cache.hits", recentBarCache, RecentBarCache::getHits)
+                    .register(registry);
+            FunctionCounter.builder("ohlc.cache.misses", recentBarCache, RecentBarCache::getMisses)
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder laneMetrics(TaskLanes taskLanes) {
+        return registry -> {
+            for (TaskLanes.Lane lane : TaskLanes.Lane.values()) {
+                String tag = lane.name().toLowerCase();
+                FunctionTimer.builder("ohlc.lane.wait", taskLanes,
+                                l -> l.getWaitCount(lane), l -> l.getWaitNanos(lane), TimeUnit.NANOSECONDS)
+                        .description("Time tasks waited for a lane thread")
+                        .tag("lane", tag)
+                        .register(registry);
+                Gauge.builder("ohlc.lane.wait.last", taskLanes, l -> l.getLastWaitNanos(lane) / 1_000_000.0)
+                        .description("Wait of the last task started on the lane")
+                        .tag("lane", tag)
+                        .baseUnit("milliseconds")
+                        .register(registry);
+                Gauge.builder("ohlc.lane.queue", taskLanes, l -> l.getQueueSize(lane))
+                        .description("Tasks waiting for a lane thread")
+                        .tag("lane", tag)
+                        .register(registry);
+                Gauge.builder("ohlc.lane.active", taskLanes, l -> l.getActiveCount(lane))
+                        .description("Lane threads running a task")
+                        .tag("lane", tag)
+                        .register(registry);
+                FunctionCounter.builder("ohlc.lane.caller.runs", taskLanes, l -> l.getCallerRunsCount(lane))
+                        .description("Tasks run by the caller because the lane was full")
+                        .tag("lane", tag)
+                        .register(registry);
+            }
+        };
+    }
+
+    @Bean
+    @Profile("!backfill")
+    public MeterBinder streamMetrics(BarPublisher barPublisher) {
+        return registry -> {
+            Gauge.builder("ohlc.stream.subscribers", barPublisher, BarPublisher::getSubscriberCount)
+                    .description("Connected bar stream subscribers")
+                    .register(registry);
+            Gauge.builder("ohlc.stream.topics", barPublisher, BarPublisher::getTopicCount)
+                    .description("Bars with at least one subscriber")
+                    .register(registry);
+            FunctionCounter.builder("ohlc.stream.sent", barPublisher, BarPublisher::getSentCount)
+                    .description("Bars sent to subscribers")
+                    .register(registry);
+            FunctionCounter.builder("ohlc.stream.dropped", barPublisher, BarPublisher::getDroppedCount)
+                    .description("Subscribers dropped as slow consumers")
+                    .register(registry);
+        };
+    }
+
+    private static void timer(MeterRegistry registry, String name, String description,
+                              String shard, ShardStats stats, ToLongFunction<ShardStats> count,
+                              ToLongFunction<ShardStats> total, TimeUnit unit) {
+        FunctionTimer.builder(name, stats, count, s -> total.applyAsLong(s), unit)
+                .description(description)
+                .tag("shard", shard)
+                .register(registry);
+    }
+
+    private static double liveBars(OhlcServiceImpl ohlcService, int shardCount, OhlcPeriod period) {
+        long count = 0;
+        for (int i = 0; i < shardCount; i++) {
+            count += ohlcService.getShardStats(i).getLiveBars(period);
+        }
+        return count;
+    }
+}
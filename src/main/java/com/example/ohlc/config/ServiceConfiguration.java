@@ -1,27 +1,94 @@
 package com.example.ohlc.config;
 
+import com.example.ohlc.concurrent.OverloadPolicy;
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.TaskLanes;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.service.impl.RecentBarCache;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.context.annotation.Profile;
+
+import java.nio.file.Paths;
+import java.time.Clock;
 
 @Configuration
 public class ServiceConfiguration {
 
-    @Value("${executor.core.thread.pool}")
-    private int coreThreadPool;
-    @Value("${executor.max.pool.size}")
-    private int maxPoolSize;
-    @Value("${executor.queue.capacity}")
-    private int queueCapacity;
+    @Value("${executor.lane.persistence.threads}")
+    private int persistenceThreads;
+    @Value("${executor.lane.persistence.queue.capacity}")
+    private int persistenceQueueCapacity;
+    @Value("${executor.lane.persistence.priority}")
+    private int persistencePriority;
+    @Value("${executor.lane.maintenance.threads}")
+    private int maintenanceThreads;
+    @Value("${executor.lane.maintenance.queue.capacity}")
+    private int maintenanceQueueCapacity;
+    @Value("${executor.lane.maintenance.priority}")
+    private int maintenancePriority;
+    @Value("${executor.virtual.threads}")
+    private boolean virtualThreads;
+    @Value("${executor.shard.count}")
+    private int shardCount;
+    @Value("${executor.shard.queue.capacity}")
+    private int shardQueueCapacity;
+    @Value("${executor.shard.overload.policy}")
+    private OverloadPolicy overloadPolicy;
+    @Value("${executor.shard.block.timeout.ms}")
+    private long blockTimeoutMillis;
+    @Value("${executor.shard.spill.dir}")
+    private String spillDirectory;
+    @Value("${executor.shard.conflation.ms}")
+    private long conflationMillis;
+    @Value("${executor.shard.priority}")
+    private int shardPriority;
+    @Value("${executor.shard.max.drain}")
+    private int shardMaxDrain;
+    @Value("${storage.cache.bars}")
+    private int cacheBars;
+    /** 0 for a series of every period of the expected instruments */
+    @Value("${storage.cache.max.series}")
+    private int cacheMaxSeries;
+    @Value("${ohlc.expected.instruments}")
+    private int expectedInstruments;
+    @Value("${ohlc.periods}")
+    private OhlcPeriod[] periods;
+    @Value("${storage.cache.idle.ms}")
+    private long cacheIdleMillis;
+
+    @Bean(destroyMethod = "shutdown")
+    public TaskLanes taskLanes() {
+        var lanes = new TaskLanes();
+        lanes.configure(TaskLanes.Lane.PERSISTENCE, persistenceThreads, persistenceQueueCapacity, persistencePriority);
+        lanes.configure(TaskLanes.Lane.MAINTENANCE, maintenanceThreads, maintenanceQueueCapacity, maintenancePriority);
+        lanes.setVirtualThreads(virtualThreads);
+        lanes.start();
+        return lanes;
+    }
+
+    @Bean
+    public Clock clock() {
+        return Clock.systemUTC();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    @Profile("!backfill")
+    public QuoteShardExecutor quoteShardExecutor() {
+        var executor = new QuoteShardExecutor(shardCount, shardQueueCapacity);
+        executor.setOverloadPolicy(overloadPolicy);
+        executor.setBlockTimeoutMillis(blockTimeoutMillis);
+        executor.setSpillDirectory(Paths.get(spillDirectory));
+        executor.setConflationMillis(conflationMillis, periods);
+        executor.setThreadPriority(shardPriority);
+        executor.setMaxDrain(shardMaxDrain);
+        return executor;
+    }
 
     @Bean
-    public ThreadPoolTaskExecutor threadPoolTaskExecutor() {
-        ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
-        taskExecutor.setCorePoolSize(coreThreadPool);
-        taskExecutor.setMaxPoolSize(maxPoolSize);
-        taskExecutor.setQueueCapacity(queueCapacity);
-        taskExecutor.afterPropertiesSet();
-        return taskExecutor;
+    public RecentBarCache recentBarCache(Clock clock) {
+        int maxSeries = cacheMaxSeries > 0 ? cacheMaxSeries : expectedInstruments * periods.length;
+        return new RecentBarCache(cacheBars, maxSeries, cacheIdleMillis, clock);
     }
 }
@@ -0,0 +1,22 @@
+package com.example.ohlc.config;
+
+import com.example.ohlc.concurrent.VirtualThreads;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Handles every web request on its own virtual thread instead of the bounded Tomcat pool,
+ * so thousands of concurrent history reads can wait on the database. Needs Java 21.
+ */
+@Configuration
+@ConditionalOnProperty(name = "executor.virtual.threads", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadRequests() {
+        var executor = VirtualThreads.newThreadPerTaskExecutor("http-");
+        return protocolHandler -> protocolHandler.setExecutor(executor);
+    }
+}
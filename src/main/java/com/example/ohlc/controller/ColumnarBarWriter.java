@@ -0,0 +1,133 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.service.BarVisitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes bars in the order they are visited as application/x-ohlc-columnar, blocks of up to 1024 bars
+ * are buffered in primitive columns, so any number of bars takes constant memory.
+ * <pre>
+ * header: "OHLC", version 1, scale byte (-1 for raw doubles), instrumentId varlong, period name length byte and ASCII
+ * block:  bar count varint, startPeriod column, open, high, low and close columns
+ * end:    a block with 0 bars
+ * </pre>
+ * Varints are unsigned LEB128, signed values are zigzag encoded. The startPeriod column holds the first start
+ * and then the differences from the previous start. A price column holds little endian doubles
+ * or, with a scale, round(price * 10^scale) as differences from the previous price of the column.
+ */
+public class ColumnarBarWriter implements BarVisitor {
+    public static final String MEDIA_TYPE = "application/x-ohlc-columnar";
+    public static final int MAX_SCALE = 9;
+    static final int BLOCK_SIZE = 1024;
+    private static final byte VERSION = 1;
+
+    private final OutputStream out;
+    private final int scale;
+    private final double factor;
+    private final long[] starts = new long[BLOCK_SIZE];
+    private final double[][] prices = new double[4][BLOCK_SIZE];
+    /** the header and a block of five varlongs per bar at most */
+    private final byte[] buffer = new byte[32 + 2 + BLOCK_SIZE * 5 * 10];
+    private int count;
+    private int position;
+
+    /** @param scale decimal places kept of the prices, -1 to write them as doubles */
+    public ColumnarBarWriter(OutputStream out, long instrumentId, OhlcPeriod period, int scale) {
+        if (scale < -1 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Scale must be from -1 to " + MAX_SCALE + " but was " + scale);
+        }
+        this.out = out;
+        this.scale = scale;
+        this.factor = Math.pow(10, Math.max(scale, 0));
+        buffer[position++] = 'O';
+        buffer[position++] = 'H';
+        buffer[position++] = 'L';
+        buffer[position++] = 'C';
+        buffer[position++] = VERSION;
+        buffer[position++] = (byte) scale;
+        putVarLong(instrumentId);
+        var name = period.name().getBytes(StandardCharsets.US_ASCII);
+        buffer[position++] = (byte) name.length;
+        System.arraycopy(name, 0, buffer, position, name.length);
+        position += name.length;
+    }
+
+    @Override
+    public void visit(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+        starts[count] = startPeriod;
+        prices[0][count] = openPrice;
+        prices[1][count] = highPrice;
+        prices[2][count] = lowPrice;
+        prices[3][count] = closePrice;
+        if (++count == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /** writes the last block and the end of the stream, the stream is flushed but not closed */
+    public void finish() {
+        if (count > 0) {
+            writeBlock();
+        }
+        writeBlock();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeBlock() {
+        putVarLong(count);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            putVarLong(zigzag(starts[i] - previous));
+            previous = starts[i];
+        }
+        for (double[] column : prices) {
+            if (scale < 0) {
+                for (int i = 0; i < count; i++) {
+                    putLong(Double.doubleToRawLongBits(column[i]));
+                }
+            } else {
+                previous = 0;
+                for (int i = 0; i < count; i++) {
+                    long scaled = Math.round(column[i] * factor);
+                    putVarLong(zigzag(scaled - previous));
+                    previous = scaled;
+                }
+            }
+        }
+        try {
+            out.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+        count = 0;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            buffer[position++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarSink;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes bars as server-sent events named bar with non-blocking servlet output, so a slow client holds no thread.
+ * The container keeps what the client didn't take yet and the publisher sends again only once it was written,
+ * so the buffer of a client never holds more than one send.
+ */
+class EventStreamSink implements BarSink, WriteListener {
+    private static final byte[] EVENT = "event:bar\ndata:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = "\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final ObjectMapper objectMapper;
+    private boolean closed;
+
+    EventStreamSink(AsyncContext context, ObjectMapper objectMapper) throws IOException {
+        this.context = context;
+        this.out = context.getResponse().getOutputStream();
+        this.objectMapper = objectMapper;
+        out.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return !closed && out.isReady();
+    }
+
+    @Override
+    public synchronized void send(List<Ohlc> bars) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        var events = new ByteArrayOutputStream();
+        for (Ohlc bar : bars) {
+            events.write(EVENT);
+            events.write(objectMapper.writeValueAsBytes(bar));
+            events.write(END);
+        }
+        out.write(events.toByteArray());
+        if (out.isReady()) {
+            out.flush();
+        }
+    }
+
+    /** the publisher asks isReady on every tick, so there is nothing to resume here */
+    @Override
+    public void onWritePossible() {
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    /** completes the response, a write still pending is abandoned with the connection */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            context.complete();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.service.impl.RecentBarCache;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Maintenance of a serving instance, e.g. POST /ohlc/admin/cache/evict?ids=1,2 after a backfill
+ * replaced stored bars the recent bar cache of the instance still holds.
+ */
+@RestController
+@RequestMapping("/ohlc/admin")
+@RequiredArgsConstructor
+public class OhlcAdminController {
+    private final RecentBarCache recentBarCache;
+
+    /** drops the cached bars of the instruments, of all instruments without ids, so they are read from the storage again */
+    @PostMapping("/cache/evict")
+    public void evictCache(@RequestParam(required = false) List<Long> ids) {
+        if (ids == null) {
+            recentBarCache.clear();
+            return;
+        }
+        for (Long instrumentId : ids) {
+            for (OhlcPeriod period : OhlcPeriod.values()) {
+                recentBarCache.evict(instrumentId, period);
+            }
+        }
+    }
+}
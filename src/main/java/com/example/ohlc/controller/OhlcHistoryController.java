@@ -0,0 +1,160 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.IntervalBar;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Historical bars, e.g. /ohlc/1/M1?from=1646092800000&to=1646179200000&current=true,
+ * of a watchlist, e.g. /ohlc/watchlist/M1?ids=1,2,3&limit=100&current=true,
+ * or of any number of minutes, e.g. /ohlc/1/interval?minutes=120&from=1640995200000&to=1672531200000.
+ * Clients naming application/x-ohlc-columnar in their Accept header get {@link ColumnarBarWriter} blocks streamed
+ * from the storage, all others get a JSON array. Responses are gzipped for clients accepting it, see server.compression.
+ */
+@RestController
+@Profile("!backfill")
+@RequestMapping("/ohlc")
+@RequiredArgsConstructor
+public class OhlcHistoryController {
+    static final int MAX_WATCHLIST_SIZE = 1000;
+    /** bars per instrument of a watchlist, so a watchlist without a range never reads whole histories */
+    static final int MAX_WATCHLIST_LIMIT = 1000;
+
+    private static final MediaType COLUMNAR = MediaType.parseMediaType(ColumnarBarWriter.MEDIA_TYPE);
+
+    private final OhlcService ohlcService;
+    private final ObjectMapper objectMapper;
+    private ObjectWriter jsonWriter;
+
+    /** the response stream is closed by the servlet container, not by Jackson */
+    @PostConstruct
+    public void start() {
+        jsonWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * Bars in descending order of start, the current bar first if requested. Columnar only for clients which name
+     * {@link ColumnarBarWriter#MEDIA_TYPE} in their Accept header, JSON for all others, whatever they accept.
+     * The columnar bars are streamed from the storage, the JSON bars are read before the response starts.
+     * @param scale decimal places of the columnar prices, -1 for doubles
+     */
+    @GetMapping(path = "/{instrumentId}/{period}")
+    public ResponseEntity<StreamingResponseBody> getHistorical(@PathVariable long instrumentId, @PathVariable OhlcPeriod period,
+                                                               @RequestParam(required = false) Long from,
+                                                               @RequestParam(required = false) Long to,
+                                                               @RequestParam(required = false) Integer limit,
+                                                               @RequestParam(defaultValue = "false") boolean current,
+                                                               @RequestParam(defaultValue = "-1") int scale,
+                                                               @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (scale < -1 || scale > ColumnarBarWriter.MAX_SCALE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Scale must be from -1 to " + ColumnarBarWriter.MAX_SCALE);
+        }
+        long start = from != null ? from : Long.MIN_VALUE;
+        long end = to != null ? to : Long.MAX_VALUE;
+        int max = limitOf(limit);
+        if (!acceptsColumnar(accept)) {
+            var bars = current
+                    ? ohlcService.getHistoricalAndCurrent(instrumentId, period, start, end, max)
+                    : ohlcService.getHistorical(instrumentId, period, start, end, max);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> jsonWriter.writeValue(out, bars));
+        }
+        return ResponseEntity.ok()
+                .contentType(COLUMNAR)
+                .body(out -> {
+                    var writer = new ColumnarBarWriter(out, instrumentId, period, scale);
+                    if (current) {
+                        ohlcService.forEachHistoricalAndCurrent(instrumentId, period, start, end, max, writer);
+                    } else {
+                        ohlcService.forEachHistorical(instrumentId, period, start, end, max, writer);
+                    }
+                    writer.finish();
+                });
+    }
+
+    /**
+     * bars of every instrument by id, limit applies per instrument and is at most {@link #MAX_WATCHLIST_LIMIT},
+     * which is also the default, the current bars are always included
+     */
+    @GetMapping(path = "/watchlist/{period}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<Long, List<Ohlc>> getWatchlist(@PathVariable OhlcPeriod period, @RequestParam List<Long> ids,
+                                              @RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                                              @RequestParam(required = false) Integer limit) {
+        var instrumentIds = new LinkedHashSet<>(ids);
+        if (instrumentIds.isEmpty() || instrumentIds.size() > MAX_WATCHLIST_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A watchlist must have from 1 to " + MAX_WATCHLIST_SIZE + " instruments");
+        }
+        long start = from != null ? from : Long.MIN_VALUE;
+        long end = to != null ? to : Long.MAX_VALUE;
+        int max = limit != null ? limitOf(limit) : MAX_WATCHLIST_LIMIT;
+        if (max > MAX_WATCHLIST_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A watchlist limit must be at most " + MAX_WATCHLIST_LIMIT);
+        }
+        return ohlcService.getHistoricalAndCurrent(instrumentIds, period, start, end, max);
+    }
+
+    /** bars of the interval in descending order of start, the current bars included */
+    @GetMapping(path = "/{instrumentId}/interval", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<IntervalBar> getIntervalBars(@PathVariable long instrumentId, @RequestParam long minutes,
+                                             @RequestParam long from, @RequestParam long to) {
+        try {
+            return ohlcService.getIntervalBars(instrumentId, Math.multiplyExact(minutes, OhlcPeriod.M1.getMillis()), from, to);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    /** wildcards don't count, a client which accepts anything gets JSON */
+    private static boolean acceptsColumnar(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        for (MediaType mediaType : mediaTypes) {
+            if (COLUMNAR.equalsTypeAndSubtype(mediaType) && mediaType.getQualityValue() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int limitOf(Integer limit) {
+        if (limit == null) {
+            return Integer.MAX_VALUE;
+        }
+        if (limit < 1) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be positive");
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.BarKey;
+import com.example.ohlc.service.impl.BarPublisher;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@RestController
+@Profile("!backfill")
+@RequestMapping("/ohlc")
+@RequiredArgsConstructor
+public class OhlcStreamController {
+    private final BarPublisher barPublisher;
+    private final ObjectMapper objectMapper;
+    @Value("${stream.emitter.timeout.ms}")
+    private long timeoutMillis;
+
+    /**
+     * Server-sent events named bar with the current bars, e.g. /ohlc/stream?bar=1:M1&bar=2:H1&maxRate=4
+     * @param bars instrumentId:period of every bar
+     * @param maxRate sends per second, 0 for the server limit
+     */
+    @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public void stream(@RequestParam("bar") List<String> bars, @RequestParam(defaultValue = "0") int maxRate,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        var keys = new ArrayList<BarKey>(bars.size());
+        try {
+            for (String bar : bars) {
+                keys.add(BarKey.parse(bar));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        var context = request.startAsync();
+        context.setTimeout(timeoutMillis);
+        var subscriber = barPublisher.subscribe(keys, maxRate, new EventStreamSink(context, objectMapper));
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                barPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                barPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                barPublisher.unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+}
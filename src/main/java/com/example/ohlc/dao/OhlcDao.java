@@ -2,12 +2,31 @@ package com.example.ohlc.dao;
 
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
 
 import java.util.List;
+import java.util.Set;
 
 public interface OhlcDao {
     void store(Ohlc ohlc);
+    /** upserts OHLCs by (instrumentId, period, startPeriod) with a JDBC batch of updates and one of inserts of the missing rows */
+    void storeAll(List<Ohlc> ohlcs);
+    /**
+     * widens the stored OHLCs by the high and low of the given ones in the database, without reading them first,
+     * and inserts the given OHLCs which are not stored; several of the same key are inserted as one
+     */
+    void amendAll(List<Ohlc> ohlcs);
+    /** deletes OHLCs with from <= startPeriod < to */
+    int delete(long instrumentId, OhlcPeriod period, long from, long to);
     /** loads OHLCs from DB selected by parameters and sorted by
      periodStartUtcTimestamp in descending order */
     List<Ohlc> getHistorical (long instrumentId, OhlcPeriod period);
+    /** loads at most limit newest OHLCs with from <= startPeriod < to,
+     sorted by startPeriod in descending order */
+    List<Ohlc> getHistorical (long instrumentId, OhlcPeriod period, long from, long to, int limit);
+    /** loads at most limit newest OHLCs of every instrument with from <= startPeriod < to in one query,
+     sorted by instrumentId and startPeriod in descending order */
+    List<Ohlc> getHistorical(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit);
+    /** visits the rows getHistorical(instrumentId, period, from, to, limit) returns while reading the result set */
+    void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor);
 }
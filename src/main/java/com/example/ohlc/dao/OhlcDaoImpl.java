@@ -2,20 +2,197 @@ package com.example.ohlc.dao;
 
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 @Repository
+@RequiredArgsConstructor
 public class OhlcDaoImpl implements OhlcDao {
+    /** the upsert is an update and an insert of the rows it did not find, it needs no vendor specific merge */
+    private static final String UPDATE = "update ohlc set open_price = ?, high_price = ?, low_price = ?, close_price = ? "
+            + "where instrument_id = ? and period = ? and start_period = ?";
+    private static final String AMEND = "update ohlc set high_price = greatest(high_price, ?), low_price = least(low_price, ?) "
+            + "where instrument_id = ? and period = ? and start_period = ?";
+    private static final String INSERT = "insert into ohlc (open_price, high_price, low_price, close_price, instrument_id, period, start_period) "
+            + "values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT = "select instrument_id, period, start_period, open_price, high_price, low_price, close_price from ohlc ";
+    private static final String SELECT_RANGE = SELECT + "where instrument_id = ? and period = ? "
+            + "and start_period >= ? and start_period < ? order by start_period desc limit ?";
+    private static final String WHERE_INSTRUMENTS = "where instrument_id in (%s) and period = ? and start_period >= ? and start_period < ? ";
+    /** numbers the bars of every instrument newest first, so the limit applies per instrument */
+    private static final String SELECT_INSTRUMENTS_LIMITED = "select instrument_id, period, start_period, open_price, high_price, low_price, close_price "
+            + "from (select instrument_id, period, start_period, open_price, high_price, low_price, close_price, "
+            + "row_number() over (partition by instrument_id order by start_period desc) as rn from ohlc " + WHERE_INSTRUMENTS
+            + ") as numbered where rn <= ? order by instrument_id, start_period desc";
+    private static final String SELECT_INSTRUMENTS = SELECT + WHERE_INSTRUMENTS + "order by instrument_id, start_period desc";
+    private static final RowMapper<Ohlc> OHLC_MAPPER = (rs, rowNum) -> Ohlc.builder()
+            .instrumentId(rs.getLong("instrument_id"))
+            .period(OhlcPeriod.valueOf(rs.getString("period")))
+            .startPeriod(rs.getLong("start_period"))
+            .openPrice(rs.getDouble("open_price"))
+            .highPrice(rs.getDouble("high_price"))
+            .lowPrice(rs.getDouble("low_price"))
+            .closePrice(rs.getDouble("close_price"))
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
 
     @Override
     public void store(Ohlc ohlc) {
+        storeAll(List.of(ohlc));
+    }
 
+    @Override
+    public void storeAll(List<Ohlc> ohlcs) {
+        int[] updated = updateAll(UPDATE, new OhlcSetter(ohlcs));
+        // a bar stored twice in the batch is inserted once, with its latest prices
+        var missing = new LinkedHashMap<List<Object>, Ohlc>();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                var ohlc = ohlcs.get(i);
+                missing.put(List.of(ohlc.getInstrumentId(), ohlc.getPeriod(), ohlc.getStartPeriod()), ohlc);
+            }
+        }
+        if (!missing.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT, new OhlcSetter(new ArrayList<>(missing.values())));
+        }
+    }
+
+    @Override
+    public void amendAll(List<Ohlc> ohlcs) {
+        int[] updated = updateAll(AMEND, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                var ohlc = ohlcs.get(i);
+                ps.setDouble(1, ohlc.getHighPrice());
+                ps.setDouble(2, ohlc.getLowPrice());
+                ps.setLong(3, ohlc.getInstrumentId());
+                ps.setString(4, ohlc.getPeriod().name());
+                ps.setLong(5, ohlc.getStartPeriod());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return ohlcs.size();
+            }
+        });
+        // the first amendment of a missing bar gives its open and close, the later ones only widen it
+        var missing = new LinkedHashMap<List<Object>, Ohlc>();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                var ohlc = ohlcs.get(i);
+                missing.merge(List.of(ohlc.getInstrumentId(), ohlc.getPeriod(), ohlc.getStartPeriod()), ohlc,
+                        (first, later) -> Ohlc.builder().instrumentId(first.getInstrumentId()).period(first.getPeriod())
+                                .startPeriod(first.getStartPeriod()).openPrice(first.getOpenPrice()).closePrice(first.getClosePrice())
+                                .highPrice(Math.max(first.getHighPrice(), later.getHighPrice()))
+                                .lowPrice(Math.min(first.getLowPrice(), later.getLowPrice()))
+                                .build());
+            }
+        }
+        if (!missing.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT, new OhlcSetter(new ArrayList<>(missing.values())));
+        }
+    }
+
+    /**
+     * Row counts of the batch. A driver may report SUCCESS_NO_INFO instead, then the statements run again one by one
+     * in the batch order: both updates leave the same rows when repeated, and the counts tell which bars are missing.
+     */
+    private int[] updateAll(String sql, BatchPreparedStatementSetter setter) {
+        int[] updated = jdbcTemplate.batchUpdate(sql, setter);
+        for (int count : updated) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                for (int i = 0; i < updated.length; i++) {
+                    int index = i;
+                    updated[i] = jdbcTemplate.update(sql, ps -> setter.setValues(ps, index));
+                }
+                break;
+            }
+        }
+        return updated;
+    }
+
+    @Override
+    public int delete(long instrumentId, OhlcPeriod period, long from, long to) {
+        return jdbcTemplate.update("delete from ohlc where instrument_id = ? and period = ? and start_period >= ? and start_period < ?",
+                instrumentId, period.name(), from, to);
     }
 
     @Override
     public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
-        return null;
+        return jdbcTemplate.query(SELECT + "where instrument_id = ? and period = ? order by start_period desc",
+                OHLC_MAPPER, instrumentId, period.name());
+    }
+
+    @Override
+    public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        // served by ohlc_history_idx, only the requested page is read
+        return jdbcTemplate.query(SELECT_RANGE, OHLC_MAPPER, instrumentId, period.name(), from, to, limit);
+    }
+
+    @Override
+    public List<Ohlc> getHistorical(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit) {
+        if (instrumentIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        var placeholders = String.join(", ", Collections.nCopies(instrumentIds.size(), "?"));
+        var args = new ArrayList<Object>(instrumentIds.size() + 4);
+        args.addAll(instrumentIds);
+        args.add(period.name());
+        args.add(from);
+        args.add(to);
+        if (limit == Integer.MAX_VALUE) {
+            return jdbcTemplate.query(String.format(SELECT_INSTRUMENTS, placeholders), OHLC_MAPPER, args.toArray());
+        }
+        args.add(limit);
+        return jdbcTemplate.query(String.format(SELECT_INSTRUMENTS_LIMITED, placeholders), OHLC_MAPPER, args.toArray());
+    }
+
+    @Override
+    public void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        jdbcTemplate.query(SELECT_RANGE, (RowCallbackHandler) rs -> {
+            visitor.visit(rs.getLong("start_period"), rs.getDouble("open_price"), rs.getDouble("high_price"),
+                    rs.getDouble("low_price"), rs.getDouble("close_price"));
+        }, instrumentId, period.name(), from, to, limit);
+    }
+
+    /** sets prices first and the key last, the order both UPDATE and INSERT expect */
+    private static final class OhlcSetter implements BatchPreparedStatementSetter {
+        private final List<Ohlc> ohlcs;
+
+        private OhlcSetter(List<Ohlc> ohlcs) {
+            this.ohlcs = ohlcs;
+        }
+
+        @Override
+        public void setValues(PreparedStatement ps, int i) throws SQLException {
+            var ohlc = ohlcs.get(i);
+            ps.setDouble(1, ohlc.getOpenPrice());
+            ps.setDouble(2, ohlc.getHighPrice());
+            ps.setDouble(3, ohlc.getLowPrice());
+            ps.setDouble(4, ohlc.getClosePrice());
+            ps.setLong(5, ohlc.getInstrumentId());
+            ps.setString(6, ohlc.getPeriod().name());
+            ps.setLong(7, ohlc.getStartPeriod());
+        }
+
+        @Override
+        public int getBatchSize() {
+            return ohlcs.size();
+        }
     }
 }
@@ -0,0 +1,24 @@
+package com.example.ohlc.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/** (instrument, period) of a bar series */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+public class BarKey {
+    private final long instrumentId;
+    private final OhlcPeriod period;
+
+    /** parses instrumentId:period, e.g. 42:M1 */
+    public static BarKey parse(String value) {
+        int separator = value.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected instrumentId:period but was " + value);
+        }
+        return new BarKey(Long.parseLong(value.substring(0, separator).trim()),
+                OhlcPeriod.valueOf(value.substring(separator + 1).trim()));
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.ohlc.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/** bar of an interval which is not an {@link OhlcPeriod}, e.g. 3 minutes or 2 hours */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class IntervalBar {
+    private final long instrumentId;
+    private final long intervalMillis;
+    private final long startPeriod;
+    private final double openPrice;
+    private final double highPrice;
+    private final double lowPrice;
+    private final double closePrice;
+}
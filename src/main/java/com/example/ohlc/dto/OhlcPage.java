@@ -0,0 +1,16 @@
+package com.example.ohlc.dto;
+
+import com.example.ohlc.entity.Ohlc;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class OhlcPage {
+    /** OHLCs sorted by startPeriod in descending order */
+    private final List<Ohlc> bars;
+    /** startPeriod to pass as the next page cursor, null if there are no older bars */
+    private final Long nextCursor;
+}
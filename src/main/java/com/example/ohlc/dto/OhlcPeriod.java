@@ -3,14 +3,29 @@ package com.example.ohlc.dto;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
-import java.time.temporal.ChronoUnit;
-
 @Getter
 @AllArgsConstructor
 public enum OhlcPeriod {
-    M1(ChronoUnit.MINUTES), // one minute, starts at 0 second of every minute
-    H1(ChronoUnit.HOURS), // one hour, starts at 0:00 of every hour
-    D1(ChronoUnit.DAYS); // one day, starts at 0:00:00 of every day
+    M1(60_000L, 0), // one minute, starts at 0 second of every minute
+    M5(5 * 60_000L, 0), // five minutes, starts at 0, 5, 10... minute of every hour
+    M15(15 * 60_000L, 0), // fifteen minutes, starts at 0, 15, 30 and 45 minute of every hour
+    M30(30 * 60_000L, 0), // thirty minutes, starts at 0 and 30 minute of every hour
+    H1(3_600_000L, 0), // one hour, starts at 0:00 of every hour
+    H4(4 * 3_600_000L, 0), // four hours, starts at 0:00, 4:00... 20:00 of every day
+    D1(86_400_000L, 0), // one day, starts at 0:00:00 of every day
+    W1(7 * 86_400_000L, 4 * 86_400_000L); // one week, starts at Monday 0:00:00, epoch started on Thursday
+
+    /** period width, periods are declared from the finest to the coarsest */
+    private final long millis;
+    /** offset of the first period start from the epoch */
+    private final long alignment;
+
+    /** start of the period containing the UTC timestamp */
+    public long getStartPeriod(long utcTimestamp) {
+        return Math.floorDiv(utcTimestamp - alignment, millis) * millis + alignment;
+    }
 
-    private final ChronoUnit chronoUnit;
+    public boolean contains(long startPeriod, long utcTimestamp) {
+        return utcTimestamp >= startPeriod && utcTimestamp < startPeriod + millis;
+    }
 }
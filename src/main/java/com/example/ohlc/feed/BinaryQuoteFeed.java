@@ -0,0 +1,113 @@
+package com.example.ohlc.feed;
+
+import com.example.ohlc.dto.Quote;
+import com.example.ohlc.service.QuoteListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads fixed-width quote records from a blocking channel, a socket or a file replay,
+ * into a reused direct buffer and hands every read as one frame to the listener.
+ * The frame is a list of {@link QuoteFlyweight} views over the buffer,
+ * so decoding allocates nothing per quote. Not thread-safe, one feed per channel.
+ * A frame the listener rejects is retried after a growing pause, the channel is not read meanwhile,
+ * so a full shard queue slows the sender down through TCP flow control instead of dropping the connection.
+ */
+@Slf4j
+public class BinaryQuoteFeed {
+    private static final long MIN_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long MAX_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final QuoteListener quoteListener;
+    private final ByteBuffer buffer;
+    private final Frame frame = new Frame();
+
+    public BinaryQuoteFeed(QuoteListener quoteListener, int bufferSize) {
+        if (bufferSize < QuoteFlyweight.RECORD_SIZE) {
+            throw new IllegalArgumentException("Buffer can't hold a quote: " + bufferSize);
+        }
+        this.quoteListener = quoteListener;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize - bufferSize % QuoteFlyweight.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** @return count of quotes read until the end of the stream */
+    public long read(ReadableByteChannel channel) throws IOException {
+        long count = 0;
+        buffer.clear();
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            int records = buffer.remaining() / QuoteFlyweight.RECORD_SIZE;
+            if (records > 0) {
+                frame.reset(buffer.position(), records);
+                deliver(channel);
+                buffer.position(buffer.position() + records * QuoteFlyweight.RECORD_SIZE);
+                count += records;
+            }
+            // a record split between reads is completed by the next read
+            buffer.compact();
+        }
+        if (buffer.position() > 0) {
+            log.warn("Feed ended inside a quote, {} bytes dropped", buffer.position());
+        }
+        return count;
+    }
+
+    private void deliver(ReadableByteChannel channel) throws IOException {
+        long pause = MIN_PAUSE_NANOS;
+        while (true) {
+            try {
+                quoteListener.onQuotes(frame);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (!channel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                if (pause == MIN_PAUSE_NANOS) {
+                    log.debug("Frame of {} quotes rejected, pausing the feed: {}", frame.size(), e.getMessage());
+                }
+                LockSupport.parkNanos(pause);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while the frame was rejected");
+                }
+                pause = Math.min(pause * 2, MAX_PAUSE_NANOS);
+            }
+        }
+    }
+
+    /** quotes of the last read, get returns the same view moved to the record */
+    private final class Frame extends AbstractList<Quote> implements RandomAccess {
+        private final QuoteFlyweight quote = new QuoteFlyweight();
+        private int offset;
+        private int size;
+
+        private void reset(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public Quote get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return quote.wrap(buffer, offset + index * QuoteFlyweight.RECORD_SIZE);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.ohlc.feed;
+
+import com.example.ohlc.service.QuoteListener;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * accepts binary quote feed connections, every connection is read by its own thread,
+ * connections over feed.binary.max.connections are closed right away
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "feed.binary.enabled", havingValue = "true")
+public class BinaryQuoteFeedServer {
+    private final QuoteListener quoteListener;
+    @Value("${feed.binary.port}")
+    private int port;
+    @Value("${feed.binary.buffer.size}")
+    private int bufferSize;
+    @Value("${feed.binary.max.connections}")
+    private int maxConnections;
+    private ServerSocketChannel serverChannel;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        var acceptor = new Thread(this::accept, "quote-feed-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Binary quote feed listens on {}", serverChannel.getLocalAddress());
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        serverChannel.close();
+        for (SocketChannel channel : connections) {
+            channel.close();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            try {
+                var channel = serverChannel.accept();
+                if (connections.size() >= maxConnections) {
+                    log.warn("Refused feed {}, {} connections are open", channel.getRemoteAddress(), connections.size());
+                    channel.close();
+                    continue;
+                }
+                connections.add(channel);
+                var reader = new Thread(() -> read(channel), "quote-feed-" + channel.getRemoteAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    log.error("Failed to accept a feed connection", e);
+                }
+            }
+        }
+    }
+
+    private void read(SocketChannel channel) {
+        try (channel) {
+            long count = new BinaryQuoteFeed(quoteListener, bufferSize).read(channel);
+            log.info("Feed {} closed after {} quotes", channel.getRemoteAddress(), count);
+        } catch (IOException | RuntimeException e) {
+            if (serverChannel.isOpen()) {
+                log.error("Feed connection failed", e);
+            }
+        } finally {
+            connections.remove(channel);
+        }
+    }
+}
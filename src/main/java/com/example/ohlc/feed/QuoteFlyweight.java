@@ -0,0 +1,43 @@
+package com.example.ohlc.feed;
+
+import com.example.ohlc.dto.Quote;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Quote view over a record of a binary feed buffer:
+ * instrumentId long, price double and utcTimestamp long, little-endian.
+ * The view is moved from record to record, so it must not be kept.
+ */
+public final class QuoteFlyweight implements Quote {
+    public static final int RECORD_SIZE = 2 * Long.BYTES + Double.BYTES;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public QuoteFlyweight wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    @Override
+    public long getInstrumentId() {
+        return buffer.getLong(offset);
+    }
+
+    @Override
+    public double getPrice() {
+        return buffer.getDouble(offset + Long.BYTES);
+    }
+
+    @Override
+    public long getUtcTimestamp() {
+        return buffer.getLong(offset + Long.BYTES + Double.BYTES);
+    }
+
+    /** writes a record at the buffer position, used by feed producers */
+    public static void put(ByteBuffer buffer, long instrumentId, double price, long utcTimestamp) {
+        buffer.putLong(instrumentId).putDouble(price).putLong(utcTimestamp);
+    }
+}
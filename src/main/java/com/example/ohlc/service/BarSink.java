@@ -0,0 +1,17 @@
+package com.example.ohlc.service;
+
+import com.example.ohlc.entity.Ohlc;
+
+import java.io.IOException;
+import java.util.List;
+
+/** connection of a streaming subscriber, its calls never block */
+public interface BarSink {
+    /** false while bars sent before are still being written to the client */
+    boolean isReady();
+
+    /** called only when ready, what the client can't take at once is buffered by the connection */
+    void send(List<Ohlc> bars) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,13 @@
+package com.example.ohlc.service;
+
+import com.example.ohlc.entity.Ohlc;
+
+/** receives bars one by one, e.g. to write them out without building a list of OHLCs */
+@FunctionalInterface
+public interface BarVisitor {
+    void visit(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice);
+
+    default void visit(Ohlc ohlc) {
+        visit(ohlc.getStartPeriod(), ohlc.getOpenPrice(), ohlc.getHighPrice(), ohlc.getLowPrice(), ohlc.getClosePrice());
+    }
+}
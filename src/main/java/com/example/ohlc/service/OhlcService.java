@@ -1,15 +1,40 @@
 package com.example.ohlc.service;
 
+import com.example.ohlc.dto.IntervalBar;
+import com.example.ohlc.dto.OhlcPage;
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.entity.Ohlc;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/** methods taking a limit throw IllegalArgumentException when it is less than 1 */
 public interface OhlcService extends QuoteListener {
     /** latest non persisted OHLC */
     Ohlc getCurrent (long instrumentId, OhlcPeriod period);
     /** all OHLCs which are kept in a database */
     List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period);
-    /** latest non persisted OHLC and OHLCs which are kept in a database */
+    /** at most limit newest OHLCs kept in a database with from <= startPeriod < to, in descending order */
+    List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit);
+    /** page of OHLCs kept in a database which started before the cursor, Long.MAX_VALUE for the newest page */
+    OhlcPage getHistoricalPage(long instrumentId, OhlcPeriod period, long before, int limit);
+    /** OHLCs which are kept in a database, then the non persisted OHLCs, the latest one last */
     List<Ohlc> getHistoricalAndCurrent (long instrumentId, OhlcPeriod period);
+    /**
+     * at most limit newest of the non persisted OHLCs and the OHLCs kept in a database, all with from <= startPeriod < to,
+     * in descending order like forEachHistoricalAndCurrent visits them
+     */
+    List<Ohlc> getHistoricalAndCurrent (long instrumentId, OhlcPeriod period, long from, long to, int limit);
+    /** getHistoricalAndCurrent(instrumentId, period, from, to, limit) of every instrument, stored bars are read with one query */
+    Map<Long, List<Ohlc>> getHistoricalAndCurrent(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit);
+    /**
+     * bars of any multiple of the finest aggregated period with from <= startPeriod < to in descending order,
+     * built from the coarsest stored bars which fit and the current bars
+     */
+    List<IntervalBar> getIntervalBars(long instrumentId, long intervalMillis, long from, long to);
+    /** visits the OHLCs getHistorical(instrumentId, period, from, to, limit) returns without building a list */
+    void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor);
+    /** visits the non persisted OHLCs first, then the older OHLCs forEachHistorical visits, at most limit in all */
+    void forEachHistoricalAndCurrent(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor);
 }
@@ -3,9 +3,35 @@ package com.example.ohlc.service;
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.entity.Ohlc;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public interface OhlcStorage {
     void store(Ohlc ohlc);
+    /**
+     * widens the stored bar of the same key by the high and low of the given bar, keeping its open and close,
+     * or stores the given bar when there is none; applied in order with the bars stored before
+     */
+    void amend(Ohlc ohlc);
     List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period);
+    /** at most limit newest OHLCs with from <= startPeriod < to in descending order */
+    List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit);
+    /** getHistorical(instrumentId, period, from, to, limit) of every instrument, an empty list for instruments without bars */
+    default Map<Long, List<Ohlc>> getHistorical(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit) {
+        var result = new HashMap<Long, List<Ohlc>>();
+        for (Long instrumentId : instrumentIds) {
+            result.put(instrumentId, getHistorical(instrumentId, period, from, to, limit));
+        }
+        return result;
+    }
+    /** replaces the bars with from <= startPeriod < to by the given bars of the same range */
+    void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars);
+    /** visits the bars getHistorical(instrumentId, period, from, to, limit) returns, in the same order */
+    default void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        for (Ohlc ohlc : getHistorical(instrumentId, period, from, to, limit)) {
+            visitor.visit(ohlc);
+        }
+    }
 }
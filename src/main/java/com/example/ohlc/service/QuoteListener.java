@@ -2,6 +2,14 @@ package com.example.ohlc.service;
 
 import com.example.ohlc.dto.Quote;
 
+import java.util.List;
+
 public interface QuoteListener {
     void onQuote(Quote quote);
+
+    /** quotes of one feed frame, the values are copied so the quotes may be reused afterwards */
+    void onQuotes(List<? extends Quote> quotes);
+
+    /** first count quotes of a feed frame in parallel arrays, the arrays may be reused afterwards */
+    void onQuotes(long[] instrumentIds, double[] prices, long[] utcTimestamps, int count);
 }
@@ -0,0 +1,345 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.Quote;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Warm restart of the current bars. Every shard appends its quotes to a journal of the current generation,
+ * a checkpoint starts the next generation on every shard, then writes the copies of the shard tables
+ * taken at that moment and finally the checkpoint file naming the generation.
+ * Restoring loads the tables of the last checkpoint and replays the journals from its generation on.
+ * Journals are written on every shard loop but not forced, so they survive a process restart, not a power loss.
+ */
+@Slf4j
+public class BarCheckpointer {
+    private static final int JOURNAL_RECORD_SIZE = 3 * Long.BYTES;
+    /** records carry the timestamps of the first and the last quote of the bar */
+    private static final int SNAPSHOT_RECORD_SIZE = 4 * Long.BYTES + 4 * Double.BYTES;
+    private static final int SNAPSHOT_MAGIC = 0x4F484C32;
+    private static final int SNAPSHOT_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final Pattern FILE_NAME = Pattern.compile("shard-(\\d+)-(\\d+)\\.(journal|snapshot)");
+
+    private final Path directory;
+    private final FileChannel[] journals;
+    private final ByteBuffer[] journalBuffers;
+    private long generation;
+
+    /** receives a bar of a restored table, a key comes twice if a bar was pending in the reorder window */
+    @FunctionalInterface
+    public interface BarConsumer {
+        void accept(long key, long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice,
+                    long firstTimestamp, long lastTimestamp);
+    }
+
+    public BarCheckpointer(Path directory, int shardCount) {
+        this.directory = directory;
+        this.journals = new FileChannel[shardCount];
+        this.journalBuffers = new ByteBuffer[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            journalBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Loads the last checkpoint and replays the later journals, then opens the journals of a new generation.
+     * Must be called before the shards start.
+     */
+    public void restore(BarConsumer bars, Consumer<Quote> quotes) {
+        long startNanos = System.nanoTime();
+        try {
+            Files.createDirectories(directory);
+            long checkpoint = readCheckpoint();
+            int restoredBars = 0;
+            long lastGeneration = checkpoint;
+            var journalFiles = new ArrayList<Path>();
+            for (Path file : list()) {
+                long fileGeneration = generationOf(file);
+                boolean snapshot = file.getFileName().toString().endsWith(".snapshot");
+                if (fileGeneration == checkpoint && snapshot) {
+                    restoredBars += readSnapshot(file, bars);
+                } else if (fileGeneration >= checkpoint && !snapshot) {
+                    journalFiles.add(file);
+                    lastGeneration = Math.max(lastGeneration, fileGeneration);
+                }
+            }
+            journalFiles.sort(Comparator.comparingLong(BarCheckpointer::generationOf));
+            long replayedQuotes = 0;
+            for (Path file : journalFiles) {
+                replayedQuotes += readJournal(file, quotes);
+            }
+            generation = lastGeneration + 1;
+            for (int i = 0; i < journals.length; i++) {
+                journals[i] = openJournal(i, generation);
+            }
+            log.info("Restored {} bars of checkpoint {} and replayed {} quotes in {} ms", restoredBars, checkpoint,
+                    replayedQuotes, (System.nanoTime() - startNanos) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to restore bars from " + directory, e);
+        }
+    }
+
+    /** called by the shard thread for every quote before it is handled */
+    public void append(int shard, Quote quote) {
+        var buffer = journalBuffers[shard];
+        if (buffer.remaining() < JOURNAL_RECORD_SIZE) {
+            flush(shard);
+        }
+        buffer.putLong(quote.getInstrumentId());
+        buffer.putDouble(quote.getPrice());
+        buffer.putLong(quote.getUtcTimestamp());
+    }
+
+    /** called by the shard thread, writes the buffered quotes to the journal */
+    public void flush(int shard) {
+        var buffer = journalBuffers[shard];
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                journals[shard].write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write journal of shard " + shard, e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /** generation of the next checkpoint, called by the checkpointing thread only */
+    public long nextGeneration() {
+        return ++generation;
+    }
+
+    /** called by the shard thread, the following quotes go to the journal of the generation */
+    public void rotate(int shard, long generation) {
+        flush(shard);
+        try {
+            journals[shard].close();
+            journals[shard] = openJournal(shard, generation);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rotate journal of shard " + shard, e);
+        }
+    }
+
+    /** writes the tables copied when the generation started and drops the files of older generations */
+    public void write(long generation, CurrentBarTable[] tables, CurrentBarTable[] pendingTables) {
+        long startNanos = System.nanoTime();
+        try {
+            int bars = 0;
+            for (int i = 0; i < tables.length; i++) {
+                bars += writeSnapshot(directory.resolve(fileName(i, generation, "snapshot")), tables[i], pendingTables[i]);
+            }
+            var buffer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, generation);
+            writeAtomically(directory.resolve(CHECKPOINT_FILE), buffer);
+            for (Path file : list()) {
+                if (generationOf(file) < generation) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            log.info("Checkpoint {} of {} bars written in {} ms", generation, bars, (System.nanoTime() - startNanos) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write checkpoint " + generation, e);
+        }
+    }
+
+    public void close() {
+        for (int i = 0; i < journals.length; i++) {
+            if (journals[i] != null) {
+                try {
+                    journals[i].close();
+                } catch (IOException e) {
+                    log.warn("Failed to close journal of shard {}", i, e);
+                }
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        var file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+    }
+
+    private int readSnapshot(Path file, BarConsumer bars) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = map(channel);
+            int magic = buffer.getInt(0);
+            int count = buffer.getInt(Integer.BYTES);
+            long expectedSize = SNAPSHOT_HEADER_SIZE + (long) count * SNAPSHOT_RECORD_SIZE + Long.BYTES;
+            if (magic != SNAPSHOT_MAGIC || channel.size() != expectedSize) {
+                throw new IllegalStateException("Corrupted snapshot " + file);
+            }
+            var crc = new CRC32();
+            crc.update(buffer.duplicate().position(SNAPSHOT_HEADER_SIZE).limit((int) expectedSize - Long.BYTES));
+            if (crc.getValue() != buffer.getLong((int) expectedSize - Long.BYTES)) {
+                throw new IllegalStateException("Snapshot checksum mismatch " + file);
+            }
+            buffer.position(SNAPSHOT_HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                long key = buffer.getLong();
+                long startPeriod = buffer.getLong();
+                double openPrice = buffer.getDouble();
+                double highPrice = buffer.getDouble();
+                double lowPrice = buffer.getDouble();
+                double closePrice = buffer.getDouble();
+                long firstTimestamp = buffer.getLong();
+                long lastTimestamp = buffer.getLong();
+                bars.accept(key, startPeriod, openPrice, highPrice, lowPrice, closePrice, firstTimestamp, lastTimestamp);
+            }
+            return count;
+        }
+    }
+
+    private long readJournal(Path file, Consumer<Quote> quotes) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = map(channel);
+            // a torn last record is dropped
+            long count = channel.size() / JOURNAL_RECORD_SIZE;
+            var quote = new ReplayedQuote();
+            for (long i = 0; i < count; i++) {
+                quote.instrumentId = buffer.getLong();
+                quote.price = buffer.getDouble();
+                quote.utcTimestamp = buffer.getLong();
+                quotes.accept(quote);
+            }
+            return count;
+        }
+    }
+
+    private int writeSnapshot(Path file, CurrentBarTable... tables) throws IOException {
+        var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        var crc = new CRC32();
+        int count = 0;
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.position(SNAPSHOT_HEADER_SIZE);
+            for (CurrentBarTable table : tables) {
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    if (!table.isOpen(slot)) {
+                        continue;
+                    }
+                    if (buffer.remaining() < SNAPSHOT_RECORD_SIZE) {
+                        writeRecords(channel, buffer, crc, channel.position() == 0 ? SNAPSHOT_HEADER_SIZE : 0);
+                    }
+                    buffer.putLong(table.getKey(slot));
+                    buffer.putLong(table.getStartPeriod(slot));
+                    buffer.putDouble(table.getOpenPrice(slot));
+                    buffer.putDouble(table.getHighPrice(slot));
+                    buffer.putDouble(table.getLowPrice(slot));
+                    buffer.putDouble(table.getClosePrice(slot));
+                    buffer.putLong(table.getFirstTimestamp(slot));
+                    buffer.putLong(table.getLastTimestamp(slot));
+                    count++;
+                }
+            }
+            writeRecords(channel, buffer, crc, channel.position() == 0 ? SNAPSHOT_HEADER_SIZE : 0);
+            buffer.putLong(crc.getValue()).flip();
+            writeFully(channel, buffer);
+            var header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(SNAPSHOT_MAGIC).putInt(count).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /** writes the buffered records, the first chunk keeps room for the header */
+    private void writeRecords(FileChannel channel, ByteBuffer buffer, CRC32 crc, int headerSize) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate().position(headerSize));
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private void writeAtomically(Path file, ByteBuffer content) throws IOException {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, content);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel) throws IOException {
+        var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private FileChannel openJournal(int shard, long generation) throws IOException {
+        return FileChannel.open(directory.resolve(fileName(shard, generation, "journal")),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> FILE_NAME.matcher(f.getFileName().toString()).matches())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long generationOf(Path file) {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : Long.MAX_VALUE;
+    }
+
+    private static String fileName(int shard, long generation, String type) {
+        return "shard-" + shard + "-" + generation + "." + type;
+    }
+
+    private static final class ReplayedQuote implements Quote {
+        private long instrumentId;
+        private double price;
+        private long utcTimestamp;
+
+        @Override
+        public double getPrice() {
+            return price;
+        }
+
+        @Override
+        public long getInstrumentId() {
+            return instrumentId;
+        }
+
+        @Override
+        public long getUtcTimestamp() {
+            return utcTimestamp;
+        }
+    }
+}
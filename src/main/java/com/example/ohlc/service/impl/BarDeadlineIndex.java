@@ -0,0 +1,131 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Keys of the bars of one shard grouped by the end of their period.
+ * Closing polls only the expired deadlines instead of scanning every bar.
+ * A key may stay in an old deadline after its bar rolled over, so the closing code
+ * has to check the bar is still the expired one. Used only by the owning shard thread.
+ */
+public class BarDeadlineIndex {
+    private final Deadlines[] deadlines;
+    private final ArrayDeque<KeyList> freeLists = new ArrayDeque<>();
+    private long nextDeadline = Long.MAX_VALUE;
+
+    public BarDeadlineIndex() {
+        deadlines = new Deadlines[OhlcPeriod.values().length];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = new Deadlines();
+        }
+    }
+
+    public void add(OhlcPeriod period, long deadline, long key) {
+        deadlines[period.ordinal()].listOf(deadline, freeLists).add(key);
+        nextDeadline = Math.min(nextDeadline, deadline);
+    }
+
+    /** earliest deadline of all periods or Long.MAX_VALUE */
+    public long getNextDeadline() {
+        return nextDeadline;
+    }
+
+    /**
+     * Removes the deadlines of the period which are not later than now.
+     * The closer may add new deadlines of other periods.
+     * @return count of keys accepted by the closer
+     */
+    public int pollExpired(OhlcPeriod period, long now, LongPredicate closer) {
+        var periodDeadlines = deadlines[period.ordinal()];
+        int closed = 0;
+        KeyList keys;
+        while ((keys = periodDeadlines.pollFirst(now)) != null) {
+            for (int i = 0; i < keys.size; i++) {
+                if (closer.test(keys.keys[i])) {
+                    closed++;
+                }
+            }
+            keys.size = 0;
+            freeLists.push(keys);
+        }
+        nextDeadline = Long.MAX_VALUE;
+        for (var d : deadlines) {
+            if (d.size > 0) {
+                nextDeadline = Math.min(nextDeadline, d.deadlines[d.first]);
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Distinct deadlines of a period in ascending order, in a primitive array from first to first + size.
+     * A period has only a few open deadlines, mostly the current one and those held by the reorder window,
+     * and new keys nearly always go to the latest, so a sorted array is cheaper than a tree.
+     */
+    private static final class Deadlines {
+        private long[] deadlines = new long[8];
+        private KeyList[] lists = new KeyList[8];
+        private int first;
+        private int size;
+
+        private KeyList listOf(long deadline, ArrayDeque<KeyList> freeLists) {
+            int end = first + size;
+            if (size > 0 && deadlines[end - 1] == deadline) {
+                return lists[end - 1];
+            }
+            int i = Arrays.binarySearch(deadlines, first, end, deadline);
+            if (i >= 0) {
+                return lists[i];
+            }
+            i = -i - 1;
+            if (end == deadlines.length) {
+                if (size * 2 > deadlines.length) {
+                    deadlines = Arrays.copyOf(deadlines, deadlines.length * 2);
+                    lists = Arrays.copyOf(lists, lists.length * 2);
+                }
+                System.arraycopy(deadlines, first, deadlines, 0, size);
+                System.arraycopy(lists, first, lists, 0, size);
+                Arrays.fill(lists, size, end, null);
+                i -= first;
+                first = 0;
+                end = size;
+            }
+            System.arraycopy(deadlines, i, deadlines, i + 1, end - i);
+            System.arraycopy(lists, i, lists, i + 1, end - i);
+            var keys = freeLists.isEmpty() ? new KeyList() : freeLists.poll();
+            deadlines[i] = deadline;
+            lists[i] = keys;
+            size++;
+            return keys;
+        }
+
+        /** removes the earliest deadline if it is not later than now */
+        private KeyList pollFirst(long now) {
+            if (size == 0 || deadlines[first] > now) {
+                return null;
+            }
+            var keys = lists[first];
+            lists[first++] = null;
+            if (--size == 0) {
+                first = 0;
+            }
+            return keys;
+        }
+    }
+
+    private static final class KeyList {
+        private long[] keys = new long[16];
+        private int size;
+
+        private void add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = key;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.BarKey;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarSink;
+import com.example.ohlc.service.OhlcService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes current bars to streaming subscribers. Every tick reads the current bar of every subscribed
+ * (instrument, period) once and fans it out to its subscribers, so the quote path knows nothing about
+ * subscribers and a tick costs one read per subscribed bar however many clients watch it.
+ * A subscriber keeps only the latest state of its bars until its rate allows the next send and its connection
+ * took the previous one. Sends never block, a subscriber whose connection isn't ready for slowConsumerMillis is dropped.
+ */
+@Slf4j
+@Service
+@Profile("!backfill")
+@RequiredArgsConstructor
+public class BarPublisher {
+    private static final long NOT_WAITING = Long.MIN_VALUE;
+    private final OhlcService ohlcService;
+    private final Clock clock;
+    /** highest sends per second of a subscriber */
+    @Value("${stream.max.rate}")
+    private int maxRate;
+    @Value("${stream.slow.consumer.ms}")
+    private long slowConsumerMillis;
+    private final Map<Long, Topic> topics = new ConcurrentHashMap<>();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (maxRate < 1) {
+            throw new IllegalArgumentException("Stream max rate must be positive: " + maxRate);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        subscribers.forEach(this::unsubscribe);
+    }
+
+    /**
+     * The current bars are sent with the first tick, then their changes.
+     * @param rate sends per second, limited by stream.max.rate, 0 for the limit
+     */
+    public Subscriber subscribe(Collection<BarKey> bars, int rate, BarSink sink) {
+        int effectiveRate = rate <= 0 ? maxRate : Math.min(rate, maxRate);
+        var subscriber = new Subscriber(bars, 1_000 / effectiveRate, sink);
+        subscribers.add(subscriber);
+        for (BarKey bar : bars) {
+            var current = ohlcService.getCurrent(bar.getInstrumentId(), bar.getPeriod());
+            if (current != null) {
+                subscriber.offer(CurrentBarTable.key(bar.getInstrumentId(), bar.getPeriod()), current);
+            }
+            topics.compute(CurrentBarTable.key(bar.getInstrumentId(), bar.getPeriod()), (key, topic) -> {
+                var t = topic != null ? topic : new Topic(bar.getInstrumentId(), bar.getPeriod());
+                t.subscribers.add(subscriber);
+                return t;
+            });
+        }
+        return subscriber;
+    }
+
+    /** may be called repeatedly, closes the sink once */
+    public void unsubscribe(Subscriber subscriber) {
+        if (!subscriber.closed.compareAndSet(false, true)) {
+            return;
+        }
+        subscribers.remove(subscriber);
+        for (long key : subscriber.keys) {
+            topics.computeIfPresent(key, (k, topic) -> {
+                topic.subscribers.remove(subscriber);
+                return topic.subscribers.isEmpty() ? null : topic;
+            });
+        }
+        subscriber.sink.close();
+    }
+
+    @Scheduled(fixedDelayString = "${stream.tick.ms}")
+    public void publish() {
+        long now = clock.millis();
+        for (Topic topic : topics.values()) {
+            var current = ohlcService.getCurrent(topic.instrumentId, topic.period);
+            if (current == null || current.equals(topic.latest)) {
+                continue;
+            }
+            topic.latest = current;
+            for (Subscriber subscriber : topic.subscribers) {
+                subscriber.offer(topic.key, current);
+            }
+        }
+        for (Subscriber subscriber : subscribers) {
+            flush(subscriber, now);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /** subscribed (instrument, period) pairs */
+    public int getTopicCount() {
+        return topics.size();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /** subscribers dropped as slow consumers */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** called only by the publishing thread */
+    private void flush(Subscriber subscriber, long now) {
+        if (!subscriber.sink.isReady()) {
+            if (subscriber.waitingSinceMillis == NOT_WAITING) {
+                subscriber.waitingSinceMillis = now;
+            } else if (now - subscriber.waitingSinceMillis > slowConsumerMillis) {
+                log.info("Dropping a subscriber which didn't take its bars in {} ms", slowConsumerMillis);
+                dropped.incrementAndGet();
+                unsubscribe(subscriber);
+            }
+            return;
+        }
+        subscriber.waitingSinceMillis = NOT_WAITING;
+        if (now - subscriber.lastSendMillis < subscriber.intervalMillis) {
+            return;
+        }
+        var bars = subscriber.takePending();
+        if (bars.isEmpty()) {
+            return;
+        }
+        subscriber.lastSendMillis = now;
+        try {
+            subscriber.sink.send(bars);
+            sent.addAndGet(bars.size());
+        } catch (IOException | RuntimeException e) {
+            log.debug("Subscriber disconnected", e);
+            unsubscribe(subscriber);
+        }
+    }
+
+    /** subscribers of one (instrument, period) */
+    private static final class Topic {
+        private final long key;
+        private final long instrumentId;
+        private final OhlcPeriod period;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        /** last published state, written only by the publishing thread */
+        private Ohlc latest;
+
+        private Topic(long instrumentId, OhlcPeriod period) {
+            this.key = CurrentBarTable.key(instrumentId, period);
+            this.instrumentId = instrumentId;
+            this.period = period;
+        }
+    }
+
+    public static final class Subscriber {
+        private final long[] keys;
+        private final long intervalMillis;
+        private final BarSink sink;
+        /** latest unsent state of every bar, in the order the bars changed first */
+        private final Map<Long, Ohlc> pending = new LinkedHashMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        /** written only by the publishing thread */
+        private long lastSendMillis = Long.MIN_VALUE / 2;
+        /** when the connection was first seen not ready, written only by the publishing thread */
+        private long waitingSinceMillis = NOT_WAITING;
+
+        private Subscriber(Collection<BarKey> bars, long intervalMillis, BarSink sink) {
+            this.keys = bars.stream().mapToLong(b -> CurrentBarTable.key(b.getInstrumentId(), b.getPeriod())).toArray();
+            this.intervalMillis = intervalMillis;
+            this.sink = sink;
+        }
+
+        private synchronized void offer(long key, Ohlc bar) {
+            pending.put(key, bar);
+        }
+
+        private synchronized List<Ohlc> takePending() {
+            var bars = new ArrayList<>(pending.values());
+            pending.clear();
+            return bars;
+        }
+    }
+}
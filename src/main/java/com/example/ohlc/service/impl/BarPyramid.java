@@ -0,0 +1,285 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.IntervalBar;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
+import com.example.ohlc.service.OhlcStorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Builds bars of any multiple of the finest period from the stored bars of the aggregated periods.
+ * Every interval is split into the coarsest aligned bars which fit, e.g. 2 hours into two H1 bars and
+ * 90 minutes from 10:30 into thirty M1 bars and one H1 bar, so finer bars are read only at the edges.
+ * The bars of a period are read with one range query, or with a query per run of adjacent bars
+ * when the range would hold many more bars than needed.
+ * A coarse bar which is not stored, e.g. from before its period was aggregated, is built from the bars of the next
+ * finer level, so a period added later never hides the history of the finer ones.
+ */
+class BarPyramid {
+    static final int MAX_BARS = 100_000;
+    static final int MAX_PIECES = 1_000_000;
+    /** a query is taken to cost as much as reading this many rows */
+    private static final int ROWS_PER_QUERY = 64;
+
+    /** ordered from the finest to the coarsest */
+    private final OhlcPeriod[] levels;
+    private final OhlcStorage storage;
+
+    BarPyramid(OhlcPeriod[] levels, OhlcStorage storage) {
+        this.levels = levels;
+        this.storage = storage;
+    }
+
+    /**
+     * Intervals are aligned like the coarsest period dividing them, e.g. two weeks start on Monday.
+     * @param current the live bar of an aggregated period or null, it replaces the stored bar with the same start
+     * @return bars starting from <= startPeriod < to in descending order of start, intervals without bars are skipped
+     */
+    List<IntervalBar> build(long instrumentId, long intervalMillis, long from, long to, Function<OhlcPeriod, Ohlc> current) {
+        var finest = levels[0];
+        if (intervalMillis <= 0 || intervalMillis % finest.getMillis() != 0) {
+            throw new IllegalArgumentException("Interval must be a multiple of " + finest + " but was " + intervalMillis + " ms");
+        }
+        long first;
+        long count;
+        try {
+            long alignment = alignment(intervalMillis);
+            first = Math.floorDiv(Math.subtractExact(from, alignment), intervalMillis) * intervalMillis + alignment;
+            if (first < from) {
+                first += intervalMillis;
+            }
+            if (first >= to) {
+                return new ArrayList<>();
+            }
+            count = (Math.subtractExact(to, first) - 1) / intervalMillis + 1;
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Range is too long: " + from + " - " + to, e);
+        }
+        if (count > MAX_BARS) {
+            throw new IllegalArgumentException("At most " + MAX_BARS + " bars can be built at once but the range holds " + count);
+        }
+        if (finest.getStartPeriod(first) != first) {
+            throw new IllegalArgumentException("Intervals of " + intervalMillis + " ms are not aligned to " + finest);
+        }
+
+        var pieces = new Pieces(levels.length);
+        int[] bucketEnds = new int[(int) count];
+        for (int b = 0; b < count; b++) {
+            long start = first + b * intervalMillis;
+            long end = start + intervalMillis;
+            for (long t = start; t < end; ) {
+                int level = levels.length - 1;
+                while (level > 0 && (levels[level].getStartPeriod(t) != t || end - t < levels[level].getMillis())) {
+                    level--;
+                }
+                pieces.add(t, level);
+                t += levels[level].getMillis();
+            }
+            bucketEnds[b] = pieces.size;
+            if (pieces.size > MAX_PIECES) {
+                throw new IllegalArgumentException("The range needs more than " + MAX_PIECES + " stored bars, aggregate coarser periods");
+            }
+        }
+
+        // coarsest first, the missing bars of a level become pieces of the next finer one before it is read
+        var bars = new LevelBars[levels.length];
+        var live = new Ohlc[levels.length];
+        for (int level = levels.length - 1; level >= 0; level--) {
+            if (pieces.perLevel[level] == 0) {
+                continue;
+            }
+            bars[level] = read(instrumentId, level, pieces);
+            live[level] = current.apply(levels[level]);
+            if (level > 0) {
+                for (long start : pieces.startsOf(level)) {
+                    if (isMissing(start, bars[level], live[level])) {
+                        for (long t = start; t < start + levels[level].getMillis(); t += levels[level - 1].getMillis()) {
+                            pieces.add(t, level - 1);
+                        }
+                        if (pieces.size > MAX_PIECES) {
+                            throw new IllegalArgumentException("The range needs more than " + MAX_PIECES + " stored bars, "
+                                    + levels[level] + " bars are missing");
+                        }
+                    }
+                }
+            }
+        }
+
+        List<IntervalBar> result = new ArrayList<>();
+        int piece = 0;
+        for (int b = 0; b < count; b++) {
+            var bucket = new Bucket();
+            for (; piece < bucketEnds[b]; piece++) {
+                collect(bucket, pieces.starts[piece], pieces.levels[piece], bars, live);
+            }
+            if (bucket.found) {
+                result.add(new IntervalBar(instrumentId, intervalMillis, first + b * intervalMillis,
+                        bucket.open, bucket.high, bucket.low, bucket.close));
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** adds the bar of the level starting at start, or the bars of the finer levels it is missing from */
+    private void collect(Bucket bucket, long start, int level, LevelBars[] bars, Ohlc[] live) {
+        var liveBar = live[level];
+        if (liveBar != null && liveBar.getStartPeriod() == start) {
+            bucket.add(liveBar.getOpenPrice(), liveBar.getHighPrice(), liveBar.getLowPrice(), liveBar.getClosePrice());
+            return;
+        }
+        int i = bars[level].find(start);
+        if (i >= 0) {
+            var prices = bars[level].prices;
+            bucket.add(prices[4 * i], prices[4 * i + 1], prices[4 * i + 2], prices[4 * i + 3]);
+            return;
+        }
+        if (level > 0) {
+            for (long t = start; t < start + levels[level].getMillis(); t += levels[level - 1].getMillis()) {
+                collect(bucket, t, level - 1, bars, live);
+            }
+        }
+    }
+
+    private static boolean isMissing(long start, LevelBars bars, Ohlc live) {
+        return (live == null || live.getStartPeriod() != start) && bars.find(start) < 0;
+    }
+
+    /** reads the stored bars of a level newest first, with one query for the whole span or one per run of adjacent bars */
+    private LevelBars read(long instrumentId, int level, Pieces pieces) {
+        var period = levels[level];
+        long millis = period.getMillis();
+        var starts = pieces.startsOf(level);
+        int runs = 1;
+        for (int i = 1; i < starts.length; i++) {
+            if (starts[i] != starts[i - 1] + millis) {
+                runs++;
+            }
+        }
+        long span = (starts[starts.length - 1] - starts[0]) / millis + 1;
+        var bars = new LevelBars();
+        if (span <= starts.length + (long) runs * ROWS_PER_QUERY) {
+            storage.forEachHistorical(instrumentId, period, starts[0], starts[starts.length - 1] + millis, Integer.MAX_VALUE, bars);
+            return bars;
+        }
+        int runEnd = starts.length;
+        for (int i = starts.length - 1; i >= 0; i--) {
+            if (i == 0 || starts[i] != starts[i - 1] + millis) {
+                storage.forEachHistorical(instrumentId, period, starts[i], starts[runEnd - 1] + millis, Integer.MAX_VALUE, bars);
+                runEnd = i;
+            }
+        }
+        return bars;
+    }
+
+    private static long alignment(long intervalMillis) {
+        long alignment = 0;
+        for (OhlcPeriod p : OhlcPeriod.values()) {
+            if (intervalMillis % p.getMillis() == 0) {
+                alignment = p.getAlignment();
+            }
+        }
+        return alignment;
+    }
+
+    /** aligned bars the intervals are split into, in ascending order of start */
+    private static final class Pieces {
+        private long[] starts = new long[64];
+        private int[] levels = new int[64];
+        private final int[] perLevel;
+        private int size;
+
+        private Pieces(int levelCount) {
+            perLevel = new int[levelCount];
+        }
+
+        private void add(long start, int level) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+            }
+            starts[size] = start;
+            levels[size++] = level;
+            perLevel[level]++;
+        }
+
+        /** in ascending order, pieces split from missing coarser bars are added out of order */
+        private long[] startsOf(int level) {
+            var result = new long[perLevel[level]];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (levels[i] == level) {
+                    result[n++] = starts[i];
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /** open of the first, high, low and close of the last bar added */
+    private static final class Bucket {
+        private boolean found;
+        private double open;
+        private double high;
+        private double low;
+        private double close;
+
+        private void add(double o, double h, double l, double c) {
+            if (!found) {
+                open = o;
+                high = h;
+                low = l;
+                found = true;
+            } else {
+                high = Math.max(high, h);
+                low = Math.min(low, l);
+            }
+            close = c;
+        }
+    }
+
+    /** stored bars of a level in descending order of start */
+    private static final class LevelBars implements BarVisitor {
+        private long[] starts = new long[64];
+        private double[] prices = new double[4 * 64];
+        private int size;
+
+        @Override
+        public void visit(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                prices = Arrays.copyOf(prices, 4 * size * 2);
+            }
+            starts[size] = startPeriod;
+            prices[4 * size] = openPrice;
+            prices[4 * size + 1] = highPrice;
+            prices[4 * size + 2] = lowPrice;
+            prices[4 * size + 3] = closePrice;
+            size++;
+        }
+
+        /** index of the bar starting at start or -1 */
+        private int find(long start) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] > start) {
+                    low = mid + 1;
+                } else if (starts[mid] < start) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+}
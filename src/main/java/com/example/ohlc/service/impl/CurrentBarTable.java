@@ -0,0 +1,442 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open-addressing table of current bars keyed by packed (instrumentId, period).
+ * Bar values live in primitive arrays, so updating an existing bar allocates nothing.
+ * Mutations are allowed only from the owning shard thread, other threads may read.
+ * Every slot carries a seqlock version, odd while the shard thread writes the slot,
+ * so readers retry instead of returning a bar mixed from two updates and the writer never waits.
+ * Slots are never removed: a closed bar keeps its slot with {@link #NO_BAR} start,
+ * so the next bar of the same instrument and period reuses it.
+ * Timestamps of the first and the last quote let an out-of-order quote replace the open or close price
+ * only if it really was earlier or later.
+ */
+public class CurrentBarTable {
+    public static final long NO_BAR = Long.MIN_VALUE;
+
+    private static final int PERIOD_BITS = 4;
+    private static final long PERIOD_MASK = (1L << PERIOD_BITS) - 1;
+    private static final long EMPTY_KEY = 0;
+    private static final OhlcPeriod[] PERIODS = OhlcPeriod.values();
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    static {
+        if (PERIODS.length >= PERIOD_MASK) {
+            throw new ExceptionInInitializerError("Too many periods to pack into a bar key: " + PERIODS.length);
+        }
+    }
+
+    private volatile Slots slots;
+    private int size;
+
+    public CurrentBarTable(int expectedSize) {
+        this.slots = new Slots(tableSizeFor(expectedSize));
+    }
+
+    private CurrentBarTable(Slots slots, int size) {
+        this.slots = slots;
+        this.size = size;
+    }
+
+    /** copy for a background reader, taken by the owning shard thread */
+    public CurrentBarTable copy() {
+        return new CurrentBarTable(new Slots(slots), size);
+    }
+
+    /** @return slot of the bar, a new empty slot is inserted if absent */
+    public int slot(long instrumentId, OhlcPeriod period) {
+        long key = key(instrumentId, period);
+        var s = slots;
+        int index = index(s, key);
+        while (true) {
+            long k = s.keys[index];
+            if (k == key) {
+                return index;
+            }
+            if (k == EMPTY_KEY) {
+                break;
+            }
+            index = (index + 1) & s.mask;
+        }
+        if ((size + 1) * 2 > s.keys.length) {
+            resize();
+            return slot(instrumentId, period);
+        }
+        s.startPeriod[index] = NO_BAR;
+        KEYS.setRelease(s.keys, index, key);
+        size++;
+        return index;
+    }
+
+    /** @return slot of the packed key or -1 */
+    public int find(long key) {
+        var s = slots;
+        int index = index(s, key);
+        while (true) {
+            long k = s.keys[index];
+            if (k == key) {
+                return index;
+            }
+            if (k == EMPTY_KEY) {
+                return -1;
+            }
+            index = (index + 1) & s.mask;
+        }
+    }
+
+    /** may be called from any thread, returns a consistent copy of the current bar or null */
+    public Ohlc getCurrent(long instrumentId, OhlcPeriod period) {
+        long key = key(instrumentId, period);
+        while (true) {
+            var s = slots;
+            int slot = lookup(s, key);
+            if (slot < 0) {
+                return null;
+            }
+            long version = beginRead(s, slot);
+            var current = toOhlc(s, slot);
+            if (validate(s, slot, version)) {
+                return current.getStartPeriod() == NO_BAR ? null : current;
+            }
+        }
+    }
+
+    /** may be called from any thread, the newest of {@link #getCurrentBars} or null */
+    public Ohlc getCurrent(long instrumentId, OhlcPeriod period, OhlcPeriod finest, CurrentBarTable pendingBars) {
+        var bars = getCurrentBars(instrumentId, period, finest, pendingBars);
+        return bars.isEmpty() ? null : bars.get(0);
+    }
+
+    /**
+     * May be called from any thread, returns the not stored bars of a rolled up period newest first, with the finest bars
+     * merged in: the pending one of the reorder window, if any, and the live one. A coarse bar still waiting for
+     * its deadline follows the bar of the live one. A finest bar is rolled up before it is closed,
+     * so it is seen in the coarse bar, as a finest bar or in both, which merges to the same bar.
+     */
+    public List<Ohlc> getCurrentBars(long instrumentId, OhlcPeriod period, OhlcPeriod finest, CurrentBarTable pendingBars) {
+        long key = key(instrumentId, period);
+        long liveKey = key(instrumentId, finest);
+        Ohlc current;
+        Ohlc pending;
+        Ohlc live;
+        while (true) {
+            var s = slots;
+            var ps = pendingBars.slots;
+            int slot = lookup(s, key);
+            int liveSlot = lookup(s, liveKey);
+            int pendingSlot = lookup(ps, liveKey);
+            long version = slot < 0 ? 0 : beginRead(s, slot);
+            long liveVersion = liveSlot < 0 ? 0 : beginRead(s, liveSlot);
+            long pendingVersion = pendingSlot < 0 ? 0 : beginRead(ps, pendingSlot);
+            current = slot < 0 ? null : toOhlc(s, slot);
+            live = liveSlot < 0 ? null : toOhlc(s, liveSlot);
+            pending = pendingSlot < 0 ? null : toOhlc(ps, pendingSlot);
+            if ((slot < 0 || validate(s, slot, version)) && (liveSlot < 0 || validate(s, liveSlot, liveVersion))
+                    && (pendingSlot < 0 || validate(ps, pendingSlot, pendingVersion))) {
+                break;
+            }
+        }
+        var result = new ArrayList<Ohlc>(2);
+        Ohlc bar = null;
+        // pieces in time order: finest bars rolled up already, then the pending one and the live one
+        for (Ohlc piece : new Ohlc[]{current, pending, live}) {
+            if (!isBar(piece)) {
+                continue;
+            }
+            long startPeriod = period.getStartPeriod(piece.getStartPeriod());
+            if (bar != null && bar.getStartPeriod() == startPeriod) {
+                bar.setHighPrice(Math.max(bar.getHighPrice(), piece.getHighPrice()));
+                bar.setLowPrice(Math.min(bar.getLowPrice(), piece.getLowPrice()));
+                bar.setClosePrice(piece.getClosePrice());
+                continue;
+            }
+            if (bar != null) {
+                result.add(0, bar);
+            }
+            bar = piece;
+            bar.setPeriod(period);
+            bar.setStartPeriod(startPeriod);
+        }
+        if (bar != null) {
+            result.add(0, bar);
+        }
+        return result;
+    }
+
+    public void open(int slot, long startPeriod, double price) {
+        open(slot, startPeriod, price, price, price, price);
+    }
+
+    public void open(int slot, long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+        open(slot, startPeriod, openPrice, highPrice, lowPrice, closePrice, startPeriod, startPeriod);
+    }
+
+    public void open(int slot, long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice,
+                     long firstTimestamp, long lastTimestamp) {
+        var s = slots;
+        beginWrite(s, slot);
+        s.openPrice[slot] = openPrice;
+        s.highPrice[slot] = highPrice;
+        s.lowPrice[slot] = lowPrice;
+        s.closePrice[slot] = closePrice;
+        s.firstTimestamp[slot] = firstTimestamp;
+        s.lastTimestamp[slot] = lastTimestamp;
+        s.startPeriod[slot] = startPeriod;
+        endWrite(s, slot);
+    }
+
+    public void update(int slot, double price) {
+        merge(slot, price, price, price);
+    }
+
+    /** adds a quote of the bar period, it sets the open or close price only if no quote was earlier or later */
+    public void update(int slot, double price, long timestamp) {
+        var s = slots;
+        beginWrite(s, slot);
+        if (timestamp < s.firstTimestamp[slot]) {
+            s.openPrice[slot] = price;
+            s.firstTimestamp[slot] = timestamp;
+        }
+        s.highPrice[slot] = Math.max(s.highPrice[slot], price);
+        s.lowPrice[slot] = Math.min(s.lowPrice[slot], price);
+        if (timestamp >= s.lastTimestamp[slot]) {
+            s.closePrice[slot] = price;
+            s.lastTimestamp[slot] = timestamp;
+        }
+        endWrite(s, slot);
+    }
+
+    /** widens the high and low of the bar by a piece which is neither its first nor its last one */
+    public void extend(int slot, double highPrice, double lowPrice) {
+        var s = slots;
+        beginWrite(s, slot);
+        s.highPrice[slot] = Math.max(s.highPrice[slot], highPrice);
+        s.lowPrice[slot] = Math.min(s.lowPrice[slot], lowPrice);
+        endWrite(s, slot);
+    }
+
+    /** appends a later piece of the same period to the bar */
+    public void merge(int slot, double highPrice, double lowPrice, double closePrice) {
+        var s = slots;
+        beginWrite(s, slot);
+        s.highPrice[slot] = Math.max(s.highPrice[slot], highPrice);
+        s.lowPrice[slot] = Math.min(s.lowPrice[slot], lowPrice);
+        s.closePrice[slot] = closePrice;
+        endWrite(s, slot);
+    }
+
+    public void close(int slot) {
+        var s = slots;
+        beginWrite(s, slot);
+        s.startPeriod[slot] = NO_BAR;
+        endWrite(s, slot);
+    }
+
+    public boolean isOpen(int slot) {
+        var s = slots;
+        return s.keys[slot] != EMPTY_KEY && s.startPeriod[slot] != NO_BAR;
+    }
+
+    public long getStartPeriod(int slot) {
+        return slots.startPeriod[slot];
+    }
+
+    /** packed key of the slot, stays valid across resizes unlike the slot itself */
+    public long getKey(int slot) {
+        return slots.keys[slot];
+    }
+
+    public OhlcPeriod getPeriod(int slot) {
+        return period(slots.keys[slot]);
+    }
+
+    public double getOpenPrice(int slot) {
+        return slots.openPrice[slot];
+    }
+
+    public double getHighPrice(int slot) {
+        return slots.highPrice[slot];
+    }
+
+    public double getLowPrice(int slot) {
+        return slots.lowPrice[slot];
+    }
+
+    public double getClosePrice(int slot) {
+        return slots.closePrice[slot];
+    }
+
+    public long getFirstTimestamp(int slot) {
+        return slots.firstTimestamp[slot];
+    }
+
+    public long getLastTimestamp(int slot) {
+        return slots.lastTimestamp[slot];
+    }
+
+    public Ohlc toOhlc(int slot) {
+        return toOhlc(slots, slot);
+    }
+
+    /** upper bound of slot indexes, valid until the next insert */
+    public int capacity() {
+        return slots.keys.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        var old = slots;
+        var s = new Slots(old.keys.length * 2);
+        for (int i = 0; i < old.keys.length; i++) {
+            long key = old.keys[i];
+            if (key == EMPTY_KEY) {
+                continue;
+            }
+            int index = index(s, key);
+            while (s.keys[index] != EMPTY_KEY) {
+                index = (index + 1) & s.mask;
+            }
+            s.keys[index] = key;
+            s.openPrice[index] = old.openPrice[i];
+            s.highPrice[index] = old.highPrice[i];
+            s.lowPrice[index] = old.lowPrice[i];
+            s.closePrice[index] = old.closePrice[i];
+            s.firstTimestamp[index] = old.firstTimestamp[i];
+            s.lastTimestamp[index] = old.lastTimestamp[i];
+            s.startPeriod[index] = old.startPeriod[i];
+        }
+        slots = s;
+    }
+
+    /** @return slot of the key or -1, may be called from any thread */
+    private static int lookup(Slots s, long key) {
+        int index = index(s, key);
+        while (true) {
+            long k = (long) KEYS.getAcquire(s.keys, index);
+            if (k == key) {
+                return index;
+            }
+            if (k == EMPTY_KEY) {
+                return -1;
+            }
+            index = (index + 1) & s.mask;
+        }
+    }
+
+    private static void beginWrite(Slots s, int slot) {
+        VERSIONS.setOpaque(s.versions, slot, s.versions[slot] + 1);
+        VarHandle.storeStoreFence();
+    }
+
+    private static void endWrite(Slots s, int slot) {
+        VERSIONS.setRelease(s.versions, slot, s.versions[slot] + 1);
+    }
+
+    /** waits while the slot is being written, returns its even version */
+    private static long beginRead(Slots s, int slot) {
+        while (true) {
+            long version = (long) VERSIONS.getAcquire(s.versions, slot);
+            if ((version & 1) == 0) {
+                return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /** true if the slot was not written since beginRead, so the values read in between are consistent */
+    private static boolean validate(Slots s, int slot, long version) {
+        VarHandle.loadLoadFence();
+        return (long) VERSIONS.getOpaque(s.versions, slot) == version;
+    }
+
+    private static boolean isBar(Ohlc ohlc) {
+        return ohlc != null && ohlc.getStartPeriod() != NO_BAR;
+    }
+
+    private static Ohlc toOhlc(Slots s, int slot) {
+        long key = s.keys[slot];
+        return Ohlc.builder()
+                .instrumentId(instrumentId(key))
+                .period(period(key))
+                .startPeriod(s.startPeriod[slot])
+                .openPrice(s.openPrice[slot])
+                .highPrice(s.highPrice[slot])
+                .lowPrice(s.lowPrice[slot])
+                .closePrice(s.closePrice[slot])
+                .build();
+    }
+
+    static long key(long instrumentId, OhlcPeriod period) {
+        return (instrumentId << PERIOD_BITS) | (period.ordinal() + 1);
+    }
+
+    static long instrumentId(long key) {
+        return key >> PERIOD_BITS;
+    }
+
+    static OhlcPeriod period(long key) {
+        return PERIODS[(int) (key & PERIOD_MASK) - 1];
+    }
+
+    private static int index(Slots s, long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & s.mask;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Math.max(16, expectedSize * 2);
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private static final class Slots {
+        private final int mask;
+        private final long[] keys;
+        /** seqlock versions of the slots */
+        private final long[] versions;
+        private final long[] startPeriod;
+        private final double[] openPrice;
+        private final double[] highPrice;
+        private final double[] lowPrice;
+        private final double[] closePrice;
+        private final long[] firstTimestamp;
+        private final long[] lastTimestamp;
+
+        private Slots(int capacity) {
+            this.mask = capacity - 1;
+            this.keys = new long[capacity];
+            this.versions = new long[capacity];
+            this.startPeriod = new long[capacity];
+            this.openPrice = new double[capacity];
+            this.highPrice = new double[capacity];
+            this.lowPrice = new double[capacity];
+            this.closePrice = new double[capacity];
+            this.firstTimestamp = new long[capacity];
+            this.lastTimestamp = new long[capacity];
+        }
+
+        private Slots(Slots other) {
+            this.mask = other.mask;
+            this.keys = other.keys.clone();
+            this.versions = other.versions.clone();
+            this.startPeriod = other.startPeriod.clone();
+            this.openPrice = other.openPrice.clone();
+            this.highPrice = other.highPrice.clone();
+            this.lowPrice = other.lowPrice.clone();
+            this.closePrice = other.closePrice.clone();
+            this.firstTimestamp = other.firstTimestamp.clone();
+            this.lastTimestamp = other.lastTimestamp.clone();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bars of one instrument and period in a memory-mapped file sorted by start.
+ * Layout: header (count, capacity), startPeriod column of capacity longs,
+ * then capacity fixed-width price records of open, high, low and close doubles.
+ * The count is written after the record, so an append torn by a process crash is not visible.
+ * Records are never shifted in place: the file is rewritten to a new file which replaces it by an atomic rename
+ * when it doubles, when a bar is inserted before the newest one and when a range followed by newer bars is replaced,
+ * so a crash leaves either the old or the new file.
+ * The channel is closed once the file is mapped, an open file holds a mapping but no file descriptor.
+ */
+public class MappedBarFile {
+    private static final int HEADER_SIZE = 16;
+    private static final int PRICES_SIZE = 4 * Double.BYTES;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Path path;
+    private MappedByteBuffer buffer;
+    private int count;
+    private int capacity;
+    /** set once the file is forced, so a closed file can be opened again right away */
+    private volatile boolean closed;
+
+    private MappedBarFile(Path path) throws IOException {
+        this.path = path;
+        long storedCount = 0;
+        long storedCapacity = INITIAL_CAPACITY;
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > 0) {
+                var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                storedCount = header.getLong(0);
+                storedCapacity = header.getLong(8);
+                if (storedCapacity <= 0 || storedCount > storedCapacity
+                        || channel.size() < HEADER_SIZE + storedCapacity * (Long.BYTES + PRICES_SIZE)) {
+                    throw new IllegalStateException("Corrupted bar file, capacity " + storedCapacity + " count " + storedCount);
+                }
+            }
+        }
+        map((int) storedCapacity);
+        buffer.putLong(8, storedCapacity);
+        count = (int) storedCount;
+    }
+
+    public static MappedBarFile open(Path path) {
+        try {
+            // left by a crash while rewriting, the file itself is intact
+            Files.deleteIfExists(grownPath(path));
+            return new MappedBarFile(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open " + path, e);
+        }
+    }
+
+    /** appends the bar or replaces the bar with the same start */
+    public synchronized void put(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+        int index = count == 0 || startPeriod > getStart(count - 1) ? -count - 1 : search(startPeriod);
+        boolean inserted = index < 0;
+        if (inserted) {
+            index = -index - 1;
+            if (index < count) {
+                var bar = Ohlc.builder().startPeriod(startPeriod).openPrice(openPrice).highPrice(highPrice)
+                        .lowPrice(lowPrice).closePrice(closePrice).build();
+                rewrite(capacityFor(count + 1), index, index, List.of(bar));
+                return;
+            }
+            if (count == capacity) {
+                rewrite(capacity * 2, count, count, List.of());
+            }
+            buffer.putLong(startOffset(index), startPeriod);
+        }
+        int offset = pricesOffset(index);
+        buffer.putDouble(offset, openPrice);
+        buffer.putDouble(offset + Double.BYTES, highPrice);
+        buffer.putDouble(offset + 2 * Double.BYTES, lowPrice);
+        buffer.putDouble(offset + 3 * Double.BYTES, closePrice);
+        if (inserted) {
+            buffer.putLong(0, ++count);
+        }
+    }
+
+    /** widens the bar with the same start by the high and low, keeping its open and close, or puts the bar */
+    public synchronized void amend(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+        int index = search(startPeriod);
+        if (index < 0) {
+            put(startPeriod, openPrice, highPrice, lowPrice, closePrice);
+            return;
+        }
+        int offset = pricesOffset(index);
+        buffer.putDouble(offset + Double.BYTES, Math.max(buffer.getDouble(offset + Double.BYTES), highPrice));
+        buffer.putDouble(offset + 2 * Double.BYTES, Math.min(buffer.getDouble(offset + 2 * Double.BYTES), lowPrice));
+    }
+
+    /**
+     * removes the bars with from <= startPeriod < to and puts the given bars of that range, readers see either state.
+     * A range followed by newer bars is replaced in a new file. A crash while the range at the end is replaced
+     * may leave it half replaced, replacing it again repairs it.
+     */
+    public synchronized void replace(long from, long to, List<Ohlc> bars) {
+        var sorted = new ArrayList<>(bars);
+        sorted.sort(Comparator.comparingLong(Ohlc::getStartPeriod));
+        if (!sorted.isEmpty() && (sorted.get(0).getStartPeriod() < from || sorted.get(sorted.size() - 1).getStartPeriod() >= to)) {
+            throw new IllegalArgumentException("Bars outside of the replaced range " + from + " - " + to);
+        }
+        int first = search(from);
+        first = first < 0 ? -first - 1 : first;
+        int end = search(to);
+        end = end < 0 ? -end - 1 : end;
+        if (end < count) {
+            rewrite(capacityFor(first + sorted.size() + count - end), first, end, sorted);
+            return;
+        }
+        if (end > first) {
+            count = first;
+            buffer.putLong(0, count);
+        }
+        for (Ohlc ohlc : sorted) {
+            put(ohlc.getStartPeriod(), ohlc.getOpenPrice(), ohlc.getHighPrice(), ohlc.getLowPrice(), ohlc.getClosePrice());
+        }
+    }
+
+    /** at most limit newest bars with from <= startPeriod < to in descending order */
+    public synchronized List<Ohlc> read(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        int end = search(to);
+        end = end < 0 ? -end - 1 : end;
+        List<Ohlc> result = new ArrayList<>(Math.min(limit, end));
+        for (int i = end - 1; i >= 0 && result.size() < limit; i--) {
+            long start = getStart(i);
+            if (start < from) {
+                break;
+            }
+            int offset = pricesOffset(i);
+            result.add(Ohlc.builder()
+                    .instrumentId(instrumentId)
+                    .period(period)
+                    .startPeriod(start)
+                    .openPrice(buffer.getDouble(offset))
+                    .highPrice(buffer.getDouble(offset + Double.BYTES))
+                    .lowPrice(buffer.getDouble(offset + 2 * Double.BYTES))
+                    .closePrice(buffer.getDouble(offset + 3 * Double.BYTES))
+                    .build());
+        }
+        return result;
+    }
+
+    /**
+     * copies at most starts.length newest bars with from <= startPeriod < to in descending order,
+     * prices holds four doubles per bar
+     * @return count of the copied bars
+     */
+    public synchronized int read(long from, long to, long[] starts, double[] prices) {
+        int end = search(to);
+        end = end < 0 ? -end - 1 : end;
+        int n = 0;
+        for (int i = end - 1; i >= 0 && n < starts.length; i--, n++) {
+            long start = getStart(i);
+            if (start < from) {
+                break;
+            }
+            starts[n] = start;
+            int offset = pricesOffset(i);
+            for (int p = 0; p < 4; p++) {
+                prices[4 * n + p] = buffer.getDouble(offset + p * Double.BYTES);
+            }
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    /** the file must not be used after it is closed */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        buffer.force();
+        closed = true;
+    }
+
+    /** does not wait for the file lock, true only after the file was forced */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** @return index of the start or -(insertion point) - 1 */
+    private int search(long startPeriod) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long start = getStart(mid);
+            if (start < startPeriod) {
+                low = mid + 1;
+            } else if (start > startPeriod) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    private long getStart(int index) {
+        return buffer.getLong(startOffset(index));
+    }
+
+    private int capacityFor(int size) {
+        int result = capacity;
+        while (result < size) {
+            result *= 2;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the bars before first, the given bars sorted by start and the bars from end on to a new file,
+     * which replaces this one by an atomic rename. Of given bars with the same start the last one is kept.
+     */
+    private void rewrite(int newCapacity, int first, int end, List<Ohlc> bars) {
+        var newPath = grownPath(path);
+        int newCount = first;
+        try {
+            try (var channel = FileChannel.open(newPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var target = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+                target.order(ByteOrder.LITTLE_ENDIAN);
+                copyRecords(target, newCapacity, 0, first, 0);
+                for (int i = 0; i < bars.size(); i++) {
+                    var bar = bars.get(i);
+                    if (i + 1 < bars.size() && bars.get(i + 1).getStartPeriod() == bar.getStartPeriod()) {
+                        continue;
+                    }
+                    target.putLong(HEADER_SIZE + newCount * Long.BYTES, bar.getStartPeriod());
+                    int offset = HEADER_SIZE + newCapacity * Long.BYTES + newCount * PRICES_SIZE;
+                    target.putDouble(offset, bar.getOpenPrice());
+                    target.putDouble(offset + Double.BYTES, bar.getHighPrice());
+                    target.putDouble(offset + 2 * Double.BYTES, bar.getLowPrice());
+                    target.putDouble(offset + 3 * Double.BYTES, bar.getClosePrice());
+                    newCount++;
+                }
+                copyRecords(target, newCapacity, end, count, newCount);
+                newCount += count - end;
+                target.putLong(0, newCount);
+                target.putLong(8, newCapacity);
+                target.force();
+                channel.force(true);
+            }
+            Files.move(newPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rewrite " + path, e);
+        }
+        map(newCapacity);
+        count = newCount;
+    }
+
+    /** copies the records from <= index < to into the target layout of the given capacity, starting at index at */
+    private void copyRecords(ByteBuffer target, int targetCapacity, int from, int to, int at) {
+        var starts = buffer.duplicate();
+        starts.position(startOffset(from)).limit(startOffset(to));
+        target.duplicate().position(HEADER_SIZE + at * Long.BYTES).put(starts);
+        var prices = buffer.duplicate();
+        prices.position(pricesOffset(from)).limit(pricesOffset(to));
+        target.duplicate().position(HEADER_SIZE + targetCapacity * Long.BYTES + at * PRICES_SIZE).put(prices);
+    }
+
+    private void map(int capacity) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * (Long.BYTES + PRICES_SIZE);
+    }
+
+    private static Path grownPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".grown");
+    }
+
+    private int startOffset(int index) {
+        return HEADER_SIZE + index * Long.BYTES;
+    }
+
+    private int pricesOffset(int index) {
+        return HEADER_SIZE + capacity * Long.BYTES + index * PRICES_SIZE;
+    }
+}
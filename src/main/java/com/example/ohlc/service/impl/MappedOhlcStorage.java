@@ -0,0 +1,212 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
+import com.example.ohlc.service.OhlcStorage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps closed bars in one {@link MappedBarFile} per instrument and period instead of the database.
+ * A store is a few writes to the mapped page cache, the OS writes pages behind
+ * and they are forced to disk every flush interval and on shutdown.
+ * At most storage.mapped.max.open.files are kept open, the least recently used file is evicted first.
+ * Closing forces a file to disk, so evicted files are closed by the flush task outside the lock of all files;
+ * one used again before that is taken back instead of being mapped twice.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "storage.type", havingValue = "mapped")
+public class MappedOhlcStorage implements OhlcStorage {
+    private static final int CHUNK_SIZE = 1024;
+    @Value("${storage.mapped.dir}")
+    private String directory;
+    @Value("${storage.mapped.max.open.files}")
+    private int maxOpenFiles;
+    private Path root;
+    /** in access order, guarded by itself */
+    private Map<Long, MappedBarFile> files;
+    /** evicted from files and not closed yet, guarded by files */
+    private final Map<Long, MappedBarFile> evicted = new HashMap<>();
+
+    @PostConstruct
+    public void start() {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("At least one file must be open: " + maxOpenFiles);
+        }
+        root = Paths.get(directory);
+        try {
+            Files.createDirectories(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create " + root, e);
+        }
+        files = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedBarFile> eldest) {
+                if (size() <= maxOpenFiles) {
+                    return false;
+                }
+                if (!eldest.getValue().isClosed()) {
+                    evicted.put(eldest.getKey(), eldest.getValue());
+                }
+                return true;
+            }
+        };
+        log.info("Storing bars in {}", root.toAbsolutePath());
+    }
+
+    @PreDestroy
+    public void stop() {
+        synchronized (files) {
+            files.values().forEach(MappedBarFile::close);
+            files.clear();
+            evicted.values().forEach(MappedBarFile::close);
+            evicted.clear();
+        }
+    }
+
+    @Override
+    public void store(Ohlc ohlc) {
+        withFile(ohlc.getInstrumentId(), ohlc.getPeriod(), true, file -> {
+            file.put(ohlc.getStartPeriod(), ohlc.getOpenPrice(), ohlc.getHighPrice(), ohlc.getLowPrice(), ohlc.getClosePrice());
+            return null;
+        });
+    }
+
+    @Override
+    public void amend(Ohlc ohlc) {
+        withFile(ohlc.getInstrumentId(), ohlc.getPeriod(), true, file -> {
+            file.amend(ohlc.getStartPeriod(), ohlc.getOpenPrice(), ohlc.getHighPrice(), ohlc.getLowPrice(), ohlc.getClosePrice());
+            return null;
+        });
+    }
+
+    @Override
+    public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
+        return getHistorical(instrumentId, period, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        var result = withFile(instrumentId, period, false, file -> file.read(instrumentId, period, from, to, limit));
+        return result == null ? new ArrayList<>() : result;
+    }
+
+    @Override
+    public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars) {
+        withFile(instrumentId, period, !bars.isEmpty(), file -> {
+            file.replace(from, to, bars);
+            return null;
+        });
+    }
+
+    /** copies chunks of bars under the file lock and visits them outside it, so a slow visitor doesn't hold up stores */
+    @Override
+    public void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+        var starts = new long[Math.min(limit, CHUNK_SIZE)];
+        var prices = new double[4 * starts.length];
+        int remaining = limit;
+        while (remaining > 0) {
+            long end = to;
+            var read = withFile(instrumentId, period, false, file -> file.read(from, end, starts, prices));
+            if (read == null) {
+                return;
+            }
+            int n = Math.min(read, remaining);
+            for (int i = 0; i < n; i++) {
+                visitor.visit(starts[i], prices[4 * i], prices[4 * i + 1], prices[4 * i + 2], prices[4 * i + 3]);
+            }
+            if (n < starts.length) {
+                return;
+            }
+            remaining -= n;
+            to = starts[n - 1];
+        }
+    }
+
+    /** closes the evicted files and forces the open ones, a store waits only while its own file is forced */
+    @Scheduled(fixedDelayString = "${storage.flush.interval.ms}")
+    public void force() {
+        List<MappedBarFile> closing;
+        List<MappedBarFile> open;
+        synchronized (files) {
+            closing = new ArrayList<>(evicted.values());
+            open = new ArrayList<>(files.values());
+        }
+        closing.forEach(MappedBarFile::close);
+        synchronized (files) {
+            evicted.values().removeIf(MappedBarFile::isClosed);
+        }
+        for (MappedBarFile file : open) {
+            synchronized (file) {
+                if (!file.isClosed()) {
+                    file.force();
+                }
+            }
+        }
+    }
+
+    /**
+     * runs the action on the open file, holding its lock so it can't be closed meanwhile,
+     * and reopens it when it was closed between the lookup and the action
+     * @param create false to return null without creating a missing file
+     */
+    private <T> T withFile(long instrumentId, OhlcPeriod period, boolean create, Function<MappedBarFile, T> action) {
+        while (true) {
+            var file = file(instrumentId, period, create);
+            if (file == null) {
+                return null;
+            }
+            synchronized (file) {
+                if (!file.isClosed()) {
+                    return action.apply(file);
+                }
+            }
+        }
+    }
+
+    private MappedBarFile file(long instrumentId, OhlcPeriod period, boolean create) {
+        long key = CurrentBarTable.key(instrumentId, period);
+        synchronized (files) {
+            var file = files.get(key);
+            if (file == null || file.isClosed()) {
+                // a file is opened again only once it was closed, so two open files never map the same path
+                file = evicted.remove(key);
+                if (file == null || file.isClosed()) {
+                    var path = path(instrumentId, period);
+                    if (!create && !Files.exists(path)) {
+                        return null;
+                    }
+                    file = MappedBarFile.open(path);
+                }
+                files.put(key, file);
+            }
+            return file;
+        }
+    }
+
+    private Path path(long instrumentId, OhlcPeriod period) {
+        return root.resolve(instrumentId + "-" + period + ".bars");
+    }
+}
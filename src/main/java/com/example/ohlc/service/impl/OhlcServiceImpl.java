@@ -1,112 +1,684 @@
 package com.example.ohlc.service.impl;
 
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.TaskLanes;
+import com.example.ohlc.dto.IntervalBar;
+import com.example.ohlc.dto.OhlcPage;
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.dto.Quote;
 import com.example.ohlc.entity.Ohlc;
-import com.example.ohlc.entity.RawOhlcDataKey;
+import com.example.ohlc.service.BarVisitor;
 import com.example.ohlc.service.OhlcService;
 import com.example.ohlc.service.OhlcStorage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 
-import java.time.Instant;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
+/** not created by the backfill, which must not start the shards or read their spill files */
 @Slf4j
 @Service
+@Profile("!backfill")
 @RequiredArgsConstructor
 public class OhlcServiceImpl implements OhlcService {
-    private final static ZoneOffset CURRENT_ZONE = ZoneOffset.UTC;
-
-    private final Map<RawOhlcDataKey, Ohlc> rawOhlcData = new ConcurrentHashMap<>();
     private final OhlcStorage ohlcStorage;
-    private final ThreadPoolTaskExecutor threadPoolTaskExecutor;
+    private final QuoteShardExecutor quoteShardExecutor;
+    private final Clock clock;
+    private final RecentBarCache recentBarCache;
+    private final TaskLanes taskLanes;
+    @Value("${ohlc.expected.instruments}")
+    private int expectedInstruments;
+    /** aggregated periods, ordered from the finest to the coarsest after start */
+    @Value("${ohlc.periods}")
+    private OhlcPeriod[] periods;
+    /** quotes update only the finest period, coarser bars are merged from closed finer bars, so a quote costs the same for any number of periods */
+    @Value("${ohlc.rollup.enabled}")
+    private boolean rollupEnabled;
+    /** current bars are journaled and checkpointed, so a restart continues the open bars */
+    @Value("${ohlc.checkpoint.enabled}")
+    private boolean checkpointEnabled;
+    @Value("${ohlc.checkpoint.dir}")
+    private String checkpointDirectory;
+    /** per period delays of the watermark behind the clock, e.g. M1:2000,H1:2000, periods not listed close right at their end */
+    @Value("${ohlc.reorder.windows}")
+    private String reorderWindows;
+    /** reorder window millis by period ordinal */
+    private long[] windows;
+    private BarCheckpointer barCheckpointer;
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+    private boolean stopped;
+    private OhlcPeriod[] quotePeriods;
+    /** current bars of every shard, written only by the shard's own thread */
+    private List<CurrentBarTable> rawOhlcData;
+    /** previous bars of every shard which wait for late quotes until the watermark passes their end */
+    private List<CurrentBarTable> pendingBars;
+    /** ends of the current bars of every shard */
+    private List<BarDeadlineIndex> barDeadlines;
+    private List<ShardStats> shardStats;
+    private BarPyramid barPyramid;
+    private final LongAdder historicalCount = new LongAdder();
+    private final LongAdder historicalNanos = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        periods = EnumSet.copyOf(Arrays.asList(periods)).toArray(new OhlcPeriod[0]);
+        quotePeriods = rollupEnabled ? new OhlcPeriod[]{periods[0]} : periods;
+        windows = parseWindows(reorderWindows);
+        barPyramid = new BarPyramid(periods, ohlcStorage);
+        int shardCount = quoteShardExecutor.getShardCount();
+        int expectedBars = expectedInstruments / shardCount * periods.length;
+        rawOhlcData = new ArrayList<>(shardCount);
+        pendingBars = new ArrayList<>(shardCount);
+        barDeadlines = new ArrayList<>(shardCount);
+        shardStats = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            rawOhlcData.add(new CurrentBarTable(expectedBars));
+            pendingBars.add(new CurrentBarTable(16));
+            barDeadlines.add(new BarDeadlineIndex());
+            shardStats.add(new ShardStats());
+        }
+        if (checkpointEnabled) {
+            barCheckpointer = new BarCheckpointer(Paths.get(checkpointDirectory), shardCount);
+            barCheckpointer.restore(this::restoreBar, quote -> saveQuoteRawData(quoteShardExecutor.shardOf(quote.getInstrumentId()), quote));
+            quoteShardExecutor.start(this::journalQuote, this::flushJournal);
+        } else {
+            quoteShardExecutor.start(this::handleQuote, this::closeExpiredPeriod);
+        }
+    }
+
+    /**
+     * Feeds depend on this service, so they stop before it. The shards are shut down here rather than after it:
+     * they handle every queued quote and flush their journals, then the last checkpoint copies the idle tables.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        quoteShardExecutor.shutdown();
+        if (barCheckpointer != null && !stopped) {
+            long generation = barCheckpointer.nextGeneration();
+            var tables = new CurrentBarTable[rawOhlcData.size()];
+            var pendingTables = new CurrentBarTable[rawOhlcData.size()];
+            for (int shard = 0; shard < tables.length; shard++) {
+                copyTables(shard, generation, tables, pendingTables);
+            }
+            barCheckpointer.write(generation, tables, pendingTables);
+            barCheckpointer.close();
+        }
+        // a checkpoint still queued on the maintenance lane finds nothing to write
+        stopped = true;
+    }
+
+    /** writes the checkpoint on the maintenance lane, so a large table never holds up the scheduler */
+    @Scheduled(fixedDelayString = "${ohlc.checkpoint.interval.ms}")
+    public void scheduleCheckpoint() {
+        if (barCheckpointer == null || !checkpointScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        taskLanes.execute(TaskLanes.Lane.MAINTENANCE, () -> {
+            try {
+                checkpoint();
+            } finally {
+                checkpointScheduled.set(false);
+            }
+        });
+    }
+
+    /** copies the shard tables between quotes and writes them on the calling thread */
+    public synchronized void checkpoint() {
+        if (barCheckpointer == null || stopped) {
+            return;
+        }
+        long generation = barCheckpointer.nextGeneration();
+        var tables = new CurrentBarTable[rawOhlcData.size()];
+        var pendingTables = new CurrentBarTable[rawOhlcData.size()];
+        quoteShardExecutor.executeOnAllShards(shard -> copyTables(shard, generation, tables, pendingTables)).join();
+        barCheckpointer.write(generation, tables, pendingTables);
+    }
+
+    /** called by the shard thread or once the shards are shut down */
+    private void copyTables(int shard, long generation, CurrentBarTable[] tables, CurrentBarTable[] pendingTables) {
+        barCheckpointer.rotate(shard, generation);
+        tables[shard] = rawOhlcData.get(shard).copy();
+        pendingTables[shard] = pendingBars.get(shard).copy();
+    }
 
     @Override
     public Ohlc getCurrent(long instrumentId, OhlcPeriod period) {
-        return getCurrent(RawOhlcDataKey.of(instrumentId, period));
+        int shard = quoteShardExecutor.shardOf(instrumentId);
+        var table = rawOhlcData.get(shard);
+        if (!rollupEnabled || period == periods[0] || !isAggregated(period)) {
+            return table.getCurrent(instrumentId, period);
+        }
+        return table.getCurrent(instrumentId, period, periods[0], pendingBars.get(shard));
+    }
+
+    /** the bars which are not stored yet newest first: the current one and those held by the reorder window */
+    private List<Ohlc> getCurrentBars(long instrumentId, OhlcPeriod period) {
+        int shard = quoteShardExecutor.shardOf(instrumentId);
+        var table = rawOhlcData.get(shard);
+        if (rollupEnabled && period != periods[0] && isAggregated(period)) {
+            return table.getCurrentBars(instrumentId, period, periods[0], pendingBars.get(shard));
+        }
+        var result = new ArrayList<Ohlc>(2);
+        var current = table.getCurrent(instrumentId, period);
+        if (current != null) {
+            result.add(current);
+        }
+        // read after the current bar, so a bar retired in between is seen twice rather than missed
+        var pending = pendingBars.get(shard).getCurrent(instrumentId, period);
+        if (pending != null && (current == null || pending.getStartPeriod() < current.getStartPeriod())) {
+            result.add(pending);
+        }
+        return result;
+    }
+
+    /** getCurrentBars with from <= startPeriod < to, at most limit */
+    private List<Ohlc> getCurrentBars(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        var result = getCurrentBars(instrumentId, period);
+        result.removeIf(bar -> bar.getStartPeriod() < from || bar.getStartPeriod() >= to);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /**
+     * The not stored bars first, then the stored ones older than them, at most limit.
+     * A bar stored while the bars were read is not returned twice.
+     */
+    private static List<Ohlc> withCurrent(List<Ohlc> current, List<Ohlc> stored, int limit) {
+        var result = new ArrayList<Ohlc>(Math.min(limit, current.size() + stored.size()));
+        result.addAll(current);
+        long oldest = current.isEmpty() ? Long.MAX_VALUE : current.get(current.size() - 1).getStartPeriod();
+        for (Ohlc bar : stored) {
+            if (result.size() == limit) {
+                break;
+            }
+            if (bar.getStartPeriod() < oldest) {
+                result.add(bar);
+            }
+        }
+        return result;
     }
 
     @Override
     public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
-        return ohlcStorage.getHistorical(instrumentId, period);
+        long start = System.nanoTime();
+        var result = ohlcStorage.getHistorical(instrumentId, period);
+        recordHistorical(start);
+        return result;
+    }
+
+    @Override
+    public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        checkLimit(limit);
+        long start = System.nanoTime();
+        var recent = recentBarCache.get(instrumentId, period, from, to, limit);
+        var result = recent != null ? recent : ohlcStorage.getHistorical(instrumentId, period, from, to, limit);
+        recordHistorical(start);
+        return result;
+    }
+
+    @Override
+    public void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        checkLimit(limit);
+        long start = System.nanoTime();
+        var recent = recentBarCache.get(instrumentId, period, from, to, limit);
+        if (recent != null) {
+            recent.forEach(visitor::visit);
+        } else {
+            ohlcStorage.forEachHistorical(instrumentId, period, from, to, limit, visitor);
+        }
+        recordHistorical(start);
+    }
+
+    @Override
+    public void forEachHistoricalAndCurrent(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        checkLimit(limit);
+        var current = getCurrentBars(instrumentId, period, from, to, limit);
+        for (Ohlc bar : current) {
+            visitor.visit(bar);
+        }
+        if (current.size() == limit) {
+            return;
+        }
+        // stored bars older than the not stored ones, a bar stored while they were read is not visited twice
+        long end = current.isEmpty() ? to : current.get(current.size() - 1).getStartPeriod();
+        forEachHistorical(instrumentId, period, from, end, limit - current.size(), visitor);
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+    }
+
+    public ShardStats getShardStats(int shard) {
+        return shardStats.get(shard);
+    }
+
+    /** historical queries served, from the cache or the storage */
+    public long getHistoricalCount() {
+        return historicalCount.sum();
+    }
+
+    public long getHistoricalNanos() {
+        return historicalNanos.sum();
+    }
+
+    @Override
+    public OhlcPage getHistoricalPage(long instrumentId, OhlcPeriod period, long before, int limit) {
+        checkLimit(limit);
+        var bars = getHistorical(instrumentId, period, Long.MIN_VALUE, before, limit);
+        Long nextCursor = bars.size() < limit ? null : bars.get(bars.size() - 1).getStartPeriod();
+        return new OhlcPage(bars, nextCursor);
     }
 
     @Override
     public List<Ohlc> getHistoricalAndCurrent(long instrumentId, OhlcPeriod period) {
-        var result = ohlcStorage.getHistorical(instrumentId, period);
-        var current = getCurrent(instrumentId, period);
-        if (current != null) {
-            result.add(current);
+        var result = getHistorical(instrumentId, period);
+        var current = getCurrentBars(instrumentId, period);
+        if (!current.isEmpty()) {
+            long oldest = current.get(current.size() - 1).getStartPeriod();
+            result.removeIf(bar -> bar.getStartPeriod() >= oldest);
+            for (int i = current.size() - 1; i >= 0; i--) {
+                result.add(current.get(i));
+            }
         }
         return result;
     }
 
+    @Override
+    public List<Ohlc> getHistoricalAndCurrent(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        var stored = getHistorical(instrumentId, period, from, to, limit);
+        return withCurrent(getCurrentBars(instrumentId, period, from, to, limit), stored, limit);
+    }
+
+    /** instruments missing in the recent bar cache are read from the storage together, the map keeps the order of the ids */
+    @Override
+    public Map<Long, List<Ohlc>> getHistoricalAndCurrent(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit) {
+        checkLimit(limit);
+        long start = System.nanoTime();
+        var result = new LinkedHashMap<Long, List<Ohlc>>();
+        Set<Long> misses = new LinkedHashSet<>();
+        for (Long instrumentId : instrumentIds) {
+            var recent = recentBarCache.get(instrumentId, period, from, to, limit);
+            if (recent != null) {
+                result.put(instrumentId, recent);
+            } else {
+                result.put(instrumentId, null);
+                misses.add(instrumentId);
+            }
+        }
+        if (!misses.isEmpty()) {
+            var stored = ohlcStorage.getHistorical(misses, period, from, to, limit);
+            for (Long instrumentId : misses) {
+                result.put(instrumentId, stored.getOrDefault(instrumentId, List.of()));
+            }
+        }
+        recordHistorical(start);
+        for (var entry : result.entrySet()) {
+            entry.setValue(withCurrent(getCurrentBars(entry.getKey(), period, from, to, limit), entry.getValue(), limit));
+        }
+        return result;
+    }
+
+    /** intervals starting after now can't have bars, so they are not built */
+    @Override
+    public List<IntervalBar> getIntervalBars(long instrumentId, long intervalMillis, long from, long to) {
+        long start = System.nanoTime();
+        long now = clock.millis();
+        var result = barPyramid.build(instrumentId, intervalMillis, from, Math.min(to, now + 1),
+                period -> getCurrent(instrumentId, period));
+        recordHistorical(start);
+        return result;
+    }
+
     @Override
     public void onQuote(Quote quote) {
-        addTask(() -> saveQuoteRawData(quote));
+        quoteShardExecutor.execute(quote);
     }
 
-    @Scheduled(cron = "${close.period.cron}")
-    protected void closeQuotePeriod() {
-        addTask(this::closePeriod);
+    @Override
+    public void onQuotes(List<? extends Quote> quotes) {
+        quoteShardExecutor.executeAll(quotes);
     }
 
-    private void closePeriod() {
-        var now = LocalDateTime.now(CURRENT_ZONE);
-        log.debug("Start close period at {}", now);
-        List<Ohlc> removed = new ArrayList<>();
-        rawOhlcData.entrySet().removeIf(e -> {
-            var period = e.getKey().getPeriod();
-            long periodMillis = getQuotePeriodMillis(period, now);
-            if (e.getValue().getStartPeriod() != periodMillis) {
-                ohlcStorage.store(e.getValue());
-                removed.add(e.getValue());
-                return true;
+    @Override
+    public void onQuotes(long[] instrumentIds, double[] prices, long[] utcTimestamps, int count) {
+        quoteShardExecutor.executeAll(instrumentIds, prices, utcTimestamps, count);
+    }
+
+    /** closes the expired bars of all shards without waiting for the shard timers */
+    protected CompletableFuture<Void> closeQuotePeriod() {
+        return quoteShardExecutor.executeOnAllShards(this::closePeriod);
+    }
+
+    /** called by the shard thread between quote batches, so bars close right at the period end */
+    private void closeExpiredPeriod(int shard) {
+        long deadline = barDeadlines.get(shard).getNextDeadline();
+        long now = clock.millis();
+        if (deadline <= now) {
+            shardStats.get(shard).recordCloseDelay(now - deadline);
+            closePeriod(shard);
+        }
+    }
+
+    /** samples the event time lag of live quotes, replayed quotes are not handled here */
+    private void handleQuote(int shard, Quote quote) {
+        var stats = shardStats.get(shard);
+        if (stats.sampleQuote()) {
+            stats.recordLag(clock.millis() - quote.getUtcTimestamp());
+        }
+        saveQuoteRawData(shard, quote);
+    }
+
+    private void journalQuote(int shard, Quote quote) {
+        barCheckpointer.append(shard, quote);
+        handleQuote(shard, quote);
+    }
+
+    private void flushJournal(int shard) {
+        barCheckpointer.flush(shard);
+        closeExpiredPeriod(shard);
+    }
+
+    /**
+     * Opens a checkpointed bar before the shards start, expired bars are closed by the first timer run.
+     * Of two bars with the same key the older one was pending in the reorder window.
+     */
+    private void restoreBar(long key, long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice,
+                            long firstTimestamp, long lastTimestamp) {
+        long instrumentId = CurrentBarTable.instrumentId(key);
+        var period = CurrentBarTable.period(key);
+        if (!isAggregated(period)) {
+            return;
+        }
+        int shard = quoteShardExecutor.shardOf(instrumentId);
+        var table = rawOhlcData.get(shard);
+        int slot = table.slot(instrumentId, period);
+        if (table.isOpen(slot)) {
+            if (table.getStartPeriod(slot) > startPeriod) {
+                openBar(shard, pendingBars.get(shard), pendingBars.get(shard).slot(instrumentId, period), startPeriod,
+                        openPrice, highPrice, lowPrice, closePrice, firstTimestamp, lastTimestamp);
+                return;
             }
+            retireBar(shard, slot);
+        }
+        openBar(shard, table, slot, startPeriod, openPrice, highPrice, lowPrice, closePrice, firstTimestamp, lastTimestamp);
+    }
+
+    private void closePeriod(int shard) {
+        long startNanos = System.nanoTime();
+        long now = clock.millis();
+        log.debug("Start close period of shard {} at {}", shard, now);
+        var table = rawOhlcData.get(shard);
+        var pending = pendingBars.get(shard);
+        var deadlines = barDeadlines.get(shard);
+        int removed = 0;
+        // finer bars first, so rolled up bars get their last piece before being closed
+        for (OhlcPeriod p : periods) {
+            long watermark = now - windows[p.ordinal()];
+            removed += deadlines.pollExpired(p, now, key -> {
+                // the pending bar is older, so it is closed before the live one
+                boolean closed = closeIfExpired(shard, pending, pending.find(key), p, watermark);
+                return closeIfExpired(shard, table, table.find(key), p, watermark) || closed;
+            });
+        }
+        shardStats.get(shard).recordClose(System.nanoTime() - startNanos, removed);
+        log.debug("End close period at " + LocalDateTime.now(ZoneId.of("UTC")) + " count=" + removed);
+    }
+
+    private boolean closeIfExpired(int shard, CurrentBarTable table, int slot, OhlcPeriod p, long watermark) {
+        if (slot < 0 || !table.isOpen(slot) || table.getStartPeriod(slot) + p.getMillis() > watermark) {
             return false;
-        });
-        log.debug("End close period at " + LocalDateTime.now(ZoneId.of("UTC")) + " count=" + removed.size());
+        }
+        closeBar(shard, table, slot);
+        return true;
     }
 
-    private void saveQuoteRawData(Quote quote) {
-        LocalDateTime quoteDataTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(quote.getUtcTimestamp()), CURRENT_ZONE);
-        for (OhlcPeriod p : OhlcPeriod.values()) {
-            var key = RawOhlcDataKey.of(quote.getInstrumentId(), p);
-            var ohlc = getCurrent(key);
-            long quotePeriodMillis = getQuotePeriodMillis(p, quoteDataTime);
-            if (ohlc != null && ohlc.getStartPeriod() == quotePeriodMillis) {
-                ohlc.updatePrices(quote.getPrice());
+    /** called by the shard thread, package-private for the benchmarks */
+    void saveQuoteRawData(int shard, Quote quote) {
+        var table = rawOhlcData.get(shard);
+        long timestamp = quote.getUtcTimestamp();
+        double price = quote.getPrice();
+        for (OhlcPeriod p : quotePeriods) {
+            int slot = table.slot(quote.getInstrumentId(), p);
+            long startPeriod = table.getStartPeriod(slot);
+            // a quote inside the current bar needs no bucketing at all
+            if (p.contains(startPeriod, timestamp)) {
+                table.update(slot, price, timestamp);
+                continue;
+            }
+            if (startPeriod != CurrentBarTable.NO_BAR && timestamp < startPeriod) {
+                saveLateQuote(shard, p, quote);
                 continue;
             }
-            if (ohlc != null) {
-                ohlcStorage.store(ohlc);
+            if (startPeriod != CurrentBarTable.NO_BAR) {
+                retireBar(shard, slot);
+            }
+            startPeriod = p.getStartPeriod(timestamp);
+            openBar(shard, table, slot, startPeriod, price, price, price, price, timestamp, timestamp);
+            if (rollupEnabled) {
+                closeRollups(shard, quote.getInstrumentId(), startPeriod);
+            }
+        }
+    }
+
+    /**
+     * A quote older than the current bar goes to the bar pending in the reorder window, unless the period has
+     * no window or the watermark has passed its period already. Then it amends the stored bar,
+     * so a late quote never reopens a closed period.
+     */
+    private void saveLateQuote(int shard, OhlcPeriod p, Quote quote) {
+        if (windows[p.ordinal()] > 0 && savePendingQuote(shard, p, quote)) {
+            shardStats.get(shard).lateQuote();
+            return;
+        }
+        amend(shard, p, quote);
+        if (rollupEnabled) {
+            long timestamp = quote.getUtcTimestamp();
+            var table = rawOhlcData.get(shard);
+            for (int i = 1; i < periods.length; i++) {
+                int coarseSlot = table.slot(quote.getInstrumentId(), periods[i]);
+                if (periods[i].contains(table.getStartPeriod(coarseSlot), timestamp)) {
+                    table.extend(coarseSlot, quote.getPrice(), quote.getPrice());
+                } else {
+                    amend(shard, periods[i], quote);
+                }
             }
-            ohlc = Ohlc.first(quote.getInstrumentId(), p, quotePeriodMillis, quote.getPrice());
-            rawOhlcData.put(key, ohlc);
         }
     }
 
-    private long getQuotePeriodMillis(OhlcPeriod period, LocalDateTime quoteDataTime) {
-        LocalDateTime truncatedQuoteDateTime = quoteDataTime.truncatedTo(period.getChronoUnit());
-        return truncatedQuoteDateTime.toInstant(CURRENT_ZONE).toEpochMilli();
+    /** merges the quote into the pending bar of its period, false if the watermark has passed the period */
+    private boolean savePendingQuote(int shard, OhlcPeriod p, Quote quote) {
+        var pending = pendingBars.get(shard);
+        long timestamp = quote.getUtcTimestamp();
+        int slot = pending.slot(quote.getInstrumentId(), p);
+        long startPeriod = pending.getStartPeriod(slot);
+        if (p.contains(startPeriod, timestamp)) {
+            pending.update(slot, quote.getPrice(), timestamp);
+            return true;
+        }
+        long lateStartPeriod = p.getStartPeriod(timestamp);
+        if (lateStartPeriod > startPeriod && lateStartPeriod + p.getMillis() > clock.millis() - windows[p.ordinal()]) {
+            if (startPeriod != CurrentBarTable.NO_BAR) {
+                closeBar(shard, pending, slot);
+            }
+            openBar(shard, pending, slot, lateStartPeriod, quote.getPrice(), quote.getPrice(), quote.getPrice(),
+                    quote.getPrice(), timestamp, timestamp);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Widens the stored bar of the quote period by the quote. Stored bars have no quote timestamps,
+     * so their open and close stay. A bar which was never stored is stored with the quote alone.
+     * A bar missing from the recent bars is widened by the storage, the shard never waits for a read.
+     */
+    private void amend(int shard, OhlcPeriod p, Quote quote) {
+        long startPeriod = p.getStartPeriod(quote.getUtcTimestamp());
+        double price = quote.getPrice();
+        var bar = recentBarCache.find(quote.getInstrumentId(), p, startPeriod);
+        if (bar == null) {
+            long start = System.nanoTime();
+            ohlcStorage.amend(Ohlc.first(quote.getInstrumentId(), p, startPeriod, price));
+            shardStats.get(shard).recordStore(System.nanoTime() - start);
+        } else if (price <= bar.getHighPrice() && price >= bar.getLowPrice()) {
+            return;
+        } else {
+            bar.setHighPrice(Math.max(bar.getHighPrice(), price));
+            bar.setLowPrice(Math.min(bar.getLowPrice(), price));
+            store(shard, bar);
+        }
+        shardStats.get(shard).barAmended();
+    }
+
+    /** the current bar moves to the pending bars if its period has a reorder window, otherwise it is closed */
+    private void retireBar(int shard, int slot) {
+        var table = rawOhlcData.get(shard);
+        if (windows[table.getPeriod(slot).ordinal()] == 0) {
+            closeBar(shard, table, slot);
+            return;
+        }
+        var pending = pendingBars.get(shard);
+        int pendingSlot = pending.slot(CurrentBarTable.instrumentId(table.getKey(slot)), table.getPeriod(slot));
+        if (pending.isOpen(pendingSlot)) {
+            // a newer bar ended, so the watermark will pass the older one before any quote could reach it
+            closeBar(shard, pending, pendingSlot);
+        }
+        shardStats.get(shard).barOpened(table.getPeriod(slot));
+        pending.open(pendingSlot, table.getStartPeriod(slot), table.getOpenPrice(slot), table.getHighPrice(slot),
+                table.getLowPrice(slot), table.getClosePrice(slot), table.getFirstTimestamp(slot), table.getLastTimestamp(slot));
+    }
+
+    private void openBar(int shard, CurrentBarTable table, int slot, long startPeriod, double openPrice, double highPrice,
+                         double lowPrice, double closePrice, long firstTimestamp, long lastTimestamp) {
+        var p = table.getPeriod(slot);
+        if (!table.isOpen(slot)) {
+            shardStats.get(shard).barOpened(p);
+        }
+        table.open(slot, startPeriod, openPrice, highPrice, lowPrice, closePrice, firstTimestamp, lastTimestamp);
+        barDeadlines.get(shard).add(p, startPeriod + p.getMillis() + windows[p.ordinal()], table.getKey(slot));
+    }
+
+    /**
+     * A finest bar is rolled up before its slot is closed, so a reader merging the slots sees it at least once.
+     * Seeing it both rolled up and as a finest bar changes nothing, its high, low and close are in the coarse bar already.
+     */
+    private void closeBar(int shard, CurrentBarTable table, int slot) {
+        var ohlc = table.toOhlc(slot);
+        if (rollupEnabled && ohlc.getPeriod() == periods[0]) {
+            rollUp(shard, ohlc);
+        }
+        table.close(slot);
+        shardStats.get(shard).barClosed(ohlc.getPeriod());
+        store(shard, ohlc);
+    }
+
+    /** merges a closed finest bar into the coarser bars of the instrument */
+    private void rollUp(int shard, Ohlc closed) {
+        var table = rawOhlcData.get(shard);
+        for (int i = 1; i < periods.length; i++) {
+            var p = periods[i];
+            int slot = table.slot(closed.getInstrumentId(), p);
+            long startPeriod = table.getStartPeriod(slot);
+            if (p.contains(startPeriod, closed.getStartPeriod())) {
+                table.merge(slot, closed.getHighPrice(), closed.getLowPrice(), closed.getClosePrice());
+                continue;
+            }
+            if (startPeriod != CurrentBarTable.NO_BAR) {
+                store(shard, table.toOhlc(slot));
+            }
+            long coarseStart = p.getStartPeriod(closed.getStartPeriod());
+            openBar(shard, table, slot, coarseStart, closed.getOpenPrice(), closed.getHighPrice(), closed.getLowPrice(),
+                    closed.getClosePrice(), coarseStart, coarseStart);
+        }
+    }
+
+    /**
+     * Closes rolled up bars which can't contain the new finest bar. Periods with a reorder window wait
+     * for their deadline instead, a late finest bar may still be rolled up into them.
+     * It also inserts the coarser slots of a new instrument, so closing the finest bar never grows the table.
+     */
+    private void closeRollups(int shard, long instrumentId, long liveStartPeriod) {
+        var table = rawOhlcData.get(shard);
+        for (int i = 1; i < periods.length; i++) {
+            var p = periods[i];
+            int slot = table.slot(instrumentId, p);
+            long startPeriod = table.getStartPeriod(slot);
+            if (startPeriod != CurrentBarTable.NO_BAR && !p.contains(startPeriod, liveStartPeriod) && windows[p.ordinal()] == 0) {
+                store(shard, table.toOhlc(slot));
+                table.close(slot);
+                shardStats.get(shard).barClosed(p);
+            }
+        }
+    }
+
+    /**
+     * Parses the reorder windows, a window has to be shorter than its period. Rolled up periods wait at least
+     * as long as the finest one, which delivers their last piece.
+     */
+    private long[] parseWindows(String value) {
+        var result = new long[OhlcPeriod.values().length];
+        if (value != null && !value.isBlank()) {
+            for (String window : value.split(",")) {
+                int colon = window.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Reorder window is not PERIOD:millis: " + window);
+                }
+                var p = OhlcPeriod.valueOf(window.substring(0, colon).trim());
+                long millis = Long.parseLong(window.substring(colon + 1).trim());
+                if (millis < 0 || millis >= p.getMillis()) {
+                    throw new IllegalArgumentException("Reorder window of " + p + " must be shorter than the period: " + millis);
+                }
+                result[p.ordinal()] = millis;
+            }
+        }
+        if (rollupEnabled) {
+            for (int i = 1; i < periods.length; i++) {
+                result[periods[i].ordinal()] = Math.max(result[periods[i].ordinal()], result[periods[0].ordinal()]);
+            }
+        }
+        return result;
+    }
+
+    private boolean isAggregated(OhlcPeriod period) {
+        for (OhlcPeriod p : periods) {
+            if (p == period) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private Ohlc getCurrent(RawOhlcDataKey key) {
-        return rawOhlcData.get(key);
+    /** closed bars are not touched by the shard anymore, the storage writes them behind */
+    private void store(int shard, Ohlc ohlc) {
+        long start = System.nanoTime();
+        recentBarCache.add(ohlc);
+        ohlcStorage.store(ohlc);
+        shardStats.get(shard).recordStore(System.nanoTime() - start);
     }
 
-    private void addTask(Runnable task) {
-        threadPoolTaskExecutor.execute(task);
+    private void recordHistorical(long startNanos) {
+        historicalNanos.add(System.nanoTime() - startNanos);
+        historicalCount.increment();
     }
-}
\ No newline at end of file
+}
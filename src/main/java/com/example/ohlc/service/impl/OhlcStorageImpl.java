@@ -1,32 +1,505 @@
 package com.example.ohlc.service.impl;
 
+import com.example.ohlc.concurrent.TaskLanes;
 import com.example.ohlc.dao.OhlcDao;
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
 import com.example.ohlc.service.OhlcStorage;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * Closed bars are buffered in a bounded queue and written behind in JDBC batches
+ * on the persistence lane, when a batch is full or the flush interval elapsed.
+ * Callers block when the database falls behind and the queue is full.
+ * A batch which still fails after storage.retry.attempts is written bar by bar,
+ * so only the bars the database refuses are dropped and logged.
+ * Amendments share the queue, so they follow the bar they widen, and are written as updates which never read the bar.
+ * Streamed reads go by pages of storage.read.page.size bars, each read in its own short transaction.
+ * Readers find the bars which are not committed yet in an index by instrument and period, they never scan the queue.
+ */
+@Slf4j
 @Service
 @RequiredArgsConstructor
+@ConditionalOnProperty(name = "storage.type", havingValue = "jdbc", matchIfMissing = true)
 public class OhlcStorageImpl implements OhlcStorage {
+    private static final long MAX_RETRY_DELAY_MILLIS = 5_000;
 
     private final OhlcDao ohlcDao;
+    private final TaskLanes taskLanes;
+    private final TransactionTemplate transactionTemplate;
+    @Value("${storage.queue.capacity}")
+    private int queueCapacity;
+    @Value("${storage.batch.size}")
+    private int batchSize;
+    @Value("${storage.retry.attempts}")
+    private int retryAttempts;
+    @Value("${storage.read.page.size}")
+    private int readPageSize;
+    private TransactionTemplate readTemplate;
+    private BlockingQueue<PendingBar> pending;
+    /** batch being written or left by an interrupted flush */
+    private volatile List<PendingBar> inFlight = List.of();
+    /**
+     * bars which are not committed yet by {@link CurrentBarTable#key} and start, a bar is indexed before it is queued
+     * and removed after its batch is committed, so readers find it either here or in the database
+     */
+    private final Map<Long, ConcurrentSkipListMap<Long, Ohlc>> notCommitted = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    @Getter
+    private volatile long lastFlushMillis;
+    /** written only by the flushing thread, flushes never overlap */
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchBars = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong droppedBars = new AtomicLong();
+    /** called with every committed batch, e.g. to measure persist latency */
+    @Setter
+    private volatile Consumer<List<Ohlc>> commitListener;
+
+    @PostConstruct
+    public void start() {
+        if (readPageSize < 1) {
+            throw new IllegalArgumentException("Read page size must be positive: " + readPageSize);
+        }
+        pending = new ArrayBlockingQueue<>(queueCapacity);
+        readTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        readTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        readTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        readTemplate.setReadOnly(true);
+    }
+
+    @PreDestroy
+    public void stop() {
+        while (!flushScheduled.compareAndSet(false, true)) {
+            Thread.onSpinWait();
+        }
+        flush(true);
+    }
 
     @Override
-    @Transactional(isolation = Isolation.READ_UNCOMMITTED)
     public void store(Ohlc ohlc) {
-        ohlcDao.store(ohlc);
+        enqueue(new PendingBar(ohlc, false));
+    }
+
+    /** queued with the stored bars, so it applies after the bar it amends; readers see it once it is written */
+    @Override
+    public void amend(Ohlc ohlc) {
+        enqueue(new PendingBar(ohlc, true));
+    }
+
+    private void enqueue(PendingBar bar) {
+        if (isReadable(bar)) {
+            index(bar.ohlc);
+        }
+        if (!pending.offer(bar)) {
+            scheduleFlush(false);
+            try {
+                pending.put(bar);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the storage", e);
+            }
+        }
+        if (pending.size() >= batchSize) {
+            scheduleFlush(false);
+        }
     }
 
     @Override
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, readOnly = true)
     public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
-        return ohlcDao.getHistorical(instrumentId, period);
+        // pending bars are collected first, they can only move to the database meanwhile
+        var notStored = getPending(instrumentId, period, Long.MIN_VALUE, Long.MAX_VALUE);
+        var stored = ohlcDao.getHistorical(instrumentId, period);
+        return merge(stored, notStored, Integer.MAX_VALUE);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, readOnly = true)
+    public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        var notStored = getPending(instrumentId, period, from, to);
+        var stored = ohlcDao.getHistorical(instrumentId, period, from, to, limit);
+        return merge(stored, notStored, limit);
+    }
+
+    /** one query for all instruments, pending bars are looked up by instrument */
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, readOnly = true)
+    public Map<Long, List<Ohlc>> getHistorical(Set<Long> instrumentIds, OhlcPeriod period, long from, long to, int limit) {
+        var notStored = new HashMap<Long, List<Ohlc>>();
+        for (Long instrumentId : instrumentIds) {
+            var bars = getPending(instrumentId, period, from, to);
+            if (!bars.isEmpty()) {
+                notStored.put(instrumentId, bars);
+            }
+        }
+        var stored = ohlcDao.getHistorical(instrumentIds, period, from, to, limit);
+        var result = new HashMap<Long, List<Ohlc>>((int) (instrumentIds.size() / 0.75f) + 1);
+        // rows are sorted by instrument, so the bars of an instrument are one run
+        int runStart = 0;
+        for (int i = 1; i <= stored.size(); i++) {
+            if (i == stored.size() || stored.get(i).getInstrumentId() != stored.get(runStart).getInstrumentId()) {
+                long instrumentId = stored.get(runStart).getInstrumentId();
+                result.put(instrumentId, merge(new ArrayList<>(stored.subList(runStart, i)),
+                        notStored.getOrDefault(instrumentId, List.of()), limit));
+                runStart = i;
+            }
+        }
+        for (Long instrumentId : instrumentIds) {
+            if (!result.containsKey(instrumentId)) {
+                result.put(instrumentId, merge(new ArrayList<>(), notStored.getOrDefault(instrumentId, List.of()), limit));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the stored bars by pages, each page starts below the oldest bar of the previous one.
+     * A page is visited after its transaction ended, so a slow visitor holds neither a connection nor a transaction.
+     */
+    @Override
+    public void forEachHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit, BarVisitor visitor) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+        var merging = new MergingVisitor(getPending(instrumentId, period, from, to), limit, visitor);
+        var starts = new long[Math.min(limit, readPageSize)];
+        var prices = new double[4 * starts.length];
+        int remaining = limit;
+        while (remaining > 0 && merging.remaining > 0) {
+            int n = readPage(instrumentId, period, from, to, Math.min(remaining, starts.length), starts, prices);
+            for (int i = 0; i < n; i++) {
+                merging.visit(starts[i], prices[4 * i], prices[4 * i + 1], prices[4 * i + 2], prices[4 * i + 3]);
+            }
+            if (n < Math.min(remaining, starts.length)) {
+                break;
+            }
+            remaining -= n;
+            to = starts[n - 1];
+        }
+        merging.finish();
+    }
+
+    /** @return count of the newest bars with from <= startPeriod < to copied to the arrays, at most limit */
+    private int readPage(long instrumentId, OhlcPeriod period, long from, long to, int limit, long[] starts, double[] prices) {
+        int[] size = new int[1];
+        readTemplate.executeWithoutResult(status -> ohlcDao.forEachHistorical(instrumentId, period, from, to, limit,
+                (startPeriod, openPrice, highPrice, lowPrice, closePrice) -> {
+                    int i = size[0]++;
+                    starts[i] = startPeriod;
+                    prices[4 * i] = openPrice;
+                    prices[4 * i + 1] = highPrice;
+                    prices[4 * i + 2] = lowPrice;
+                    prices[4 * i + 3] = closePrice;
+                }));
+        return size[0];
+    }
+
+    /**
+     * Deletes the range and writes the bars in one transaction, bypassing the write-behind queue.
+     * Bars of the range must not be stored meanwhile, else the later write wins.
+     */
+    @Override
+    public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> bars) {
+        transactionTemplate.executeWithoutResult(status -> {
+            ohlcDao.delete(instrumentId, period, from, to);
+            if (!bars.isEmpty()) {
+                ohlcDao.storeAll(bars);
+            }
+        });
+    }
+
+    /** committed batches */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /** bars of the committed batches */
+    public long getBatchBars() {
+        return batchBars.get();
+    }
+
+    /** time spent committing batches, retries included */
+    public long getBatchNanos() {
+        return batchNanos.get();
+    }
+
+    /** bars the database refused after all retries */
+    public long getDroppedBars() {
+        return droppedBars.get();
+    }
+
+    /** count of bars which are not committed yet */
+    public int getBacklog() {
+        return pending.size() + inFlight.size();
+    }
+
+    @Scheduled(fixedDelayString = "${storage.flush.interval.ms}")
+    public void flushOnTime() {
+        if (!pending.isEmpty()) {
+            scheduleFlush(true);
+        }
+    }
+
+    /** @param all false to write only full batches */
+    private void scheduleFlush(boolean all) {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            taskLanes.execute(TaskLanes.Lane.PERSISTENCE, () -> flush(all));
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void flush(boolean all) {
+        try {
+            // a batch left by an interrupted flush goes first, the queue holds only later bars
+            if (!inFlight.isEmpty() && !write(inFlight)) {
+                return;
+            }
+            while (all ? !pending.isEmpty() : pending.size() >= batchSize) {
+                if (!write(drainBatch())) {
+                    return;
+                }
+            }
+        } finally {
+            flushScheduled.set(false);
+        }
+        if (pending.size() >= batchSize) {
+            scheduleFlush(false);
+        }
+    }
+
+    private List<PendingBar> drainBatch() {
+        List<PendingBar> batch = new ArrayList<>(batchSize);
+        pending.drainTo(batch, batchSize);
+        inFlight = batch;
+        return batch;
+    }
+
+    /** @return false when interrupted, the batch stays in flight for the next flush */
+    private boolean write(List<PendingBar> batch) {
+        long retryDelay = 100;
+        long firstStart = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                transactionTemplate.executeWithoutResult(status -> writeRuns(batch));
+                lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                unindex(batch);
+                inFlight = List.of();
+                batchNanos.lazySet(batchNanos.get() + System.nanoTime() - firstStart);
+                batchBars.lazySet(batchBars.get() + batch.size());
+                batchCount.lazySet(batchCount.get() + 1);
+                break;
+            } catch (RuntimeException e) {
+                if (attempt >= retryAttempts) {
+                    log.error("Failed to store {} bars {} times, storing them one by one", batch.size(), attempt, e);
+                    writeOneByOne(batch);
+                    unindex(batch);
+                    inFlight = List.of();
+                    return true;
+                }
+                log.error("Failed to store {} bars, retry in {} ms", batch.size(), retryDelay, e);
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while storing {} bars, they are kept for the next flush", batch.size());
+                    return false;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+        // outside the retry loop, a failing listener must not write the committed batch again
+        var listener = commitListener;
+        if (listener != null) {
+            try {
+                listener.accept(bars(batch));
+            } catch (RuntimeException e) {
+                log.error("Commit listener failed", e);
+            }
+        }
+        log.debug("Stored {} bars in {} ms, backlog {}", batch.size(), lastFlushMillis, pending.size());
+        return true;
+    }
+
+    /** stores and amendments in their order, every run of the same kind in one JDBC batch */
+    private void writeRuns(List<PendingBar> batch) {
+        int runStart = 0;
+        for (int i = 1; i <= batch.size(); i++) {
+            if (i == batch.size() || batch.get(i).amendment != batch.get(runStart).amendment) {
+                var run = bars(batch.subList(runStart, i));
+                if (batch.get(runStart).amendment) {
+                    ohlcDao.amendAll(run);
+                } else {
+                    ohlcDao.storeAll(run);
+                }
+                runStart = i;
+            }
+        }
+    }
+
+    /** isolates the bars which fail a batch, they are logged and dropped */
+    private void writeOneByOne(List<PendingBar> batch) {
+        for (PendingBar bar : batch) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> writeRuns(List.of(bar)));
+            } catch (RuntimeException e) {
+                droppedBars.incrementAndGet();
+                log.error("Dropped bar {}", bar.ohlc, e);
+            }
+        }
+    }
+
+    private static List<Ohlc> bars(List<PendingBar> batch) {
+        var result = new ArrayList<Ohlc>(batch.size());
+        for (PendingBar bar : batch) {
+            result.add(bar.ohlc);
+        }
+        return result;
+    }
+
+    /** newest first, pending bars replace stored bars with the same start */
+    private List<Ohlc> merge(List<Ohlc> stored, List<Ohlc> notStored, int limit) {
+        if (notStored.isEmpty()) {
+            return stored;
+        }
+        var merged = new TreeMap<Long, Ohlc>(Comparator.reverseOrder());
+        stored.forEach(o -> merged.put(o.getStartPeriod(), o));
+        notStored.forEach(o -> merged.put(o.getStartPeriod(), o));
+        var result = new ArrayList<Ohlc>(Math.min(limit, merged.size()));
+        for (Ohlc ohlc : merged.values()) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(ohlc);
+        }
+        return result;
+    }
+
+    /** oldest first, at most one bar by start */
+    private List<Ohlc> getPending(long instrumentId, OhlcPeriod period, long from, long to) {
+        var bars = notCommitted.get(CurrentBarTable.key(instrumentId, period));
+        if (bars == null || from >= to) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(bars.subMap(from, to).values());
+    }
+
+    /** a later bar with the same start replaces the earlier one, which is written first */
+    private void index(Ohlc ohlc) {
+        notCommitted.compute(CurrentBarTable.key(ohlc.getInstrumentId(), ohlc.getPeriod()), (key, bars) -> {
+            var result = bars == null ? new ConcurrentSkipListMap<Long, Ohlc>() : bars;
+            result.put(ohlc.getStartPeriod(), ohlc);
+            return result;
+        });
+    }
+
+    /** removes the bars of a written batch unless a later bar with the same start replaced them */
+    private void unindex(List<PendingBar> batch) {
+        for (PendingBar bar : batch) {
+            if (!isReadable(bar)) {
+                continue;
+            }
+            var ohlc = bar.ohlc;
+            notCommitted.computeIfPresent(CurrentBarTable.key(ohlc.getInstrumentId(), ohlc.getPeriod()), (key, bars) -> {
+                bars.computeIfPresent(ohlc.getStartPeriod(), (start, indexed) -> indexed == ohlc ? null : indexed);
+                return bars.isEmpty() ? null : bars;
+            });
+        }
+    }
+
+    /** amendments hold only a part of their bar, they never replace a stored bar; a bar without period is never read */
+    private static boolean isReadable(PendingBar bar) {
+        return !bar.amendment && bar.ohlc.getPeriod() != null;
+    }
+
+    /** merges pending bars sorted by start into the stored bars, newest first, pending bars replace stored bars with the same start */
+    private static final class MergingVisitor implements BarVisitor {
+        private final List<Ohlc> pending;
+        private final BarVisitor visitor;
+        private int remaining;
+        private int next;
+
+        private MergingVisitor(List<Ohlc> notStored, int limit, BarVisitor visitor) {
+            var latest = new TreeMap<Long, Ohlc>(Comparator.reverseOrder());
+            notStored.forEach(o -> latest.put(o.getStartPeriod(), o));
+            this.pending = new ArrayList<>(latest.values());
+            this.remaining = limit;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void visit(long startPeriod, double openPrice, double highPrice, double lowPrice, double closePrice) {
+            while (next < pending.size() && pending.get(next).getStartPeriod() > startPeriod) {
+                emit(pending.get(next++));
+            }
+            if (next < pending.size() && pending.get(next).getStartPeriod() == startPeriod) {
+                emit(pending.get(next++));
+            } else if (remaining > 0) {
+                remaining--;
+                visitor.visit(startPeriod, openPrice, highPrice, lowPrice, closePrice);
+            }
+        }
+
+        private void finish() {
+            while (next < pending.size()) {
+                emit(pending.get(next++));
+            }
+        }
+
+        private void emit(Ohlc ohlc) {
+            if (remaining > 0) {
+                remaining--;
+                visitor.visit(ohlc);
+            }
+        }
+    }
+
+    /** a bar to store or, for an amendment, to widen the stored bar by */
+    private static final class PendingBar {
+        private final Ohlc ohlc;
+        private final boolean amendment;
+
+        private PendingBar(Ohlc ohlc, boolean amendment) {
+            this.ohlc = ohlc;
+            this.amendment = amendment;
+        }
     }
 }
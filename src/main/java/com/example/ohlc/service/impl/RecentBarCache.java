@@ -0,0 +1,239 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last closed bars of every (instrument, period) kept in rings filled when the bars are stored.
+ * A ring holds every bar stored after its oldest one, so a range starting not earlier than
+ * the oldest bar, or a range with enough newer bars for the limit, needs no database.
+ * Memory is bounded by maxSeries * barsPerSeries bars, rings grow on demand
+ * and are dropped when nobody stored or read them for idleMillis.
+ */
+public class RecentBarCache {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int barsPerSeries;
+    private final int maxSeries;
+    private final long idleMillis;
+    private final Clock clock;
+    private final Map<Long, Series> series = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RecentBarCache(int barsPerSeries, int maxSeries, long idleMillis, Clock clock) {
+        this.barsPerSeries = barsPerSeries;
+        this.maxSeries = maxSeries;
+        this.idleMillis = idleMillis;
+        this.clock = clock;
+    }
+
+    /** bars of one instrument and period have to be added from one thread in start order */
+    public void add(Ohlc ohlc) {
+        if (barsPerSeries == 0) {
+            return;
+        }
+        long key = CurrentBarTable.key(ohlc.getInstrumentId(), ohlc.getPeriod());
+        var s = series.get(key);
+        if (s == null) {
+            if (series.size() >= maxSeries) {
+                return;
+            }
+            s = series.computeIfAbsent(key, k -> new Series(Math.min(INITIAL_CAPACITY, barsPerSeries)));
+        }
+        s.add(ohlc, barsPerSeries, clock.millis());
+    }
+
+    /** drops the ring of the series, e.g. after its stored bars were replaced */
+    public void evict(long instrumentId, OhlcPeriod period) {
+        series.remove(CurrentBarTable.key(instrumentId, period));
+    }
+
+    /** drops all rings, e.g. after a backfill replaced stored bars of a serving instance */
+    public void clear() {
+        series.clear();
+    }
+
+    /** @return at most limit newest bars with from <= startPeriod < to or null if the database has to be read */
+    public List<Ohlc> get(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+        var s = series.get(CurrentBarTable.key(instrumentId, period));
+        var result = s == null ? null : s.get(instrumentId, period, from, to, limit, clock.millis());
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }
+
+    /** @return the cached bar starting at startPeriod or null, not counted as a hit or a miss */
+    public Ohlc find(long instrumentId, OhlcPeriod period, long startPeriod) {
+        var s = series.get(CurrentBarTable.key(instrumentId, period));
+        return s == null ? null : s.find(instrumentId, period, startPeriod);
+    }
+
+    @Scheduled(fixedDelayString = "${storage.cache.idle.ms}")
+    public void evictIdle() {
+        long idleSince = clock.millis() - idleMillis;
+        series.values().removeIf(s -> s.lastAccess < idleSince);
+    }
+
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private static final class Series {
+        private long[] startPeriod;
+        private double[] openPrice;
+        private double[] highPrice;
+        private double[] lowPrice;
+        private double[] closePrice;
+        /** index of the newest bar */
+        private int head = -1;
+        private int count;
+        /** start of the newest bar ever added, an empty ring accepts only newer bars */
+        private long newestStart = Long.MIN_VALUE;
+        private volatile long lastAccess;
+
+        private Series(int capacity) {
+            allocate(capacity);
+        }
+
+        private synchronized void add(Ohlc ohlc, int maxCapacity, long now) {
+            lastAccess = now;
+            long start = ohlc.getStartPeriod();
+            if (start <= newestStart) {
+                int i = indexOf(start);
+                if (i >= 0) {
+                    set(i, ohlc);
+                } else if (count > 0 && start > startPeriod[oldest()]) {
+                    // a gap in the middle can't be filled in place, older bars are read from the database again
+                    count = 0;
+                }
+                return;
+            }
+            if (count == startPeriod.length && count < maxCapacity) {
+                grow(Math.min(count * 2, maxCapacity));
+            }
+            head = (head + 1) % startPeriod.length;
+            set(head, ohlc);
+            count = Math.min(count + 1, startPeriod.length);
+            newestStart = start;
+        }
+
+        private synchronized List<Ohlc> get(long instrumentId, OhlcPeriod period, long from, long to, int limit, long now) {
+            lastAccess = now;
+            if (count == 0) {
+                return null;
+            }
+            List<Ohlc> result = new ArrayList<>(Math.min(limit, count));
+            for (int n = 0; n < count && result.size() < limit; n++) {
+                int i = index(n);
+                if (startPeriod[i] >= to) {
+                    continue;
+                }
+                if (startPeriod[i] < from) {
+                    return result;
+                }
+                result.add(toOhlc(i, instrumentId, period));
+            }
+            return result.size() == limit || from >= startPeriod[oldest()] ? result : null;
+        }
+
+        private synchronized Ohlc find(long instrumentId, OhlcPeriod period, long start) {
+            int i = indexOf(start);
+            return i < 0 ? null : toOhlc(i, instrumentId, period);
+        }
+
+        private int index(int n) {
+            return (head - n + startPeriod.length) % startPeriod.length;
+        }
+
+        private int oldest() {
+            return index(count - 1);
+        }
+
+        private int indexOf(long start) {
+            for (int n = 0; n < count; n++) {
+                int i = index(n);
+                if (startPeriod[i] == start) {
+                    return i;
+                }
+                if (startPeriod[i] < start) {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        private void set(int i, Ohlc ohlc) {
+            startPeriod[i] = ohlc.getStartPeriod();
+            openPrice[i] = ohlc.getOpenPrice();
+            highPrice[i] = ohlc.getHighPrice();
+            lowPrice[i] = ohlc.getLowPrice();
+            closePrice[i] = ohlc.getClosePrice();
+        }
+
+        private Ohlc toOhlc(int i, long instrumentId, OhlcPeriod period) {
+            return Ohlc.builder()
+                    .instrumentId(instrumentId)
+                    .period(period)
+                    .startPeriod(startPeriod[i])
+                    .openPrice(openPrice[i])
+                    .highPrice(highPrice[i])
+                    .lowPrice(lowPrice[i])
+                    .closePrice(closePrice[i])
+                    .build();
+        }
+
+        /** the ring is full here, so the oldest bar follows the head */
+        private void grow(int capacity) {
+            int first = (head + 1) % startPeriod.length;
+            startPeriod = unroll(startPeriod, first, capacity);
+            openPrice = unroll(openPrice, first, capacity);
+            highPrice = unroll(highPrice, first, capacity);
+            lowPrice = unroll(lowPrice, first, capacity);
+            closePrice = unroll(closePrice, first, capacity);
+            head = count - 1;
+        }
+
+        private void allocate(int capacity) {
+            startPeriod = new long[capacity];
+            openPrice = new double[capacity];
+            highPrice = new double[capacity];
+            lowPrice = new double[capacity];
+            closePrice = new double[capacity];
+        }
+
+        private static long[] unroll(long[] ring, int first, int capacity) {
+            var result = Arrays.copyOf(Arrays.copyOfRange(ring, first, ring.length), capacity);
+            System.arraycopy(ring, 0, result, ring.length - first, first);
+            return result;
+        }
+
+        private static double[] unroll(double[] ring, int first, int capacity) {
+            var result = Arrays.copyOf(Arrays.copyOfRange(ring, first, ring.length), capacity);
+            System.arraycopy(ring, 0, result, ring.length - first, first);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of one shard. They are written only by the shard thread with ordered stores,
+ * which cost no more than plain stores, and read by the metrics at any time.
+ * Event time lag is sampled, the other counters see every event.
+ */
+public class ShardStats {
+    private static final int LAG_SAMPLE_MASK = 63;
+
+    private final AtomicLongArray liveBars = new AtomicLongArray(OhlcPeriod.values().length);
+    private final AtomicLong lagSamples = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final AtomicLong lastLagMillis = new AtomicLong();
+    private final AtomicLong closeCount = new AtomicLong();
+    private final AtomicLong closeNanos = new AtomicLong();
+    private final AtomicLong barsClosed = new AtomicLong();
+    private final AtomicLong closeDelays = new AtomicLong();
+    private final AtomicLong closeDelayMillis = new AtomicLong();
+    private final AtomicLong lastCloseDelayMillis = new AtomicLong();
+    private final AtomicLong storeCount = new AtomicLong();
+    private final AtomicLong storeNanos = new AtomicLong();
+    private final AtomicLong lateQuotes = new AtomicLong();
+    private final AtomicLong amendedBars = new AtomicLong();
+    private int quotes;
+
+    /** @return true if the lag of this quote should be recorded */
+    boolean sampleQuote() {
+        return (++quotes & LAG_SAMPLE_MASK) == 0;
+    }
+
+    void recordLag(long millis) {
+        lagSamples.lazySet(lagSamples.get() + 1);
+        lagMillis.lazySet(lagMillis.get() + millis);
+        lastLagMillis.lazySet(millis);
+    }
+
+    void barOpened(OhlcPeriod period) {
+        liveBars.lazySet(period.ordinal(), liveBars.get(period.ordinal()) + 1);
+    }
+
+    void barClosed(OhlcPeriod period) {
+        liveBars.lazySet(period.ordinal(), liveBars.get(period.ordinal()) - 1);
+    }
+
+    void recordClose(long nanos, int closed) {
+        closeCount.lazySet(closeCount.get() + 1);
+        closeNanos.lazySet(closeNanos.get() + nanos);
+        barsClosed.lazySet(barsClosed.get() + closed);
+    }
+
+    /** how long after the earliest deadline the shard got to closing the bars */
+    void recordCloseDelay(long millis) {
+        closeDelays.lazySet(closeDelays.get() + 1);
+        closeDelayMillis.lazySet(closeDelayMillis.get() + millis);
+        lastCloseDelayMillis.lazySet(millis);
+    }
+
+    void recordStore(long nanos) {
+        storeCount.lazySet(storeCount.get() + 1);
+        storeNanos.lazySet(storeNanos.get() + nanos);
+    }
+
+    /** a quote older than the current bar was merged into a bar still waiting in the reorder window */
+    void lateQuote() {
+        lateQuotes.lazySet(lateQuotes.get() + 1);
+    }
+
+    /** a quote later than the reorder window changed a stored bar */
+    void barAmended() {
+        amendedBars.lazySet(amendedBars.get() + 1);
+    }
+
+    public long getLiveBars(OhlcPeriod period) {
+        return liveBars.get(period.ordinal());
+    }
+
+    public long getLagSamples() {
+        return lagSamples.get();
+    }
+
+    public long getLagMillis() {
+        return lagMillis.get();
+    }
+
+    public long getLastLagMillis() {
+        return lastLagMillis.get();
+    }
+
+    public long getCloseCount() {
+        return closeCount.get();
+    }
+
+    public long getCloseNanos() {
+        return closeNanos.get();
+    }
+
+    public long getBarsClosed() {
+        return barsClosed.get();
+    }
+
+    public long getCloseDelays() {
+        return closeDelays.get();
+    }
+
+    public long getCloseDelayMillis() {
+        return closeDelayMillis.get();
+    }
+
+    public long getLastCloseDelayMillis() {
+        return lastCloseDelayMillis.get();
+    }
+
+    public long getStoreCount() {
+        return storeCount.get();
+    }
+
+    public long getStoreNanos() {
+        return storeNanos.get();
+    }
+
+    public long getLateQuotes() {
+        return lateQuotes.get();
+    }
+
+    public long getAmendedBars() {
+        return amendedBars.get();
+    }
+}
@@ -0,0 +1,13 @@
+create table if not exists ohlc (
+    instrument_id bigint not null,
+    period varchar(3) not null,
+    start_period bigint not null,
+    open_price double precision not null,
+    high_price double precision not null,
+    low_price double precision not null,
+    close_price double precision not null,
+    primary key (instrument_id, period, start_period)
+);
+
+create index if not exists ohlc_history_idx
+    on ohlc (instrument_id, period, start_period desc, open_price, high_price, low_price, close_price);
@@ -0,0 +1,161 @@
+package com.example.ohlc.backfill;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.impl.MappedOhlcStorage;
+import com.example.ohlc.service.impl.RecentBarCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+public class BarBackfillTest {
+    private static final long DAY = OhlcPeriod.D1.getMillis();
+    private static final long FROM = 19_000 * DAY;
+    private static final long TO = FROM + 2 * DAY;
+    @TempDir
+    Path directory;
+    private MappedOhlcStorage ohlcStorage;
+    private List<long[]> quotes;
+
+    @BeforeEach
+    public void init() {
+        ohlcStorage = new MappedOhlcStorage();
+        ReflectionTestUtils.setField(ohlcStorage, "directory", directory.resolve("ohlc").toString());
+        ReflectionTestUtils.setField(ohlcStorage, "maxOpenFiles", 16);
+        ohlcStorage.start();
+        var random = new Random(7);
+        quotes = new ArrayList<>();
+        for (long ts = FROM; ts < TO; ts += 1 + random.nextInt(20_000)) {
+            // instrumentId, price in cents, utcTimestamp
+            quotes.add(new long[]{1 + random.nextInt(5), 10_000 + random.nextInt(1_000), ts});
+        }
+    }
+
+    @AfterEach
+    public void destroy() {
+        ohlcStorage.stop();
+    }
+
+    @Test
+    public void shouldRebuildBarsFromCsvAndBinaryArchives() throws IOException {
+        int half = quotes.size() / 2;
+        var csv = writeCsv(directory.resolve("first.csv"), quotes.subList(0, half));
+        var binary = writeBinary(directory.resolve("second.quotes"), quotes.subList(half, quotes.size()));
+
+        var result = createBackfill(TO + DAY).run(List.of(csv, binary), FROM, TO);
+
+        Assertions.assertEquals(quotes.size(), result.getQuotesRead());
+        Assertions.assertEquals(5, result.getInstruments());
+        for (long instrumentId = 1; instrumentId <= 5; instrumentId++) {
+            for (OhlcPeriod period : new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1}) {
+                Assertions.assertEquals(expectedBars(instrumentId, period, TO),
+                        ohlcStorage.getHistorical(instrumentId, period), instrumentId + " " + period);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReplaceRangeIdempotently() throws IOException {
+        var archive = writeBinary(directory.resolve("all.quotes"), quotes);
+        var inside = bar(1, OhlcPeriod.H1, FROM + 5 * OhlcPeriod.H1.getMillis() + 1);
+        var outside = bar(1, OhlcPeriod.H1, TO);
+        ohlcStorage.store(inside);
+        ohlcStorage.store(outside);
+        var backfill = createBackfill(TO + DAY);
+
+        var first = backfill.run(List.of(archive), FROM, TO);
+        var stored = ohlcStorage.getHistorical(1, OhlcPeriod.H1);
+        var second = backfill.run(List.of(archive), FROM, TO);
+
+        Assertions.assertEquals(first.getBarsWritten(), second.getBarsWritten());
+        Assertions.assertEquals(stored, ohlcStorage.getHistorical(1, OhlcPeriod.H1));
+        Assertions.assertFalse(stored.contains(inside));
+        Assertions.assertEquals(outside, stored.get(0));
+        Assertions.assertEquals(expectedBars(1, OhlcPeriod.H1, TO), stored.subList(1, stored.size()));
+    }
+
+    @Test
+    public void shouldLeaveRecentBarsToLivePath() throws IOException {
+        var archive = writeBinary(directory.resolve("all.quotes"), quotes);
+        long now = FROM + DAY + 10 * OhlcPeriod.H1.getMillis() + 30 * OhlcPeriod.M1.getMillis();
+
+        createBackfill(now).run(List.of(archive), FROM + 1, TO - 1);
+
+        long limit = now - 60_000;
+        Assertions.assertEquals(expectedBars(2, OhlcPeriod.M1, OhlcPeriod.M1.getStartPeriod(limit)),
+                ohlcStorage.getHistorical(2, OhlcPeriod.M1));
+        Assertions.assertEquals(expectedBars(2, OhlcPeriod.H1, OhlcPeriod.H1.getStartPeriod(limit)),
+                ohlcStorage.getHistorical(2, OhlcPeriod.H1));
+        Assertions.assertEquals(expectedBars(2, OhlcPeriod.D1, FROM + DAY), ohlcStorage.getHistorical(2, OhlcPeriod.D1));
+    }
+
+    private BarBackfill createBackfill(long now) {
+        var clock = Clock.fixed(Instant.ofEpochMilli(now), ZoneOffset.UTC);
+        var backfill = new BarBackfill(ohlcStorage, new RecentBarCache(16, 100, 60_000, clock), clock);
+        ReflectionTestUtils.setField(backfill, "periods", new OhlcPeriod[]{OhlcPeriod.D1, OhlcPeriod.M1, OhlcPeriod.H1});
+        ReflectionTestUtils.setField(backfill, "parallelism", 3);
+        ReflectionTestUtils.setField(backfill, "partitions", 4);
+        ReflectionTestUtils.setField(backfill, "chunkBytes", 4096L);
+        ReflectionTestUtils.setField(backfill, "workDirectory", directory.resolve("work").toString());
+        ReflectionTestUtils.setField(backfill, "liveMarginMillis", 60_000L);
+        backfill.start();
+        return backfill;
+    }
+
+    /** bars of the quotes before the end, newest first */
+    private List<Ohlc> expectedBars(long instrumentId, OhlcPeriod period, long end) {
+        var bars = new TreeMap<Long, Ohlc>(Comparator.reverseOrder());
+        for (long[] quote : quotes) {
+            long start = period.getStartPeriod(quote[2]);
+            if (quote[0] != instrumentId || start >= end) {
+                continue;
+            }
+            double price = quote[1] / 100.0;
+            var bar = bars.get(start);
+            if (bar == null) {
+                bars.put(start, Ohlc.first(instrumentId, period, start, price));
+            } else {
+                bar.updatePrices(price);
+            }
+        }
+        return new ArrayList<>(bars.values());
+    }
+
+    private Ohlc bar(long instrumentId, OhlcPeriod period, long utcTimestamp) {
+        return Ohlc.first(instrumentId, period, period.getStartPeriod(utcTimestamp), 1);
+    }
+
+    private Path writeCsv(Path file, List<long[]> quotes) throws IOException {
+        var lines = quotes.stream()
+                .map(q -> q[0] + "," + q[1] / 100.0 + "," + q[2])
+                .collect(Collectors.toCollection(ArrayList::new));
+        lines.add(0, "instrumentId,price,utcTimestamp");
+        return Files.write(file, lines);
+    }
+
+    private Path writeBinary(Path file, List<long[]> quotes) throws IOException {
+        var buffer = ByteBuffer.allocate(quotes.size() * QuoteArchiveChunk.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] quote : quotes) {
+            buffer.putLong(quote[0]).putDouble(quote[1] / 100.0).putLong(quote[2]);
+        }
+        return Files.write(file, buffer.array());
+    }
+}
@@ -0,0 +1,360 @@
+package com.example.ohlc.concurrent;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.dto.Quote;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+public class QuoteShardExecutorTest {
+    @TempDir
+    Path directory;
+    private QuoteShardExecutor executor;
+    private CountDownLatch entered;
+    private CountDownLatch release;
+    private List<TestQuote> handled;
+
+    @BeforeEach
+    public void init() {
+        executor = new QuoteShardExecutor(1, 2);
+        entered = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        handled = new ArrayList<>();
+    }
+
+    @AfterEach
+    public void destroy() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() throws InterruptedException {
+        start(OverloadPolicy.REJECT);
+        fillQueue();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(new TestQuote(1, 3, 3)));
+        Assertions.assertEquals(1, executor.getRejectedCount());
+    }
+
+    @Test
+    public void shouldRejectBatchesOfAllShardsWhenOneQueueIsFull() throws InterruptedException {
+        executor = new QuoteShardExecutor(2, 2);
+        start(OverloadPolicy.REJECT);
+        // the shard of the full instrument is stuck and its queue is full, the other shard is empty
+        long full = 1;
+        long free = executor.shardOf(full) == executor.shardOf(0) ? 2 : 0;
+        Assertions.assertNotEquals(executor.shardOf(full), executor.shardOf(free));
+        executor.execute(new TestQuote(full, 0, 0));
+        entered.await();
+        executor.execute(new TestQuote(full, 1, 1));
+        executor.execute(new TestQuote(full, 2, 2));
+        Assertions.assertThrows(RejectedExecutionException.class,
+                () -> executor.executeAll(List.of(new TestQuote(free, 3, 3), new TestQuote(full, 4, 4))));
+        Assertions.assertEquals(0, executor.getQueueSize(executor.shardOf(free)));
+        Assertions.assertEquals(2, executor.getRejectedCount());
+    }
+
+    @Test
+    public void shouldBlockUntilTimeout() throws InterruptedException {
+        executor.setBlockTimeoutMillis(50);
+        start(OverloadPolicy.BLOCK);
+        fillQueue();
+        long start = System.currentTimeMillis();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(new TestQuote(1, 3, 3)));
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 50);
+        Assertions.assertEquals(1, executor.getBlockedCount());
+        Assertions.assertEquals(1, executor.getRejectedCount());
+    }
+
+    @Test
+    public void shouldBlockUntilQueueHasSpace() {
+        executor.setBlockTimeoutMillis(10_000);
+        start(OverloadPolicy.BLOCK);
+        var sent = sendWhileBlocked(100);
+        Assertions.assertEquals(sent, handled);
+        Assertions.assertTrue(executor.getBlockedCount() > 0);
+        Assertions.assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void shouldSpillWithoutLosingOrder() {
+        executor.setSpillDirectory(directory);
+        start(OverloadPolicy.SPILL);
+        var sent = sendWhileBlocked(10_000);
+        Assertions.assertEquals(sent, handled);
+        Assertions.assertTrue(executor.getOverflowedCount() > 9_000);
+        Assertions.assertEquals(0, executor.getOverflowSize(0));
+        // only the header is left
+        Assertions.assertEquals(16, directory.resolve("shard-0.spill").toFile().length());
+    }
+
+    @Test
+    public void shouldSpillWhenQueueIsFull() throws InterruptedException {
+        executor.setSpillDirectory(directory);
+        start(OverloadPolicy.SPILL);
+        fillQueue();
+        executor.execute(new TestQuote(1, 3, 3));
+        executor.execute(new TestQuote(1, 4, 4));
+        Assertions.assertEquals(2, executor.getOverflowSize(0));
+        Assertions.assertEquals(2, executor.getOverflowedCount());
+        release.countDown();
+        executor.awaitProcessed();
+        Assertions.assertEquals(5, handled.size());
+        Assertions.assertEquals(new TestQuote(1, 4, 4), handled.get(4));
+    }
+
+    @Test
+    public void shouldReadSpillLeftByStoppedProcess() {
+        var spill = new SpillFile(directory.resolve("shard-0.spill"));
+        spill.add(1, 10, 100);
+        spill.add(2, 20, 200);
+        spill.close();
+
+        executor.setSpillDirectory(directory);
+        start(OverloadPolicy.SPILL);
+        release.countDown();
+        executor.execute(new TestQuote(1, 11, 101));
+        executor.awaitProcessed();
+        Assertions.assertEquals(List.of(new TestQuote(1, 10, 100), new TestQuote(2, 20, 200), new TestQuote(1, 11, 101)), handled);
+    }
+
+    @Test
+    public void shouldNotReadSpillAgainAfterRestart() {
+        var spill = new SpillFile(directory.resolve("shard-0.spill"));
+        for (int i = 0; i < 5; i++) {
+            spill.add(1, i, i);
+        }
+        var batch = new QuoteBatch(5);
+        Assertions.assertEquals(3, spill.read(batch, 3));
+        spill.close();
+
+        var reopened = new SpillFile(directory.resolve("shard-0.spill"));
+        Assertions.assertEquals(2, reopened.size());
+        Assertions.assertEquals(2, reopened.read(batch, 5));
+        Assertions.assertEquals(new TestQuote(1, 3, 3), TestQuote.copyOf(batch.at(0)));
+        Assertions.assertEquals(new TestQuote(1, 4, 4), TestQuote.copyOf(batch.at(1)));
+        reopened.close();
+    }
+
+    @Test
+    public void shouldConflateIntoSameBars() {
+        executor.setConflationMillis(60_000);
+        start(OverloadPolicy.CONFLATE);
+        var sent = sendWhileBlocked(10_000);
+        Assertions.assertTrue(executor.getConflatedCount() > 0);
+        Assertions.assertTrue(handled.size() < sent.size());
+        for (long instrumentId = 0; instrumentId < 3; instrumentId++) {
+            for (long minute = 0; minute < 5; minute++) {
+                Assertions.assertArrayEquals(bar(sent, instrumentId, minute), bar(handled, instrumentId, minute));
+            }
+        }
+    }
+
+    @Test
+    public void shouldRejectConflationWindowNotDividingPeriods() {
+        executor.setConflationMillis(15 * 60_000, OhlcPeriod.M15, OhlcPeriod.H1, OhlcPeriod.D1);
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> executor.setConflationMillis(7 * 60_000, OhlcPeriod.M1, OhlcPeriod.H1));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> executor.setConflationMillis(2 * 86_400_000L, OhlcPeriod.W1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> executor.setConflationMillis(0));
+    }
+
+    @Test
+    public void shouldRunTimerBetweenDrainSlices() throws InterruptedException {
+        executor = new QuoteShardExecutor(1, 64);
+        executor.setMaxDrain(4);
+        var handledAtTimer = new ArrayList<Integer>();
+        var timerSawAll = new CountDownLatch(1);
+        start(OverloadPolicy.REJECT, shard -> {
+            handledAtTimer.add(handled.size());
+            if (handled.size() == 41) {
+                timerSawAll.countDown();
+            }
+        });
+        for (int i = 0; i < 41; i++) {
+            executor.execute(new TestQuote(1, i, i));
+        }
+        release.countDown();
+        // awaitProcessed queues a control task, which drains all queued quotes without the timer
+        Assertions.assertTrue(timerSawAll.await(10, TimeUnit.SECONDS));
+        executor.awaitProcessed();
+        Assertions.assertEquals(41, handled.size());
+        for (int i = 1; i < handledAtTimer.size(); i++) {
+            Assertions.assertTrue(handledAtTimer.get(i) - handledAtTimer.get(i - 1) <= 4);
+        }
+    }
+
+    @Test
+    public void shouldRunControlTaskAfterAllQueuedBatches() throws Exception {
+        executor = new QuoteShardExecutor(1, 64);
+        start(OverloadPolicy.REJECT);
+        executor.execute(new TestQuote(1, 0, 0));
+        entered.await();
+        for (int b = 0; b < 40; b++) {
+            var batch = new ArrayList<TestQuote>();
+            for (int i = 0; i < 10; i++) {
+                batch.add(new TestQuote(1, b * 10 + i, b * 10 + i));
+            }
+            executor.executeAll(batch);
+        }
+        var handledBefore = new int[1];
+        var result = executor.executeOnAllShards(shard -> handledBefore[0] = handled.size());
+        release.countDown();
+        result.get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(401, handledBefore[0]);
+    }
+
+    @Test
+    public void shouldCompleteWhenControlTaskThrowsError() {
+        start(OverloadPolicy.REJECT);
+        release.countDown();
+        var result = executor.executeOnAllShards(shard -> {
+            throw new AssertionError("broken");
+        });
+        Assertions.assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        executor.execute(new TestQuote(1, 1, 1));
+        executor.awaitProcessed();
+        Assertions.assertEquals(List.of(new TestQuote(1, 1, 1)), handled);
+    }
+
+    @Test
+    public void shouldKeepHandlingWhenHandlerOrTimerThrowsError() {
+        executor.start((shard, quote) -> {
+            if (quote.getPrice() == 0) {
+                throw new AssertionError("broken");
+            }
+            handled.add(TestQuote.copyOf(quote));
+        }, shard -> {
+            throw new AssertionError("broken");
+        });
+        executor.execute(new TestQuote(1, 0, 0));
+        executor.execute(new TestQuote(1, 1, 1));
+        executor.awaitProcessed();
+        Assertions.assertEquals(List.of(new TestQuote(1, 1, 1)), handled);
+    }
+
+    /** the shard is stuck on the first quote and its queue is full */
+    private void fillQueue() throws InterruptedException {
+        executor.execute(new TestQuote(1, 0, 0));
+        entered.await();
+        executor.execute(new TestQuote(1, 1, 1));
+        executor.execute(new TestQuote(1, 2, 2));
+    }
+
+    /** sends quotes of 3 instruments over 5 minutes while the shard is stuck on the first quote */
+    private List<TestQuote> sendWhileBlocked(int count) {
+        var sent = new ArrayList<TestQuote>();
+        var releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        });
+        releaser.start();
+        for (int i = 0; i < count; i++) {
+            var quote = new TestQuote(i % 3, (i * 7919) % 1000, (long) i * 5 * 60_000 / count);
+            executor.execute(quote);
+            sent.add(quote);
+        }
+        executor.awaitProcessed();
+        return sent;
+    }
+
+    /** open, high, low and close of the quotes of the instrument within the minute */
+    private static double[] bar(List<TestQuote> quotes, long instrumentId, long minute) {
+        double[] bar = null;
+        for (TestQuote quote : quotes) {
+            if (quote.getInstrumentId() != instrumentId || quote.getUtcTimestamp() / 60_000 != minute) {
+                continue;
+            }
+            if (bar == null) {
+                bar = new double[]{quote.getPrice(), quote.getPrice(), quote.getPrice(), quote.getPrice()};
+            }
+            bar[1] = Math.max(bar[1], quote.getPrice());
+            bar[2] = Math.min(bar[2], quote.getPrice());
+            bar[3] = quote.getPrice();
+        }
+        return bar;
+    }
+
+    private void start(OverloadPolicy policy) {
+        start(policy, shard -> { });
+    }
+
+    private void start(OverloadPolicy policy, IntConsumer timer) {
+        executor.setOverloadPolicy(policy);
+        executor.start((shard, quote) -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(TestQuote.copyOf(quote));
+        }, timer);
+    }
+
+    static class TestQuote implements Quote {
+        private final long instrumentId;
+        private final double price;
+        private final long utcTimestamp;
+
+        TestQuote(long instrumentId, double price, long utcTimestamp) {
+            this.instrumentId = instrumentId;
+            this.price = price;
+            this.utcTimestamp = utcTimestamp;
+        }
+
+        static TestQuote copyOf(Quote quote) {
+            return new TestQuote(quote.getInstrumentId(), quote.getPrice(), quote.getUtcTimestamp());
+        }
+
+        @Override
+        public long getInstrumentId() {
+            return instrumentId;
+        }
+
+        @Override
+        public double getPrice() {
+            return price;
+        }
+
+        @Override
+        public long getUtcTimestamp() {
+            return utcTimestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TestQuote)) {
+                return false;
+            }
+            var other = (TestQuote) o;
+            return instrumentId == other.instrumentId && price == other.price && utcTimestamp == other.utcTimestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(instrumentId) * 31 + Long.hashCode(utcTimestamp);
+        }
+
+        @Override
+        public String toString() {
+            return instrumentId + "@" + utcTimestamp + "=" + price;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.ohlc.concurrent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TaskLanesTest {
+    private TaskLanes lanes;
+    private CountDownLatch release;
+
+    @BeforeEach
+    public void init() {
+        lanes = new TaskLanes();
+        lanes.configure(TaskLanes.Lane.PERSISTENCE, 1, 2, Thread.NORM_PRIORITY);
+        lanes.configure(TaskLanes.Lane.MAINTENANCE, 1, 2, Thread.MIN_PRIORITY);
+        lanes.start();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    public void destroy() {
+        release.countDown();
+        lanes.shutdown();
+    }
+
+    @Test
+    public void shouldRunLaneWhileAnotherIsFull() throws InterruptedException {
+        fillPersistence();
+        var done = new CountDownLatch(1);
+        lanes.execute(TaskLanes.Lane.MAINTENANCE, done::countDown);
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, lanes.getQueueSize(TaskLanes.Lane.PERSISTENCE));
+        Assertions.assertEquals(0, lanes.getCallerRunsCount(TaskLanes.Lane.MAINTENANCE));
+    }
+
+    @Test
+    public void shouldRunOnCallerWhenLaneIsFull() throws InterruptedException {
+        fillPersistence();
+        var thread = new AtomicReference<Thread>();
+        lanes.execute(TaskLanes.Lane.PERSISTENCE, () -> thread.set(Thread.currentThread()));
+        Assertions.assertSame(Thread.currentThread(), thread.get());
+        Assertions.assertEquals(1, lanes.getCallerRunsCount(TaskLanes.Lane.PERSISTENCE));
+    }
+
+    @Test
+    public void shouldRecordWaitOfQueuedTasks() throws InterruptedException {
+        fillPersistence();
+        Thread.sleep(20);
+        release.countDown();
+        lanes.shutdown();
+        Assertions.assertEquals(3, lanes.getWaitCount(TaskLanes.Lane.PERSISTENCE));
+        Assertions.assertTrue(lanes.getWaitNanos(TaskLanes.Lane.PERSISTENCE) >= TimeUnit.MILLISECONDS.toNanos(40));
+        Assertions.assertEquals(0, lanes.getWaitCount(TaskLanes.Lane.MAINTENANCE));
+    }
+
+    @Test
+    public void shouldRunLanesOnVirtualThreads() throws Exception {
+        Assumptions.assumeTrue(VirtualThreads.isSupported());
+        var virtualLanes = new TaskLanes();
+        virtualLanes.setVirtualThreads(true);
+        virtualLanes.start();
+        try {
+            var thread = new AtomicReference<Thread>();
+            var done = new CountDownLatch(1);
+            virtualLanes.execute(TaskLanes.Lane.PERSISTENCE, () -> {
+                thread.set(Thread.currentThread());
+                done.countDown();
+            });
+            Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(true, Thread.class.getMethod("isVirtual").invoke(thread.get()));
+            Assertions.assertTrue(thread.get().getName().startsWith("lane-persistence-"));
+        } finally {
+            virtualLanes.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldRejectVirtualThreadsBeforeJava21() {
+        Assumptions.assumeFalse(VirtualThreads.isSupported());
+        Assertions.assertThrows(IllegalStateException.class, () -> new TaskLanes().setVirtualThreads(true));
+    }
+
+    /** the only persistence thread waits for the release and two more tasks are queued */
+    private void fillPersistence() throws InterruptedException {
+        var entered = new CountDownLatch(1);
+        lanes.execute(TaskLanes.Lane.PERSISTENCE, () -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        entered.await();
+        lanes.execute(TaskLanes.Lane.PERSISTENCE, () -> { });
+        lanes.execute(TaskLanes.Lane.PERSISTENCE, () -> { });
+    }
+}
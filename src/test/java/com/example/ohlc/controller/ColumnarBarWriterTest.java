@@ -0,0 +1,128 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ColumnarBarWriterTest {
+
+    @Test
+    public void shouldRoundTripDoubles() {
+        var bars = createBars(2500);
+        var decoded = decode(encode(bars, -1));
+        Assertions.assertEquals(bars, decoded);
+    }
+
+    @Test
+    public void shouldRoundTripScaledPrices() {
+        var bars = createBars(2500);
+        var encoded = encode(bars, 2);
+        Assertions.assertEquals(bars, decode(encoded));
+        Assertions.assertTrue(encoded.length < bars.size() * 10, "Encoded " + encoded.length + " bytes");
+    }
+
+    @Test
+    public void shouldWriteEmptyStream() {
+        Assertions.assertTrue(decode(encode(List.of(), 2)).isEmpty());
+    }
+
+    @Test
+    public void shouldRejectUnsupportedScale() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new ColumnarBarWriter(new ByteArrayOutputStream(), 7, OhlcPeriod.H1, ColumnarBarWriter.MAX_SCALE + 1));
+    }
+
+    /** prices with two decimal places, newest first */
+    private List<Ohlc> createBars(int count) {
+        var random = new Random(42);
+        var bars = new ArrayList<Ohlc>();
+        long price = 10_000;
+        for (int i = count - 1; i >= 0; i--) {
+            long open = price;
+            long close = open + random.nextInt(41) - 20;
+            long high = Math.max(open, close) + random.nextInt(10);
+            long low = Math.min(open, close) - random.nextInt(10);
+            price = close;
+            bars.add(Ohlc.builder().instrumentId(7).period(OhlcPeriod.H1)
+                    .startPeriod(1_600_000_000_000L + i * OhlcPeriod.H1.getMillis())
+                    .openPrice(open / 100.0).highPrice(high / 100.0).lowPrice(low / 100.0).closePrice(close / 100.0)
+                    .build());
+        }
+        return bars;
+    }
+
+    private byte[] encode(List<Ohlc> bars, int scale) {
+        var out = new ByteArrayOutputStream();
+        var writer = new ColumnarBarWriter(out, 7, OhlcPeriod.H1, scale);
+        bars.forEach(writer::visit);
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    private List<Ohlc> decode(byte[] encoded) {
+        var in = ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN);
+        var magic = new byte[4];
+        in.get(magic);
+        Assertions.assertEquals("OHLC", new String(magic, StandardCharsets.US_ASCII));
+        Assertions.assertEquals(1, in.get());
+        int scale = in.get();
+        long instrumentId = getVarLong(in);
+        var name = new byte[in.get()];
+        in.get(name);
+        var period = OhlcPeriod.valueOf(new String(name, StandardCharsets.US_ASCII));
+        double factor = Math.pow(10, Math.max(scale, 0));
+        var bars = new ArrayList<Ohlc>();
+        int count;
+        while ((count = (int) getVarLong(in)) > 0) {
+            var starts = new long[count];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += unzigzag(getVarLong(in));
+                starts[i] = previous;
+            }
+            var prices = new double[4][count];
+            for (double[] column : prices) {
+                previous = 0;
+                for (int i = 0; i < count; i++) {
+                    if (scale < 0) {
+                        column[i] = in.getDouble();
+                    } else {
+                        previous += unzigzag(getVarLong(in));
+                        column[i] = previous / factor;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                bars.add(Ohlc.builder().instrumentId(instrumentId).period(period).startPeriod(starts[i])
+                        .openPrice(prices[0][i]).highPrice(prices[1][i]).lowPrice(prices[2][i]).closePrice(prices[3][i])
+                        .build());
+            }
+        }
+        Assertions.assertFalse(in.hasRemaining());
+        return bars;
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
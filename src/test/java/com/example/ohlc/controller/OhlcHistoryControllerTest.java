@@ -0,0 +1,94 @@
+package com.example.ohlc.controller;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarVisitor;
+import com.example.ohlc.service.OhlcService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class OhlcHistoryControllerTest {
+    private static final String BROWSER_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+
+    private final Ohlc bar = Ohlc.first(1, OhlcPeriod.M1, 60_000, 10.5);
+    private OhlcService ohlcService;
+    private MockMvc mvc;
+
+    @BeforeEach
+    public void init() {
+        ohlcService = Mockito.mock(OhlcService.class);
+        Mockito.when(ohlcService.getHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE))
+                .thenReturn(List.of(bar));
+        Mockito.doAnswer(invocation -> {
+            BarVisitor visitor = invocation.getArgument(5);
+            visitor.visit(bar);
+            return null;
+        }).when(ohlcService).forEachHistorical(eq(1L), eq(OhlcPeriod.M1), anyLong(), anyLong(), anyInt(), any());
+        var controller = new OhlcHistoryController(ohlcService, new ObjectMapper());
+        controller.start();
+        mvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    public void shouldReturnJsonWithoutAcceptHeader() throws Exception {
+        assertJson(get("/ohlc/1/M1"));
+    }
+
+    @Test
+    public void shouldReturnJsonToClientsAcceptingAnything() throws Exception {
+        assertJson(get("/ohlc/1/M1").header(HttpHeaders.ACCEPT, MediaType.ALL_VALUE));
+        assertJson(get("/ohlc/1/M1").header(HttpHeaders.ACCEPT, BROWSER_ACCEPT));
+        assertJson(get("/ohlc/1/M1").header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE));
+    }
+
+    @Test
+    public void shouldStreamColumnarWhenAccepted() throws Exception {
+        var result = perform(get("/ohlc/1/M1").header(HttpHeaders.ACCEPT, ColumnarBarWriter.MEDIA_TYPE + ", */*;q=0.1")).andReturn();
+        Assertions.assertEquals(ColumnarBarWriter.MEDIA_TYPE, result.getResponse().getContentType());
+        var body = result.getResponse().getContentAsByteArray();
+        Assertions.assertEquals("OHLC", new String(Arrays.copyOf(body, 4), StandardCharsets.US_ASCII));
+        Mockito.verify(ohlcService, Mockito.never()).getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void shouldRejectLimitBelowOne() throws Exception {
+        mvc.perform(get("/ohlc/1/M1").param("limit", "0")).andExpect(status().isBadRequest());
+    }
+
+    private void assertJson(MockHttpServletRequestBuilder builder) throws Exception {
+        perform(builder)
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$[0].startPeriod").value(60_000))
+                .andExpect(jsonPath("$[0].closePrice").value(10.5));
+    }
+
+    /** the body is streamed asynchronously, the dispatch after it holds the whole response */
+    private ResultActions perform(MockHttpServletRequestBuilder builder) throws Exception {
+        var started = mvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        return mvc.perform(asyncDispatch(started)).andExpect(status().isOk());
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.ohlc.dto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Random;
+
+public class OhlcPeriodTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void shouldMatchCalendarTruncation() {
+        for (int i = 0; i < 10_000; i++) {
+            long timestamp = random.nextLong() % 4_000_000_000_000L;
+            var dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
+            var minute = dateTime.truncatedTo(ChronoUnit.MINUTES);
+            var hour = dateTime.truncatedTo(ChronoUnit.HOURS);
+            var day = dateTime.truncatedTo(ChronoUnit.DAYS);
+
+            checkStart(OhlcPeriod.M1, timestamp, minute);
+            checkStart(OhlcPeriod.M5, timestamp, minute.withMinute(minute.getMinute() / 5 * 5));
+            checkStart(OhlcPeriod.M15, timestamp, minute.withMinute(minute.getMinute() / 15 * 15));
+            checkStart(OhlcPeriod.M30, timestamp, minute.withMinute(minute.getMinute() / 30 * 30));
+            checkStart(OhlcPeriod.H1, timestamp, hour);
+            checkStart(OhlcPeriod.H4, timestamp, hour.withHour(hour.getHour() / 4 * 4));
+            checkStart(OhlcPeriod.D1, timestamp, day);
+            checkStart(OhlcPeriod.W1, timestamp, day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)));
+        }
+    }
+
+    @Test
+    public void shouldContainOnlyTimestampsOfThePeriod() {
+        long start = OhlcPeriod.H1.getStartPeriod(System.currentTimeMillis());
+        Assertions.assertTrue(OhlcPeriod.H1.contains(start, start));
+        Assertions.assertTrue(OhlcPeriod.H1.contains(start, start + OhlcPeriod.H1.getMillis() - 1));
+        Assertions.assertFalse(OhlcPeriod.H1.contains(start, start + OhlcPeriod.H1.getMillis()));
+        Assertions.assertFalse(OhlcPeriod.H1.contains(start, start - 1));
+        Assertions.assertFalse(OhlcPeriod.H1.contains(Long.MIN_VALUE, start));
+    }
+
+    private void checkStart(OhlcPeriod period, long timestamp, LocalDateTime expected) {
+        Assertions.assertEquals(expected.toInstant(ZoneOffset.UTC).toEpochMilli(), period.getStartPeriod(timestamp),
+                period + " start of " + timestamp);
+    }
+}
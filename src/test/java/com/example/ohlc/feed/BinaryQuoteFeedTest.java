@@ -0,0 +1,124 @@
+package com.example.ohlc.feed;
+
+import com.example.ohlc.dto.Quote;
+import com.example.ohlc.service.QuoteListener;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+public class BinaryQuoteFeedTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void shouldReplayFile() throws IOException {
+        var file = directory.resolve("quotes.bin");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(records(0, 1000));
+        }
+        var listener = new RecordingListener();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // 100 bytes hold 4 quotes, so reads end in the middle of a record
+            Assertions.assertEquals(1000, new BinaryQuoteFeed(listener, 100).read(channel));
+        }
+        checkQuotes(listener, 1000);
+        Assertions.assertEquals(250, listener.frames);
+    }
+
+    @Test
+    public void shouldJoinRecordsSplitBetweenWrites() throws Exception {
+        var pipe = Pipe.open();
+        var listener = new RecordingListener();
+        var reader = new Thread(() -> {
+            try {
+                new BinaryQuoteFeed(listener, 4096).read(pipe.source());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        reader.start();
+        var records = records(0, 100);
+        while (records.hasRemaining()) {
+            var chunk = records.slice();
+            chunk.limit(Math.min(7, chunk.remaining()));
+            records.position(records.position() + pipe.sink().write(chunk));
+        }
+        pipe.sink().close();
+        reader.join(5_000);
+        checkQuotes(listener, 100);
+    }
+
+    @Test
+    public void shouldRetryRejectedFrames() throws IOException {
+        var file = directory.resolve("quotes.bin");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(records(0, 100));
+        }
+        var listener = new RecordingListener();
+        listener.rejections = 5;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Assertions.assertEquals(100, new BinaryQuoteFeed(listener, 240).read(channel));
+        }
+        checkQuotes(listener, 100);
+        Assertions.assertEquals(10, listener.frames);
+    }
+
+    private ByteBuffer records(int from, int to) {
+        var buffer = ByteBuffer.allocate((to - from) * QuoteFlyweight.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = from; i < to; i++) {
+            QuoteFlyweight.put(buffer, i % 10, 100 + i / 100.0, 1_646_000_000_000L + i);
+        }
+        return buffer.flip();
+    }
+
+    private void checkQuotes(RecordingListener listener, int count) {
+        Assertions.assertEquals(count, listener.instrumentIds.size());
+        for (int i = 0; i < count; i++) {
+            Assertions.assertEquals(i % 10, listener.instrumentIds.get(i).longValue());
+            Assertions.assertEquals(100 + i / 100.0, listener.prices.get(i).doubleValue());
+            Assertions.assertEquals(1_646_000_000_000L + i, listener.timestamps.get(i).longValue());
+        }
+    }
+
+    private static class RecordingListener implements QuoteListener {
+        private final List<Long> instrumentIds = new ArrayList<>();
+        private final List<Double> prices = new ArrayList<>();
+        private final List<Long> timestamps = new ArrayList<>();
+        private int frames;
+        /** count of frames to reject before accepting */
+        private int rejections;
+
+        @Override
+        public void onQuote(Quote quote) {
+            instrumentIds.add(quote.getInstrumentId());
+            prices.add(quote.getPrice());
+            timestamps.add(quote.getUtcTimestamp());
+        }
+
+        @Override
+        public void onQuotes(List<? extends Quote> quotes) {
+            if (rejections > 0) {
+                rejections--;
+                throw new RejectedExecutionException("Queue is full");
+            }
+            frames++;
+            quotes.forEach(this::onQuote);
+        }
+
+        @Override
+        public void onQuotes(long[] instrumentIds, double[] prices, long[] utcTimestamps, int count) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class BarDeadlineIndexTest {
+    private final BarDeadlineIndex index = new BarDeadlineIndex();
+
+    @Test
+    public void shouldPollOnlyExpiredDeadlinesOfPeriod() {
+        index.add(OhlcPeriod.M1, 120, 1);
+        index.add(OhlcPeriod.M1, 60, 2);
+        index.add(OhlcPeriod.H1, 30, 3);
+        index.add(OhlcPeriod.M1, 60, 4);
+        Assertions.assertEquals(30, index.getNextDeadline());
+
+        var polled = new ArrayList<Long>();
+        Assertions.assertEquals(2, index.pollExpired(OhlcPeriod.M1, 100, polled::add));
+        Assertions.assertEquals(List.of(2L, 4L), polled);
+        Assertions.assertEquals(30, index.getNextDeadline());
+
+        Assertions.assertEquals(1, index.pollExpired(OhlcPeriod.H1, 100, key -> true));
+        Assertions.assertEquals(120, index.getNextDeadline());
+        Assertions.assertEquals(0, index.pollExpired(OhlcPeriod.M1, 119, key -> true));
+        Assertions.assertEquals(1, index.pollExpired(OhlcPeriod.M1, 120, key -> true));
+        Assertions.assertEquals(Long.MAX_VALUE, index.getNextDeadline());
+    }
+
+    @Test
+    public void shouldMatchSortedMapOfDeadlines() {
+        var random = new Random(7);
+        var expected = new TreeMap<Long, List<Long>>();
+        long now = 0;
+        for (int step = 0; step < 20_000; step++) {
+            if (random.nextInt(4) == 0) {
+                now += random.nextInt(50);
+                var polled = new ArrayList<Long>();
+                index.pollExpired(OhlcPeriod.M1, now, polled::add);
+                var expectedPolled = new ArrayList<Long>();
+                expected.headMap(now, true).values().forEach(expectedPolled::addAll);
+                expected.headMap(now, true).clear();
+                Assertions.assertEquals(expectedPolled, polled);
+            } else {
+                long deadline = now + random.nextInt(200) - 20;
+                index.add(OhlcPeriod.M1, deadline, step);
+                expected.computeIfAbsent(deadline, d -> new ArrayList<>()).add((long) step);
+            }
+            Assertions.assertEquals(expected.isEmpty() ? Long.MAX_VALUE : expected.firstKey(), index.getNextDeadline());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.BarKey;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.BarSink;
+import com.example.ohlc.service.OhlcService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class BarPublisherTest {
+    private static final BarKey BAR = new BarKey(1, OhlcPeriod.M1);
+    @Mock
+    private OhlcService ohlcService;
+    OhlcServiceTest.TestClock clock;
+    BarPublisher barPublisher;
+
+    @BeforeEach
+    public void init() {
+        clock = new OhlcServiceTest.TestClock(1_000_000);
+        barPublisher = new BarPublisher(ohlcService, clock);
+        ReflectionTestUtils.setField(barPublisher, "maxRate", 10);
+        ReflectionTestUtils.setField(barPublisher, "slowConsumerMillis", 5_000L);
+        barPublisher.start();
+    }
+
+    @AfterEach
+    public void destroy() {
+        barPublisher.stop();
+    }
+
+    @Test
+    public void shouldRejectMaxRateBelowOne() {
+        var publisher = new BarPublisher(ohlcService, clock);
+        ReflectionTestUtils.setField(publisher, "maxRate", 0);
+        Assertions.assertThrows(IllegalArgumentException.class, publisher::start);
+    }
+
+    @Test
+    public void shouldSendOnlyLatestBarWithinInterval() throws InterruptedException {
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(10));
+        var sink = new RecordingSink();
+        barPublisher.subscribe(List.of(BAR), 1, sink);
+
+        barPublisher.publish();
+        Assertions.assertEquals(10, sink.next().getClosePrice());
+
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(11));
+        clock.setMillis(clock.millis() + 100);
+        barPublisher.publish();
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(12));
+        clock.setMillis(clock.millis() + 100);
+        barPublisher.publish();
+        Assertions.assertNull(sink.bars.poll(100, TimeUnit.MILLISECONDS));
+
+        clock.setMillis(clock.millis() + 1_000);
+        barPublisher.publish();
+        Assertions.assertEquals(12, sink.next().getClosePrice());
+        Assertions.assertNull(sink.bars.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldReadBarOncePerTickForAllSubscribers() throws InterruptedException {
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(10));
+        var first = new RecordingSink();
+        var second = new RecordingSink();
+        barPublisher.subscribe(List.of(BAR), 0, first);
+        barPublisher.subscribe(List.of(BAR), 0, second);
+        Assertions.assertEquals(1, barPublisher.getTopicCount());
+
+        barPublisher.publish();
+        Assertions.assertEquals(10, first.next().getClosePrice());
+        Assertions.assertEquals(10, second.next().getClosePrice());
+        verify(ohlcService, times(3)).getCurrent(1, OhlcPeriod.M1);
+    }
+
+    @Test
+    public void shouldSendLatestBarOnceSinkIsReady() throws InterruptedException {
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(10));
+        var sink = new RecordingSink();
+        barPublisher.subscribe(List.of(BAR), 0, sink);
+        barPublisher.publish();
+        Assertions.assertEquals(10, sink.next().getClosePrice());
+
+        sink.ready = false;
+        for (int close = 11; close <= 13; close++) {
+            when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(close));
+            clock.setMillis(clock.millis() + 1_000);
+            barPublisher.publish();
+        }
+        Assertions.assertTrue(sink.bars.isEmpty());
+
+        sink.ready = true;
+        clock.setMillis(clock.millis() + 1_000);
+        barPublisher.publish();
+        Assertions.assertEquals(13, sink.next().getClosePrice());
+        Assertions.assertTrue(sink.bars.isEmpty());
+        Assertions.assertEquals(0, barPublisher.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDropSlowSubscriber() throws InterruptedException {
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(10));
+        var slow = new RecordingSink();
+        barPublisher.subscribe(List.of(BAR), 0, slow);
+        barPublisher.publish();
+        slow.next();
+
+        slow.ready = false;
+        when(ohlcService.getCurrent(1, OhlcPeriod.M1)).thenReturn(bar(11));
+        clock.setMillis(clock.millis() + 100);
+        barPublisher.publish();
+        clock.setMillis(clock.millis() + 5_000);
+        barPublisher.publish();
+        Assertions.assertEquals(1, barPublisher.getSubscriberCount());
+        clock.setMillis(clock.millis() + 1);
+        barPublisher.publish();
+
+        Assertions.assertTrue(slow.closed.await(1, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, barPublisher.getSubscriberCount());
+        Assertions.assertEquals(0, barPublisher.getTopicCount());
+        Assertions.assertEquals(1, barPublisher.getDroppedCount());
+    }
+
+    private static Ohlc bar(double close) {
+        return Ohlc.builder().instrumentId(1).period(OhlcPeriod.M1)
+                .openPrice(10).highPrice(Math.max(10, close)).lowPrice(10).closePrice(close).build();
+    }
+
+    static class RecordingSink implements BarSink {
+        final BlockingQueue<Ohlc> bars = new LinkedBlockingQueue<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean ready = true;
+
+        Ohlc next() throws InterruptedException {
+            var bar = bars.poll(1, TimeUnit.SECONDS);
+            Assertions.assertNotNull(bar);
+            return bar;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void send(List<Ohlc> bars) {
+            this.bars.addAll(bars);
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.IntervalBar;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import com.example.ohlc.service.OhlcStorage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+public class BarPyramidTest {
+    private static final long MINUTE = OhlcPeriod.M1.getMillis();
+    private static final long HOUR = OhlcPeriod.H1.getMillis();
+    private static final long DAY = OhlcPeriod.D1.getMillis();
+    /** Monday, 2022-01-03 */
+    private static final long START = 1_641_168_000_000L;
+    private static final int DAYS = 21;
+
+    private final OhlcPeriod[] levels = {OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1};
+    private List<Ohlc> minutes;
+    private MemoryStorage storage;
+    private BarPyramid pyramid;
+
+    @BeforeEach
+    public void init() {
+        var random = new Random(42);
+        minutes = new ArrayList<>();
+        double price = 100;
+        for (long t = START; t < START + DAYS * DAY; t += MINUTE) {
+            if (random.nextInt(10) == 0) {
+                continue;
+            }
+            double open = price;
+            double close = price + random.nextGaussian();
+            minutes.add(bar(OhlcPeriod.M1, t, open, Math.max(open, close) + random.nextDouble(),
+                    Math.min(open, close) - random.nextDouble(), close));
+            price = close;
+        }
+        storage = new MemoryStorage();
+        for (OhlcPeriod p : levels) {
+            aggregate(minutes, p.getMillis(), p.getAlignment()).forEach(b -> storage.store(bar(p, b)));
+        }
+        pyramid = new BarPyramid(levels, storage);
+    }
+
+    @Test
+    public void shouldBuildSameBarsAsFromMinutes() {
+        long[] intervals = {3 * MINUTE, 90 * MINUTE, 2 * HOUR, 5 * HOUR, DAY, 2 * DAY, 7 * DAY};
+        for (long interval : intervals) {
+            long from = START + 7 * MINUTE;
+            long to = START + DAYS * DAY - 11 * MINUTE;
+            var expected = aggregate(minutes, interval, interval % (7 * DAY) == 0 ? OhlcPeriod.W1.getAlignment() : 0).stream()
+                    .filter(b -> b.getStartPeriod() >= from && b.getStartPeriod() < to)
+                    .sorted(Comparator.comparingLong(IntervalBar::getStartPeriod).reversed())
+                    .collect(Collectors.toList());
+            var result = pyramid.build(1, interval, from, to, p -> null);
+            Assertions.assertEquals(expected.size(), result.size(), "bars of " + interval);
+            for (int i = 0; i < expected.size(); i++) {
+                assertBar(expected.get(i), result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadHoursOnlyForTwoHourBars() {
+        var result = pyramid.build(1, 2 * HOUR, START, START + DAYS * DAY, p -> null);
+        Assertions.assertEquals(DAYS * 12, result.size());
+        Assertions.assertEquals(0, (int) storage.rows.get(OhlcPeriod.M1));
+        Assertions.assertEquals(DAYS * 24, (int) storage.rows.get(OhlcPeriod.H1));
+        Assertions.assertEquals(1, storage.queries);
+    }
+
+    @Test
+    public void shouldReadMinutesOnlyAtEdges() {
+        var result = pyramid.build(1, 90 * MINUTE, START, START + DAYS * DAY, p -> null);
+        Assertions.assertEquals(DAYS * 16, result.size());
+        // two intervals span three hours, the middle hour is read as minutes
+        Assertions.assertTrue(storage.rows.get(OhlcPeriod.M1) <= DAYS * 8 * 60);
+        Assertions.assertTrue(storage.rows.get(OhlcPeriod.H1) <= DAYS * 24);
+    }
+
+    @Test
+    public void shouldBuildBarsMissingFromCoarseLevelsFromFinerOnes() {
+        // hours were aggregated from the third day on, days from the sixth day on
+        storage.bars.get(OhlcPeriod.H1).tailMap(START + 2 * DAY, false).clear();
+        storage.bars.get(OhlcPeriod.D1).tailMap(START + 5 * DAY, false).clear();
+        long from = START + 7 * MINUTE;
+        long to = START + DAYS * DAY - 11 * MINUTE;
+        for (long interval : new long[]{2 * HOUR, DAY, 7 * DAY}) {
+            var expected = aggregate(minutes, interval, interval % (7 * DAY) == 0 ? OhlcPeriod.W1.getAlignment() : 0).stream()
+                    .filter(b -> b.getStartPeriod() >= from && b.getStartPeriod() < to)
+                    .sorted(Comparator.comparingLong(IntervalBar::getStartPeriod).reversed())
+                    .collect(Collectors.toList());
+            var result = pyramid.build(1, interval, from, to, p -> null);
+            Assertions.assertEquals(expected.size(), result.size(), "bars of " + interval);
+            for (int i = 0; i < expected.size(); i++) {
+                assertBar(expected.get(i), result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMergeLiveBar() {
+        long hour = START + 5 * HOUR;
+        var live = bar(OhlcPeriod.H1, hour, 1, 1000, 0.5, 2);
+        var result = pyramid.build(1, 2 * HOUR, hour - HOUR, hour + HOUR, p -> p == OhlcPeriod.H1 ? live : null);
+        Assertions.assertEquals(1, result.size());
+        Assertions.assertEquals(1000, result.get(0).getHighPrice());
+        Assertions.assertEquals(0.5, result.get(0).getLowPrice());
+        Assertions.assertEquals(2, result.get(0).getClosePrice());
+    }
+
+    @Test
+    public void shouldRejectIntervalsNotMultipleOfFinest() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> pyramid.build(1, 90_000, START, START + DAY, p -> null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> pyramid.build(1, MINUTE, 0, Long.MAX_VALUE, p -> null));
+    }
+
+    private static void assertBar(IntervalBar expected, IntervalBar actual) {
+        Assertions.assertEquals(expected.getStartPeriod(), actual.getStartPeriod());
+        Assertions.assertEquals(expected.getOpenPrice(), actual.getOpenPrice(), 1e-9);
+        Assertions.assertEquals(expected.getHighPrice(), actual.getHighPrice(), 1e-9);
+        Assertions.assertEquals(expected.getLowPrice(), actual.getLowPrice(), 1e-9);
+        Assertions.assertEquals(expected.getClosePrice(), actual.getClosePrice(), 1e-9);
+    }
+
+    private static List<IntervalBar> aggregate(List<Ohlc> minutes, long interval, long alignment) {
+        var buckets = new TreeMap<Long, IntervalBar>();
+        for (Ohlc m : minutes) {
+            long start = Math.floorDiv(m.getStartPeriod() - alignment, interval) * interval + alignment;
+            var b = buckets.get(start);
+            buckets.put(start, b == null
+                    ? new IntervalBar(1, interval, start, m.getOpenPrice(), m.getHighPrice(), m.getLowPrice(), m.getClosePrice())
+                    : new IntervalBar(1, interval, start, b.getOpenPrice(), Math.max(b.getHighPrice(), m.getHighPrice()),
+                    Math.min(b.getLowPrice(), m.getLowPrice()), m.getClosePrice()));
+        }
+        return new ArrayList<>(buckets.values());
+    }
+
+    private static Ohlc bar(OhlcPeriod period, IntervalBar b) {
+        return bar(period, b.getStartPeriod(), b.getOpenPrice(), b.getHighPrice(), b.getLowPrice(), b.getClosePrice());
+    }
+
+    private static Ohlc bar(OhlcPeriod period, long start, double open, double high, double low, double close) {
+        return Ohlc.builder().instrumentId(1).period(period).startPeriod(start)
+                .openPrice(open).highPrice(high).lowPrice(low).closePrice(close).build();
+    }
+
+    /** counts the rows read of every period */
+    private static final class MemoryStorage implements OhlcStorage {
+        private final Map<OhlcPeriod, TreeMap<Long, Ohlc>> bars = new EnumMap<>(OhlcPeriod.class);
+        private final Map<OhlcPeriod, Integer> rows = new EnumMap<>(OhlcPeriod.class);
+        private int queries;
+
+        private MemoryStorage() {
+            for (OhlcPeriod p : OhlcPeriod.values()) {
+                bars.put(p, new TreeMap<>(Comparator.reverseOrder()));
+                rows.put(p, 0);
+            }
+        }
+
+        @Override
+        public void store(Ohlc ohlc) {
+            bars.get(ohlc.getPeriod()).put(ohlc.getStartPeriod(), ohlc);
+        }
+
+        @Override
+        public void amend(Ohlc ohlc) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period) {
+            return getHistorical(instrumentId, period, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public List<Ohlc> getHistorical(long instrumentId, OhlcPeriod period, long from, long to, int limit) {
+            var result = bars.get(period).subMap(to, false, from, true).values().stream()
+                    .limit(limit)
+                    .collect(Collectors.toList());
+            rows.merge(period, result.size(), Integer::sum);
+            queries++;
+            return result;
+        }
+
+        @Override
+        public void replace(long instrumentId, OhlcPeriod period, long from, long to, List<Ohlc> replacement) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CurrentBarTableTest {
+    private static final OhlcPeriod[] PERIODS = OhlcPeriod.values();
+    private static final int INSTRUMENTS = 50_000;
+
+    @Test
+    public void shouldKeepBarPerInstrumentAndPeriod() {
+        var table = new CurrentBarTable(16);
+        table.open(table.slot(1, OhlcPeriod.M1), 60_000, 10.5);
+        table.open(table.slot(1, OhlcPeriod.H1), 0, 20.5);
+        table.open(table.slot(-2, OhlcPeriod.M1), 60_000, 30.5);
+        table.update(table.slot(1, OhlcPeriod.M1), 12);
+        table.update(table.slot(1, OhlcPeriod.M1), 9);
+
+        var m1 = table.getCurrent(1, OhlcPeriod.M1);
+        Assertions.assertEquals(1, m1.getInstrumentId());
+        Assertions.assertEquals(OhlcPeriod.M1, m1.getPeriod());
+        Assertions.assertEquals(60_000, m1.getStartPeriod());
+        Assertions.assertEquals(10.5, m1.getOpenPrice());
+        Assertions.assertEquals(12, m1.getHighPrice());
+        Assertions.assertEquals(9, m1.getLowPrice());
+        Assertions.assertEquals(9, m1.getClosePrice());
+        Assertions.assertEquals(20.5, table.getCurrent(1, OhlcPeriod.H1).getClosePrice());
+        Assertions.assertEquals(-2, table.getCurrent(-2, OhlcPeriod.M1).getInstrumentId());
+        Assertions.assertNull(table.getCurrent(1, OhlcPeriod.D1));
+        Assertions.assertNull(table.getCurrent(3, OhlcPeriod.M1));
+    }
+
+    @Test
+    public void shouldReuseSlotAfterClose() {
+        var table = new CurrentBarTable(16);
+        int slot = table.slot(1, OhlcPeriod.M1);
+        table.open(slot, 60_000, 10);
+        table.close(slot);
+        Assertions.assertNull(table.getCurrent(1, OhlcPeriod.M1));
+        Assertions.assertFalse(table.isOpen(slot));
+        Assertions.assertEquals(slot, table.slot(1, OhlcPeriod.M1));
+        Assertions.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void shouldReturnRolledUpBarWaitingForDeadline() {
+        var table = new CurrentBarTable(16);
+        var pending = new CurrentBarTable(16);
+        long hour = OhlcPeriod.H1.getMillis();
+        table.open(table.slot(1, OhlcPeriod.H1), 0, 10, 12, 9, 11);
+        pending.open(pending.slot(1, OhlcPeriod.M1), hour - OhlcPeriod.M1.getMillis(), 13);
+        table.open(table.slot(1, OhlcPeriod.M1), hour, 14);
+
+        var bars = table.getCurrentBars(1, OhlcPeriod.H1, OhlcPeriod.M1, pending);
+        Assertions.assertEquals(2, bars.size());
+        Assertions.assertEquals(hour, bars.get(0).getStartPeriod());
+        Assertions.assertEquals(14, bars.get(0).getClosePrice());
+        Assertions.assertEquals(0, bars.get(1).getStartPeriod());
+        Assertions.assertEquals(OhlcPeriod.H1, bars.get(1).getPeriod());
+        Assertions.assertEquals(13, bars.get(1).getHighPrice());
+        Assertions.assertEquals(13, bars.get(1).getClosePrice());
+        Assertions.assertEquals(bars.get(0), table.getCurrent(1, OhlcPeriod.H1, OhlcPeriod.M1, pending));
+    }
+
+    @Test
+    public void shouldGrowBeyondExpectedSize() {
+        var table = new CurrentBarTable(16);
+        fill(table);
+        Assertions.assertEquals(INSTRUMENTS * PERIODS.length, table.size());
+        for (int i = 0; i < INSTRUMENTS; i++) {
+            for (OhlcPeriod p : PERIODS) {
+                var ohlc = table.getCurrent(i, p);
+                Assertions.assertNotNull(ohlc);
+                Assertions.assertEquals(i, ohlc.getOpenPrice());
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotAllocateOnSteadyStateUpdates() {
+        var threadBean = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        var allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assumptions.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        long threadId = Thread.currentThread().getId();
+
+        var table = new CurrentBarTable(INSTRUMENTS * PERIODS.length);
+        fill(table);
+        for (int round = 0; round < 20; round++) {
+            update(table, round);
+        }
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < 20; round++) {
+            update(table, round);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        Assertions.assertTrue(allocated < 1024, "Steady state updates allocated " + allocated + " bytes");
+    }
+
+    /**
+     * A consistent bar of round r has open = low = r, start = r minutes and high = close.
+     * Readers race with the writer reopening and updating the bar and with resizes of the table.
+     */
+    @Test
+    public void shouldNeverReadTornBars() throws InterruptedException {
+        var table = new CurrentBarTable(16);
+        table.open(table.slot(1, OhlcPeriod.M1), 0, 0);
+        var running = new AtomicBoolean(true);
+        var reads = new AtomicLong();
+        var torn = new AtomicLong();
+        var writer = new Thread(() -> {
+            long round = 0;
+            while (running.get()) {
+                table.open(table.slot(1, OhlcPeriod.M1), round * OhlcPeriod.M1.getMillis(), round);
+                for (int k = 1; k <= 10; k++) {
+                    table.update(table.slot(1, OhlcPeriod.M1), round + k * 0.1);
+                }
+                if (round % 16 == 0) {
+                    table.slot(round + 2, OhlcPeriod.M1);
+                }
+                round++;
+            }
+        });
+        var readers = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            readers.add(new Thread(() -> {
+                while (running.get()) {
+                    var bar = table.getCurrent(1, OhlcPeriod.M1);
+                    double round = bar.getStartPeriod() / OhlcPeriod.M1.getMillis();
+                    if (bar.getOpenPrice() != round || bar.getLowPrice() != round
+                            || bar.getHighPrice() != bar.getClosePrice() || bar.getClosePrice() - round > 1) {
+                        torn.incrementAndGet();
+                    }
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        writer.start();
+        readers.forEach(Thread::start);
+        Thread.sleep(500);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assertions.assertTrue(reads.get() > 0);
+        Assertions.assertEquals(0, torn.get(), "Torn bars in " + reads.get() + " reads");
+    }
+
+    /**
+     * Prices only grow, so a consistent rolled up bar has open = low and high = close, and its close is at least
+     * the last price written before the read. A finest bar missing from the merged H1 bar would show as a lower close.
+     */
+    @Test
+    public void shouldNeverMissRolledUpBar() throws InterruptedException {
+        var table = new CurrentBarTable(16);
+        var pending = new CurrentBarTable(16);
+        table.open(table.slot(1, OhlcPeriod.M1), 0, 0);
+        var running = new AtomicBoolean(true);
+        var reads = new AtomicLong();
+        var broken = new AtomicLong();
+        var written = new AtomicLong();
+        var writer = new Thread(() -> {
+            double price = 0;
+            long minute = 0;
+            while (running.get()) {
+                for (int k = 0; k < 10; k++) {
+                    table.update(table.slot(1, OhlcPeriod.M1), ++price);
+                    written.set((long) price);
+                }
+                // closed like the service does: rolled up first, then the finest slot is closed
+                int slot = table.slot(1, OhlcPeriod.M1);
+                var closed = table.toOhlc(slot);
+                int hourSlot = table.slot(1, OhlcPeriod.H1);
+                if (OhlcPeriod.H1.contains(table.getStartPeriod(hourSlot), closed.getStartPeriod())) {
+                    table.merge(hourSlot, closed.getHighPrice(), closed.getLowPrice(), closed.getClosePrice());
+                } else {
+                    table.open(hourSlot, OhlcPeriod.H1.getStartPeriod(closed.getStartPeriod()), closed.getOpenPrice(),
+                            closed.getHighPrice(), closed.getLowPrice(), closed.getClosePrice());
+                }
+                table.close(slot);
+                table.open(slot, ++minute * OhlcPeriod.M1.getMillis(), ++price);
+                written.set((long) price);
+            }
+        });
+        var readers = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            readers.add(new Thread(() -> {
+                while (running.get()) {
+                    long before = written.get();
+                    var bar = table.getCurrent(1, OhlcPeriod.H1, OhlcPeriod.M1, pending);
+                    if (bar == null || bar.getOpenPrice() != bar.getLowPrice() || bar.getHighPrice() != bar.getClosePrice()
+                            || bar.getClosePrice() < before) {
+                        broken.incrementAndGet();
+                    }
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        writer.start();
+        readers.forEach(Thread::start);
+        Thread.sleep(500);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assertions.assertTrue(reads.get() > 0);
+        Assertions.assertEquals(0, broken.get(), "Inconsistent rolled up bars in " + reads.get() + " reads");
+    }
+
+    private void fill(CurrentBarTable table) {
+        for (int i = 0; i < INSTRUMENTS; i++) {
+            for (OhlcPeriod p : PERIODS) {
+                table.open(table.slot(i, p), 0, i);
+            }
+        }
+    }
+
+    private void update(CurrentBarTable table, int round) {
+        for (int i = 0; i < INSTRUMENTS; i++) {
+            for (OhlcPeriod p : PERIODS) {
+                table.update(table.slot(i, p), i + round);
+            }
+        }
+    }
+}
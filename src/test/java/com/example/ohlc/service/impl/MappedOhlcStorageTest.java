@@ -0,0 +1,199 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+public class MappedOhlcStorageTest {
+    @TempDir
+    Path directory;
+    private MappedOhlcStorage ohlcStorage;
+
+    @BeforeEach
+    public void init() {
+        ohlcStorage = createStorage();
+    }
+
+    @AfterEach
+    public void destroy() {
+        ohlcStorage.stop();
+    }
+
+    @Test
+    public void shouldReadRangeNewestFirst() {
+        for (int i = 0; i < 1000; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.store(createOhlc(2, 0, 1));
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1,
+                100 * OhlcPeriod.M1.getMillis(), 600 * OhlcPeriod.M1.getMillis(), 300);
+        Assertions.assertEquals(300, result.size());
+        Assertions.assertEquals(createOhlc(1, 599, 599), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 300, 300), result.get(299));
+        Assertions.assertEquals(1000, ohlcStorage.getHistorical(1, OhlcPeriod.M1).size());
+        Assertions.assertEquals(1, ohlcStorage.getHistorical(2, OhlcPeriod.M1).size());
+        Assertions.assertTrue(ohlcStorage.getHistorical(1, OhlcPeriod.H1).isEmpty());
+    }
+
+    @Test
+    public void shouldVisitBarsInChunks() {
+        for (int i = 0; i < 3000; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+
+        var visited = new ArrayList<Ohlc>();
+        ohlcStorage.forEachHistorical(1, OhlcPeriod.M1, 100 * OhlcPeriod.M1.getMillis(), 2900 * OhlcPeriod.M1.getMillis(), 2500,
+                (start, open, high, low, close) -> visited.add(Ohlc.builder().instrumentId(1).period(OhlcPeriod.M1)
+                        .startPeriod(start).openPrice(open).highPrice(high).lowPrice(low).closePrice(close).build()));
+        Assertions.assertEquals(2500, visited.size());
+        Assertions.assertEquals(ohlcStorage.getHistorical(1, OhlcPeriod.M1,
+                100 * OhlcPeriod.M1.getMillis(), 2900 * OhlcPeriod.M1.getMillis(), 2500), visited);
+    }
+
+    @Test
+    public void shouldRejectLimitBelowOne() {
+        ohlcStorage.store(createOhlc(1, 0, 0));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> ohlcStorage.forEachHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, -1, (start, open, high, low, close) -> { }));
+    }
+
+    @Test
+    public void shouldReplaceAndInsertOutOfOrderBars() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.store(createOhlc(1, 2, 12));
+        ohlcStorage.store(createOhlc(1, 1, 11));
+        ohlcStorage.store(createOhlc(1, 2, 22));
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(3, result.size());
+        Assertions.assertEquals(createOhlc(1, 2, 22), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 1, 11), result.get(1));
+        Assertions.assertEquals(createOhlc(1, 0, 10), result.get(2));
+    }
+
+    @Test
+    public void shouldReplaceRangeFollowedByNewerBars() {
+        for (int minute = 0; minute < 300; minute++) {
+            ohlcStorage.store(createOhlc(1, minute, minute));
+        }
+        var bars = new ArrayList<Ohlc>();
+        for (int minute = 199; minute >= 100; minute -= 2) {
+            bars.add(createOhlc(1, minute, -minute));
+        }
+        ohlcStorage.replace(1, OhlcPeriod.M1, 100 * OhlcPeriod.M1.getMillis(), 200 * OhlcPeriod.M1.getMillis(), bars);
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(250, result.size());
+        Assertions.assertEquals(createOhlc(1, 299, 299), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 200, 200), result.get(99));
+        Assertions.assertEquals(createOhlc(1, 199, -199), result.get(100));
+        Assertions.assertEquals(createOhlc(1, 101, -101), result.get(149));
+        Assertions.assertEquals(createOhlc(1, 99, 99), result.get(150));
+        Assertions.assertFalse(Files.exists(directory.resolve("1-M1.bars.grown")));
+    }
+
+    @Test
+    public void shouldAmendStoredBar() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, 0, 120));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, 0, 50));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, OhlcPeriod.M1.getMillis(), 7));
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(2, result.size());
+        Assertions.assertEquals(Ohlc.first(1, OhlcPeriod.M1, OhlcPeriod.M1.getMillis(), 7), result.get(0));
+        var amended = createOhlc(1, 0, 10);
+        amended.setHighPrice(120);
+        Assertions.assertEquals(amended, result.get(1));
+    }
+
+    @Test
+    public void shouldReadBarsAfterRestart() {
+        for (int i = 0; i < 300; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.stop();
+        ohlcStorage = createStorage();
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(300, result.size());
+        Assertions.assertEquals(createOhlc(1, 299, 299), result.get(0));
+        ohlcStorage.store(createOhlc(1, 300, 300));
+        Assertions.assertEquals(301, ohlcStorage.getHistorical(1, OhlcPeriod.M1).size());
+    }
+
+    @Test
+    public void shouldReopenFilesClosedByLimit() {
+        for (int minute = 0; minute < 300; minute++) {
+            for (long instrumentId = 1; instrumentId <= 5; instrumentId++) {
+                ohlcStorage.store(createOhlc(instrumentId, minute, instrumentId * 1000 + minute));
+            }
+            ohlcStorage.force();
+        }
+        for (long instrumentId = 1; instrumentId <= 5; instrumentId++) {
+            var result = ohlcStorage.getHistorical(instrumentId, OhlcPeriod.M1);
+            Assertions.assertEquals(300, result.size());
+            Assertions.assertEquals(createOhlc(instrumentId, 299, instrumentId * 1000 + 299), result.get(0));
+            Assertions.assertEquals(createOhlc(instrumentId, 0, instrumentId * 1000), result.get(299));
+        }
+    }
+
+    @Test
+    public void shouldTakeBackEvictedFileBeforeItIsClosed() {
+        for (long instrumentId = 1; instrumentId <= 3; instrumentId++) {
+            ohlcStorage.store(createOhlc(instrumentId, 0, instrumentId));
+        }
+        ohlcStorage.store(createOhlc(1, 1, 11));
+        ohlcStorage.force();
+        ohlcStorage.store(createOhlc(1, 2, 12));
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(3, result.size());
+        Assertions.assertEquals(createOhlc(1, 2, 12), result.get(0));
+        Assertions.assertEquals(createOhlc(2, 0, 2), ohlcStorage.getHistorical(2, OhlcPeriod.M1).get(0));
+    }
+
+    @Test
+    public void shouldIgnoreFileLeftByCrashWhileGrowing() throws IOException {
+        for (int minute = 0; minute < 10; minute++) {
+            ohlcStorage.store(createOhlc(1, minute, minute));
+        }
+        ohlcStorage.stop();
+        Files.write(directory.resolve("1-M1.bars.grown"), new byte[100]);
+        ohlcStorage = createStorage();
+
+        Assertions.assertEquals(10, ohlcStorage.getHistorical(1, OhlcPeriod.M1).size());
+        Assertions.assertFalse(Files.exists(directory.resolve("1-M1.bars.grown")));
+    }
+
+    private MappedOhlcStorage createStorage() {
+        var storage = new MappedOhlcStorage();
+        ReflectionTestUtils.setField(storage, "directory", directory.toString());
+        ReflectionTestUtils.setField(storage, "maxOpenFiles", 2);
+        storage.start();
+        return storage;
+    }
+
+    private Ohlc createOhlc(long instrumentId, int minute, double closePrice) {
+        return Ohlc.builder()
+                .instrumentId(instrumentId)
+                .period(OhlcPeriod.M1)
+                .startPeriod(minute * OhlcPeriod.M1.getMillis())
+                .openPrice(1)
+                .highPrice(100)
+                .lowPrice(0.5)
+                .closePrice(closePrice)
+                .build();
+    }
+}
@@ -1,32 +1,42 @@
 package com.example.ohlc.service.impl;
 
+import com.example.ohlc.concurrent.QuoteShardExecutor;
+import com.example.ohlc.concurrent.TaskLanes;
 import com.example.ohlc.dto.OhlcPeriod;
 import com.example.ohlc.dto.Quote;
 import com.example.ohlc.entity.Ohlc;
 import com.example.ohlc.service.OhlcStorage;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
-import org.mockito.stubbing.Answer;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
 import uk.co.jemos.podam.api.PodamFactory;
 import uk.co.jemos.podam.api.PodamFactoryImpl;
 
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.function.Supplier;
 
 import static org.mockito.ArgumentMatchers.*;
-import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -34,9 +44,8 @@ import static org.mockito.Mockito.when;
 public class OhlcServiceTest {
     @Mock
     private OhlcStorage ohlcStorage;
-    @Mock
-    private ThreadPoolTaskExecutor threadPoolTaskExecutor;
-    @InjectMocks
+    QuoteShardExecutor quoteShardExecutor;
+    TestClock clock;
     OhlcServiceImpl ohlcService;
     @Captor
     ArgumentCaptor<Ohlc> ohlcCaptor;
@@ -45,11 +54,17 @@ public class OhlcServiceTest {
 
     @BeforeEach
     public void init() {
-        doAnswer((Answer<Void>) invocation -> {
-            Runnable task = invocation.getArgument(0);
-            task.run();
-            return null;
-        }).when(threadPoolTaskExecutor).execute(any());
+        quoteShardExecutor = new QuoteShardExecutor(2, 1024);
+        clock = new TestClock(now.toInstant(ZoneOffset.UTC).toEpochMilli());
+        ohlcService = new OhlcServiceImpl(ohlcStorage, quoteShardExecutor, clock,
+                new RecentBarCache(16, 100, 60_000, clock), new TaskLanes());
+        ReflectionTestUtils.setField(ohlcService, "periods", new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1});
+        ohlcService.start();
+    }
+
+    @AfterEach
+    public void destroy() {
+        quoteShardExecutor.shutdown();
     }
 
     @Nested
@@ -59,7 +74,7 @@ public class OhlcServiceTest {
         @BeforeEach
         public void init() {
             long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
-            getQuoteList(nowMilli).forEach(q -> ohlcService.onQuote(q));
+            sendQuotes(getQuoteList(nowMilli));
         }
 
         @Test
@@ -93,7 +108,7 @@ public class OhlcServiceTest {
             Mockito.verify(ohlcStorage, Mockito.times(0)).store(any());
             var result = ohlcService.getCurrent(1, period);
             checkOhlc(expectedOhlc, result);
-            ohlcService.onQuote(quoteNextPeriod);
+            sendQuotes(List.of(quoteNextPeriod));
             Mockito.verify(ohlcStorage, Mockito.times(countOfInvokeStore)).store(ohlcCaptor.capture());
 
             var storedOhlc = ohlcCaptor.getValue();
@@ -150,6 +165,44 @@ public class OhlcServiceTest {
             checkHistoricalData(historicalDayOhlcList, OhlcPeriod.D1, 4);
         }
 
+        @Test
+        public void shouldReturnNextCursorOfFullPage() {
+            var page = getOhlcList(1, OhlcPeriod.M1, 3);
+            when(ohlcStorage.getHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 3)).thenReturn(page);
+            var result = ohlcService.getHistoricalPage(1, OhlcPeriod.M1, Long.MAX_VALUE, 3);
+            Assertions.assertEquals(page, result.getBars());
+            Assertions.assertEquals(page.get(2).getStartPeriod(), result.getNextCursor());
+        }
+
+        @Test
+        public void shouldReturnNoCursorOfLastPage() {
+            when(ohlcStorage.getHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, 1000, 3))
+                    .thenReturn(getOhlcList(1, OhlcPeriod.M1, 2));
+            var result = ohlcService.getHistoricalPage(1, OhlcPeriod.M1, 1000, 3);
+            Assertions.assertEquals(2, result.getBars().size());
+            Assertions.assertNull(result.getNextCursor());
+        }
+
+        @Test
+        public void shouldRejectLimitBelowOne() {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> ohlcService.getHistoricalPage(1, OhlcPeriod.M1, Long.MAX_VALUE, 0));
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> ohlcService.getHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, -1));
+            Mockito.verify(ohlcStorage, Mockito.never()).getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt());
+        }
+
+        @Test
+        public void shouldGetRecentClosedBarsWithoutStorage() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            long start = OhlcPeriod.M1.getStartPeriod(nowMilli);
+            sendQuotes(List.of(new QuoteTest(1, 10, start), new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis())));
+            var result = ohlcService.getHistorical(1, OhlcPeriod.M1, start, Long.MAX_VALUE, 10);
+            Assertions.assertEquals(1, result.size());
+            Assertions.assertEquals(start, result.get(0).getStartPeriod());
+            Assertions.assertEquals(10, result.get(0).getClosePrice());
+            Mockito.verify(ohlcStorage, Mockito.never()).getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt());
+        }
+
         private void checkHistoricalData(List<Ohlc> expectedData, OhlcPeriod p, int expectedCount) {
             when(ohlcStorage.getHistorical(anyLong(), eq(p))).thenReturn(expectedData);
             var result = ohlcService.getHistorical(1, p);
@@ -179,7 +232,7 @@ public class OhlcServiceTest {
             int expectedCurrentSize = 1;
             when(ohlcStorage.getHistorical(anyLong(), any())).thenReturn(new ArrayList<>());
             var quote = new QuoteTest(1, 10.32, now.toInstant(ZoneOffset.UTC).toEpochMilli());
-            ohlcService.onQuote(quote);
+            sendQuotes(List.of(quote));
             var result = ohlcService.getHistoricalAndCurrent(1, OhlcPeriod.D1);
             Assertions.assertNotNull(result);
             Assertions.assertFalse(result.isEmpty());
@@ -192,11 +245,48 @@ public class OhlcServiceTest {
             int expectedHistoricalSize = 4;
             when(ohlcStorage.getHistorical(anyLong(), any())).thenReturn(getOhlcList(1, OhlcPeriod.D1, expectedHistoricalSize));
             var quote = new QuoteTest(1, 10.32, now.toInstant(ZoneOffset.UTC).toEpochMilli());
-            ohlcService.onQuote(quote);
+            sendQuotes(List.of(quote));
             var result = ohlcService.getHistoricalAndCurrent(1, OhlcPeriod.D1);
             Assertions.assertNotNull(result);
             Assertions.assertFalse(result.isEmpty());
             Assertions.assertEquals(expectedHistoricalSize + expectedCurrentSize, result.size());
+            Assertions.assertEquals(ohlcService.getCurrent(1, OhlcPeriod.D1), result.get(result.size() - 1));
+        }
+
+        @Test
+        public void shouldGetCurrentOnlyInRange() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            long start = OhlcPeriod.D1.getStartPeriod(nowMilli);
+            when(ohlcStorage.getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt())).thenReturn(List.of());
+            sendQuotes(List.of(new QuoteTest(1, 10.32, nowMilli)));
+            Assertions.assertEquals(1, ohlcService.getHistoricalAndCurrent(1, OhlcPeriod.D1, start, start + 1, 10).size());
+            Assertions.assertTrue(ohlcService.getHistoricalAndCurrent(1, OhlcPeriod.D1, Long.MIN_VALUE, start, 10).isEmpty());
+        }
+
+        @Test
+        public void shouldKeepLimitWithCurrent() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            var stored = getOhlcList(1, OhlcPeriod.D1, 3);
+            when(ohlcStorage.getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt())).thenReturn(stored);
+            sendQuotes(List.of(new QuoteTest(1, 10.32, nowMilli)));
+            var result = ohlcService.getHistoricalAndCurrent(1, OhlcPeriod.D1, Long.MIN_VALUE, Long.MAX_VALUE, 3);
+            Assertions.assertEquals(List.of(ohlcService.getCurrent(1, OhlcPeriod.D1), stored.get(0), stored.get(1)), result);
+        }
+
+        @Test
+        public void shouldGetWatchlistWithOneStorageRead() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            when(ohlcStorage.getHistorical(anySet(), eq(OhlcPeriod.D1), anyLong(), anyLong(), anyInt()))
+                    .thenReturn(Map.of(1L, getOhlcList(1, OhlcPeriod.D1, 2), 2L, List.of()));
+            sendQuotes(List.of(new QuoteTest(2, 10.32, nowMilli)));
+            var result = ohlcService.getHistoricalAndCurrent(new LinkedHashSet<>(List.of(3L, 1L, 2L)), OhlcPeriod.D1,
+                    Long.MIN_VALUE, Long.MAX_VALUE, 10);
+            Assertions.assertEquals(List.of(3L, 1L, 2L), new ArrayList<>(result.keySet()));
+            Assertions.assertTrue(result.get(3L).isEmpty());
+            Assertions.assertEquals(2, result.get(1L).size());
+            Assertions.assertEquals(1, result.get(2L).size());
+            Assertions.assertEquals(10.32, result.get(2L).get(0).getClosePrice());
+            Mockito.verify(ohlcStorage, Mockito.times(1)).getHistorical(anySet(), any(), anyLong(), anyLong(), anyInt());
         }
 
         @Test
@@ -245,10 +335,43 @@ public class OhlcServiceTest {
             });
         }
 
+        @Test
+        public void shouldCountLiveAndClosedBars() {
+            long time = now.toInstant(ZoneOffset.UTC).minusMillis(OhlcPeriod.D1.getMillis()).toEpochMilli();
+            clock.setMillis(time);
+            sendQuotes(getQuoteList(time));
+            for (OhlcPeriod p : List.of(OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1)) {
+                Assertions.assertEquals(4, countLiveBars(p));
+            }
+            clock.setMillis(now.toInstant(ZoneOffset.UTC).toEpochMilli());
+            ohlcService.closeQuotePeriod().join();
+            long closed = 0;
+            for (int i = 0; i < quoteShardExecutor.getShardCount(); i++) {
+                closed += ohlcService.getShardStats(i).getBarsClosed();
+                Assertions.assertEquals(1, ohlcService.getShardStats(i).getCloseCount());
+                Assertions.assertEquals(0, ohlcService.getShardStats(i).getLagSamples());
+            }
+            Assertions.assertEquals(12, closed);
+            for (OhlcPeriod p : List.of(OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1)) {
+                Assertions.assertEquals(0, countLiveBars(p));
+            }
+            Assertions.assertEquals(12, quoteShardExecutor.getHandledCount(0) + quoteShardExecutor.getHandledCount(1));
+        }
+
+        private long countLiveBars(OhlcPeriod period) {
+            long count = 0;
+            for (int i = 0; i < quoteShardExecutor.getShardCount(); i++) {
+                count += ohlcService.getShardStats(i).getLiveBars(period);
+            }
+            return count;
+        }
+
         private void shouldClosePeriod(OhlcPeriod period, int countOfInvokeStore, Supplier<Void> additionalCheck) {
-            long time = now.toInstant(ZoneOffset.UTC).minus(1, period.getChronoUnit()).toEpochMilli();
-            getQuoteList(time).forEach(q -> ohlcService.onQuote(q));
-            ohlcService.closeQuotePeriod();
+            long time = now.toInstant(ZoneOffset.UTC).minusMillis(period.getMillis()).toEpochMilli();
+            clock.setMillis(time);
+            sendQuotes(getQuoteList(time));
+            clock.setMillis(now.toInstant(ZoneOffset.UTC).toEpochMilli());
+            ohlcService.closeQuotePeriod().join();
             Mockito.verify(ohlcStorage, Mockito.times(countOfInvokeStore)).store(any());
             var result = ohlcService.getCurrent(1, period);
             Assertions.assertNull(result);
@@ -256,6 +379,401 @@ public class OhlcServiceTest {
         }
     }
 
+    @Nested
+    @DisplayName("BulkQuotes")
+    class BulkQuotesTest {
+
+        @Test
+        public void shouldAggregateBatchesLikeSingleQuotes() {
+            var bulkStorage = Mockito.mock(OhlcStorage.class);
+            var bulkShardExecutor = new QuoteShardExecutor(3, 1024);
+            var bulkService = new OhlcServiceImpl(bulkStorage, bulkShardExecutor, clock,
+                    new RecentBarCache(16, 100, 60_000, clock), new TaskLanes());
+            ReflectionTestUtils.setField(bulkService, "periods", new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1});
+            bulkService.start();
+            try {
+                var random = new Random(11);
+                long time = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+                for (int frame = 0; frame < 20; frame++) {
+                    List<Quote> quotes = new ArrayList<>();
+                    long[] instrumentIds = new long[100];
+                    double[] prices = new double[100];
+                    long[] timestamps = new long[100];
+                    for (int i = 0; i < 100; i++) {
+                        instrumentIds[i] = random.nextInt(10);
+                        prices[i] = 100 + random.nextInt(1000) / 100.0;
+                        timestamps[i] = time + frame * 1_000 + i;
+                        quotes.add(new QuoteTest(instrumentIds[i], prices[i], timestamps[i]));
+                    }
+                    quotes.forEach(ohlcService::onQuote);
+                    if (frame % 2 == 0) {
+                        bulkService.onQuotes(quotes);
+                    } else {
+                        bulkService.onQuotes(instrumentIds, prices, timestamps, 100);
+                    }
+                }
+                quoteShardExecutor.awaitProcessed();
+                bulkShardExecutor.awaitProcessed();
+                for (long instrumentId = 0; instrumentId < 10; instrumentId++) {
+                    for (OhlcPeriod p : new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1}) {
+                        Assertions.assertEquals(ohlcService.getCurrent(instrumentId, p), bulkService.getCurrent(instrumentId, p));
+                    }
+                }
+            } finally {
+                bulkShardExecutor.shutdown();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("CheckpointOhlc")
+    class CheckpointOhlcTest {
+        @TempDir
+        Path checkpointDirectory;
+
+        @Test
+        public void shouldRestoreFromCheckpointAndJournal() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            var first = startCheckpointed();
+            sendQuotes(first, List.of(new QuoteTest(1, 10, nowMilli), new QuoteTest(2, 20, nowMilli)));
+            first.checkpoint();
+            sendQuotes(first, List.of(new QuoteTest(1, 12, nowMilli), new QuoteTest(3, 30, nowMilli)));
+            var expected = getCurrentBars(first);
+            quoteShardExecutor.shutdown();
+
+            var restored = startCheckpointed();
+            Assertions.assertEquals(expected, getCurrentBars(restored));
+            Assertions.assertEquals(12, restored.getCurrent(1, OhlcPeriod.M1).getHighPrice());
+            Mockito.verify(ohlcStorage, Mockito.never()).store(any());
+        }
+
+        @Test
+        public void shouldRestoreFromCheckpointOnStop() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            var first = startCheckpointed();
+            sendQuotes(first, List.of(new QuoteTest(1, 10, nowMilli), new QuoteTest(1, 8, nowMilli)));
+            var expected = getCurrentBars(first);
+            first.stop();
+            quoteShardExecutor.shutdown();
+
+            var restored = startCheckpointed();
+            Assertions.assertEquals(expected, getCurrentBars(restored));
+        }
+
+        @Test
+        public void shouldCheckpointQueuedQuotesOnStop() {
+            long nowMilli = now.toInstant(ZoneOffset.UTC).toEpochMilli();
+            var first = startCheckpointed();
+            for (int i = 1; i <= 1000; i++) {
+                first.onQuote(new QuoteTest(i % 3 + 1, i, nowMilli));
+            }
+            first.stop();
+
+            var restored = startCheckpointed();
+            Assertions.assertEquals(1000, restored.getCurrent(2, OhlcPeriod.M1).getHighPrice());
+            Assertions.assertEquals(999, restored.getCurrent(1, OhlcPeriod.D1).getClosePrice());
+        }
+
+        private OhlcServiceImpl startCheckpointed() {
+            quoteShardExecutor.shutdown();
+            quoteShardExecutor = new QuoteShardExecutor(2, 1024);
+            var service = new OhlcServiceImpl(ohlcStorage, quoteShardExecutor, clock,
+                    new RecentBarCache(16, 100, 60_000, clock), new TaskLanes());
+            ReflectionTestUtils.setField(service, "periods", new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1});
+            ReflectionTestUtils.setField(service, "checkpointEnabled", true);
+            ReflectionTestUtils.setField(service, "checkpointDirectory", checkpointDirectory.toString());
+            service.start();
+            return service;
+        }
+
+        private void sendQuotes(OhlcServiceImpl service, List<Quote> quotes) {
+            quotes.forEach(service::onQuote);
+            quoteShardExecutor.awaitProcessed();
+        }
+
+        private List<Ohlc> getCurrentBars(OhlcServiceImpl service) {
+            List<Ohlc> result = new ArrayList<>();
+            for (long instrumentId = 1; instrumentId <= 3; instrumentId++) {
+                for (OhlcPeriod p : new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1}) {
+                    result.add(service.getCurrent(instrumentId, p));
+                }
+            }
+            return result;
+        }
+    }
+
+    @Nested
+    @DisplayName("RollupOhlc")
+    class RollupOhlcTest {
+
+        @Test
+        public void shouldAggregateSameBarsAsPerQuoteUpdates() {
+            var rollupStorage = Mockito.mock(OhlcStorage.class);
+            var rollupShardExecutor = new QuoteShardExecutor(2, 1024);
+            var rollupService = new OhlcServiceImpl(rollupStorage, rollupShardExecutor, clock,
+                    new RecentBarCache(16, 100, 60_000, clock), new TaskLanes());
+            ReflectionTestUtils.setField(rollupService, "periods", new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1});
+            ReflectionTestUtils.setField(rollupService, "rollupEnabled", true);
+            rollupService.start();
+            try {
+                var random = new Random(7);
+                long time = LocalDateTime.of(2022, 3, 1, 22, 30).toInstant(ZoneOffset.UTC).toEpochMilli();
+                // bars are closed by the quotes only
+                clock.setMillis(time);
+                for (int i = 0; i < 3000; i++) {
+                    time += random.nextInt(10_000);
+                    var quote = new QuoteTest(random.nextInt(5), 100 + random.nextInt(1000) / 100.0, time);
+                    ohlcService.onQuote(quote);
+                    rollupService.onQuote(quote);
+                    if (i % 100 == 0) {
+                        quoteShardExecutor.awaitProcessed();
+                        rollupShardExecutor.awaitProcessed();
+                        for (long instrumentId = 0; instrumentId < 5; instrumentId++) {
+                            for (OhlcPeriod p : OhlcPeriod.values()) {
+                                Assertions.assertEquals(ohlcService.getCurrent(instrumentId, p), rollupService.getCurrent(instrumentId, p));
+                            }
+                        }
+                    }
+                }
+                quoteShardExecutor.awaitProcessed();
+                rollupShardExecutor.awaitProcessed();
+                Mockito.verify(ohlcStorage, Mockito.atLeastOnce()).store(ohlcCaptor.capture());
+                var expected = sorted(ohlcCaptor.getAllValues());
+                var rollupCaptor = ArgumentCaptor.forClass(Ohlc.class);
+                Mockito.verify(rollupStorage, Mockito.atLeastOnce()).store(rollupCaptor.capture());
+                Assertions.assertEquals(expected, sorted(rollupCaptor.getAllValues()));
+                Assertions.assertTrue(expected.stream().anyMatch(o -> o.getPeriod() == OhlcPeriod.D1));
+            } finally {
+                rollupShardExecutor.shutdown();
+            }
+        }
+
+        private List<Ohlc> sorted(List<Ohlc> bars) {
+            var result = new ArrayList<>(bars);
+            result.sort(Comparator.comparing(Ohlc::getPeriod)
+                    .thenComparingLong(Ohlc::getInstrumentId)
+                    .thenComparingLong(Ohlc::getStartPeriod));
+            return result;
+        }
+    }
+
+    @Nested
+    @DisplayName("ReorderWindow")
+    class ReorderWindowTest {
+        final long start = LocalDateTime.of(2022, 3, 1, 10, 30).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        @Test
+        public void shouldMergeLateQuoteIntoPendingBar() {
+            var storage = Mockito.mock(OhlcStorage.class);
+            var executor = new QuoteShardExecutor(2, 1024);
+            var service = reorderService(storage, executor, false);
+            try {
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 100);
+                send(service, executor, new QuoteTest(1, 10, start + 1000), new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis() + 100),
+                        new QuoteTest(1, 15, start + 500));
+                Assertions.assertEquals(11, service.getCurrent(1, OhlcPeriod.M1).getOpenPrice());
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 1999);
+                service.closeQuotePeriod().join();
+                Mockito.verify(storage, Mockito.never()).store(any());
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 2000);
+                service.closeQuotePeriod().join();
+                var captor = ArgumentCaptor.forClass(Ohlc.class);
+                Mockito.verify(storage, Mockito.times(1)).store(captor.capture());
+                var stored = captor.getValue();
+                Assertions.assertEquals(start, stored.getStartPeriod());
+                Assertions.assertEquals(15, stored.getOpenPrice());
+                Assertions.assertEquals(15, stored.getHighPrice());
+                Assertions.assertEquals(10, stored.getClosePrice());
+                Assertions.assertEquals(1, service.getShardStats(executor.shardOf(1)).getLateQuotes());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void shouldReadBarPendingInWindow() {
+            var storage = Mockito.mock(OhlcStorage.class);
+            var executor = new QuoteShardExecutor(2, 1024);
+            var service = reorderService(storage, executor, false);
+            try {
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 100);
+                send(service, executor, new QuoteTest(1, 10, start + 1000), new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis() + 100));
+                var current = service.getCurrent(1, OhlcPeriod.M1);
+                var bars = service.getHistoricalAndCurrent(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 10);
+                Assertions.assertEquals(2, bars.size());
+                Assertions.assertEquals(current, bars.get(0));
+                Assertions.assertEquals(start, bars.get(1).getStartPeriod());
+                Assertions.assertEquals(10, bars.get(1).getClosePrice());
+                Assertions.assertEquals(List.of(current), service.getHistoricalAndCurrent(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 1));
+                var visited = new ArrayList<Long>();
+                service.forEachHistoricalAndCurrent(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 10,
+                        (startPeriod, open, high, low, close) -> visited.add(startPeriod));
+                Assertions.assertEquals(List.of(start + OhlcPeriod.M1.getMillis(), start), visited);
+                Mockito.verify(storage, Mockito.never()).store(any());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void shouldAmendStoredBarByQuoteLaterThanWindow() {
+            var storage = Mockito.mock(OhlcStorage.class);
+            var executor = new QuoteShardExecutor(2, 1024);
+            var service = reorderService(storage, executor, false);
+            try {
+                clock.setMillis(start + 1000);
+                send(service, executor, new QuoteTest(1, 10, start + 1000), new QuoteTest(1, 9, start + 2000));
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 5000);
+                service.closeQuotePeriod().join();
+                send(service, executor, new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis() + 5000),
+                        new QuoteTest(1, 9.5, start + 3000), new QuoteTest(1, 12, start + 4000));
+                var captor = ArgumentCaptor.forClass(Ohlc.class);
+                Mockito.verify(storage, Mockito.times(2)).store(captor.capture());
+                var amended = captor.getValue();
+                Assertions.assertEquals(start, amended.getStartPeriod());
+                Assertions.assertEquals(10, amended.getOpenPrice());
+                Assertions.assertEquals(12, amended.getHighPrice());
+                Assertions.assertEquals(9, amended.getLowPrice());
+                Assertions.assertEquals(9, amended.getClosePrice());
+                Assertions.assertEquals(1, service.getShardStats(executor.shardOf(1)).getAmendedBars());
+                Assertions.assertEquals(11, service.getCurrent(1, OhlcPeriod.M1).getClosePrice());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void shouldAmendStoredBarByLateQuoteWithoutWindow() {
+            var storage = Mockito.mock(OhlcStorage.class);
+            var executor = new QuoteShardExecutor(2, 1024);
+            var service = reorderService(storage, executor, false, "");
+            try {
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 100);
+                send(service, executor, new QuoteTest(1, 10, start + 1000), new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis() + 100),
+                        new QuoteTest(1, 12, start + 500));
+                var captor = ArgumentCaptor.forClass(Ohlc.class);
+                Mockito.verify(storage, Mockito.times(2)).store(captor.capture());
+                var amended = captor.getValue();
+                Assertions.assertEquals(start, amended.getStartPeriod());
+                Assertions.assertEquals(10, amended.getOpenPrice());
+                Assertions.assertEquals(12, amended.getHighPrice());
+                Assertions.assertEquals(10, amended.getClosePrice());
+                Assertions.assertEquals(start + OhlcPeriod.M1.getMillis(), service.getCurrent(1, OhlcPeriod.M1).getStartPeriod());
+                Assertions.assertEquals(1, service.getShardStats(executor.shardOf(1)).getAmendedBars());
+                Assertions.assertEquals(0, service.getShardStats(executor.shardOf(1)).getLateQuotes());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void shouldAmendBarMissingFromCacheWithoutReadingIt() {
+            var storage = Mockito.mock(OhlcStorage.class);
+            var executor = new QuoteShardExecutor(2, 1024);
+            var service = reorderService(storage, executor, false);
+            try {
+                clock.setMillis(start + 1000);
+                send(service, executor, new QuoteTest(1, 10, start + 1000));
+                clock.setMillis(start + OhlcPeriod.M1.getMillis() + 5000);
+                service.closeQuotePeriod().join();
+                ((RecentBarCache) ReflectionTestUtils.getField(service, "recentBarCache")).clear();
+                send(service, executor, new QuoteTest(1, 11, start + OhlcPeriod.M1.getMillis() + 5000),
+                        new QuoteTest(1, 12, start + 4000));
+                var captor = ArgumentCaptor.forClass(Ohlc.class);
+                Mockito.verify(storage).amend(captor.capture());
+                Assertions.assertEquals(Ohlc.first(1, OhlcPeriod.M1, start, 12), captor.getValue());
+                Mockito.verify(storage, Mockito.never()).getHistorical(anyLong(), any(), anyLong(), anyLong(), anyInt());
+                Assertions.assertEquals(1, service.getShardStats(executor.shardOf(1)).getAmendedBars());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        public void shouldStoreBarsOfSortedQuotesOnce() {
+            var random = new Random(11);
+            List<Quote> quotes = new ArrayList<>();
+            long time = LocalDateTime.of(2022, 3, 1, 22, 30).toInstant(ZoneOffset.UTC).toEpochMilli();
+            for (int i = 0; i < 3000; i++) {
+                time += random.nextInt(5_000);
+                quotes.add(new QuoteTest(random.nextInt(5), 100 + random.nextInt(1000) / 100.0, time - random.nextInt(1500)));
+            }
+            var expected = expectedBars(quotes);
+            for (boolean rollup : new boolean[]{false, true}) {
+                var storage = Mockito.mock(OhlcStorage.class);
+                var executor = new QuoteShardExecutor(2, 1024);
+                var service = reorderService(storage, executor, rollup);
+                try {
+                    long arrival = quotes.get(0).getUtcTimestamp();
+                    for (Quote quote : quotes) {
+                        // arrival time keeps every quote within the window
+                        arrival = Math.max(arrival, quote.getUtcTimestamp());
+                        clock.setMillis(arrival);
+                        send(service, executor, quote);
+                    }
+                    clock.setMillis(arrival + OhlcPeriod.D1.getMillis() + 2000);
+                    service.closeQuotePeriod().join();
+                    var captor = ArgumentCaptor.forClass(Ohlc.class);
+                    Mockito.verify(storage, Mockito.atLeastOnce()).store(captor.capture());
+                    Assertions.assertEquals(expected, sorted(captor.getAllValues()), "rollup " + rollup);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        }
+
+        /** bars of the quotes in timestamp order, quotes with the same timestamp in arrival order */
+        private List<Ohlc> expectedBars(List<Quote> quotes) {
+            var ordered = new ArrayList<>(quotes);
+            ordered.sort(Comparator.comparingLong(Quote::getUtcTimestamp));
+            var bars = new LinkedHashMap<List<Long>, Ohlc>();
+            for (Quote quote : ordered) {
+                for (OhlcPeriod p : new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1}) {
+                    long startPeriod = p.getStartPeriod(quote.getUtcTimestamp());
+                    var bar = bars.get(List.of(quote.getInstrumentId(), (long) p.ordinal(), startPeriod));
+                    if (bar == null) {
+                        bars.put(List.of(quote.getInstrumentId(), (long) p.ordinal(), startPeriod),
+                                Ohlc.first(quote.getInstrumentId(), p, startPeriod, quote.getPrice()));
+                    } else {
+                        bar.setHighPrice(Math.max(bar.getHighPrice(), quote.getPrice()));
+                        bar.setLowPrice(Math.min(bar.getLowPrice(), quote.getPrice()));
+                        bar.setClosePrice(quote.getPrice());
+                    }
+                }
+            }
+            return sorted(bars.values());
+        }
+
+        private OhlcServiceImpl reorderService(OhlcStorage storage, QuoteShardExecutor executor, boolean rollup) {
+            return reorderService(storage, executor, rollup, "M1:2000,H1:2000,D1:2000");
+        }
+
+        private OhlcServiceImpl reorderService(OhlcStorage storage, QuoteShardExecutor executor, boolean rollup, String windows) {
+            var service = new OhlcServiceImpl(storage, executor, clock,
+                    new RecentBarCache(16, 100, 60_000, clock), new TaskLanes());
+            ReflectionTestUtils.setField(service, "periods", new OhlcPeriod[]{OhlcPeriod.M1, OhlcPeriod.H1, OhlcPeriod.D1});
+            ReflectionTestUtils.setField(service, "rollupEnabled", rollup);
+            ReflectionTestUtils.setField(service, "reorderWindows", windows);
+            service.start();
+            return service;
+        }
+
+        private void send(OhlcServiceImpl service, QuoteShardExecutor executor, Quote... quotes) {
+            for (Quote quote : quotes) {
+                service.onQuote(quote);
+            }
+            executor.awaitProcessed();
+        }
+
+        private List<Ohlc> sorted(Collection<Ohlc> bars) {
+            var result = new ArrayList<>(bars);
+            result.sort(Comparator.comparing(Ohlc::getPeriod)
+                    .thenComparingLong(Ohlc::getInstrumentId)
+                    .thenComparingLong(Ohlc::getStartPeriod));
+            return result;
+        }
+    }
+
     static class QuoteTest implements Quote {
 
         private final long instrumentId;
@@ -284,6 +802,43 @@ public class OhlcServiceTest {
         }
     }
 
+    static class TestClock extends Clock {
+        private volatile long millis;
+
+        TestClock(long millis) {
+            this.millis = millis;
+        }
+
+        void setMillis(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    private void sendQuotes(List<Quote> quotes) {
+        quotes.forEach(q -> ohlcService.onQuote(q));
+        quoteShardExecutor.awaitProcessed();
+    }
+
     private List<Quote> getQuoteList(long time) {
         return Arrays.asList(
                 new QuoteTest(1, 10.32, time),
@@ -301,10 +856,14 @@ public class OhlcServiceTest {
         );
     }
 
+    /** stored bars newest first, all older than the period of now */
     private List<Ohlc> getOhlcList(long instrumentId, OhlcPeriod p, int size) {
+        long startPeriod = p.getStartPeriod(now.toInstant(ZoneOffset.UTC).toEpochMilli());
         List<Ohlc> result = new ArrayList<>();
         for (int i = 0; i < size; i++) {
-            result.add(createTestOhlc(instrumentId, p));
+            var ohlc = createTestOhlc(instrumentId, p);
+            ohlc.setStartPeriod(startPeriod - (i + 1) * p.getMillis());
+            result.add(ohlc);
         }
         return result;
     }
@@ -0,0 +1,303 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.concurrent.TaskLanes;
+import com.example.ohlc.dao.OhlcDaoImpl;
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class OhlcStorageTest {
+    private EmbeddedDatabase database;
+    private TaskLanes taskLanes;
+    private OhlcDaoImpl ohlcDao;
+    private OhlcStorageImpl ohlcStorage;
+
+    @BeforeEach
+    public void init() {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("schema.sql")
+                .build();
+        taskLanes = new TaskLanes();
+        taskLanes.start();
+        ohlcDao = new OhlcDaoImpl(new JdbcTemplate(database));
+        var transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(database));
+        ohlcStorage = new OhlcStorageImpl(ohlcDao, taskLanes, transactionTemplate);
+        ReflectionTestUtils.setField(ohlcStorage, "queueCapacity", 100);
+        ReflectionTestUtils.setField(ohlcStorage, "batchSize", 10);
+        ReflectionTestUtils.setField(ohlcStorage, "retryAttempts", 2);
+        ReflectionTestUtils.setField(ohlcStorage, "readPageSize", 4);
+        ohlcStorage.start();
+    }
+
+    @AfterEach
+    public void destroy() {
+        taskLanes.shutdown();
+        database.shutdown();
+    }
+
+    @Test
+    public void shouldFlushFullBatches() throws InterruptedException {
+        for (int i = 0; i < 25; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        awaitBacklog(5);
+        Assertions.assertEquals(20, ohlcDao.getHistorical(1, OhlcPeriod.M1).size());
+
+        ohlcStorage.flushOnTime();
+        awaitBacklog(0);
+        var stored = ohlcDao.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(25, stored.size());
+        Assertions.assertEquals(createOhlc(1, 24, 24), stored.get(0));
+        Assertions.assertEquals(createOhlc(1, 0, 0), stored.get(24));
+        Assertions.assertTrue(ohlcDao.getHistorical(1, OhlcPeriod.H1).isEmpty());
+    }
+
+    @Test
+    public void shouldReadBarsWhichAreNotFlushed() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.store(createOhlc(1, 1, 11));
+        ohlcStorage.store(createOhlc(2, 1, 21));
+
+        Assertions.assertTrue(ohlcDao.getHistorical(1, OhlcPeriod.M1).isEmpty());
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(2, result.size());
+        Assertions.assertEquals(createOhlc(1, 1, 11), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 0, 10), result.get(1));
+        Assertions.assertEquals(3, ohlcStorage.getBacklog());
+    }
+
+    @Test
+    public void shouldReplaceBarWithSameStart() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.stop();
+        ohlcStorage.store(createOhlc(1, 0, 12));
+        ohlcStorage.stop();
+
+        var stored = ohlcDao.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(1, stored.size());
+        Assertions.assertEquals(12, stored.get(0).getClosePrice());
+        Assertions.assertEquals(0, ohlcStorage.getBacklog());
+    }
+
+    @Test
+    public void shouldReadLatestPendingBarUntilItIsWritten() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.store(createOhlc(1, 0, 12));
+        Assertions.assertEquals(List.of(createOhlc(1, 0, 12)), ohlcStorage.getHistorical(1, OhlcPeriod.M1));
+        ohlcStorage.stop();
+        ohlcStorage.store(createOhlc(1, 0, 14));
+        Assertions.assertEquals(List.of(createOhlc(1, 0, 14)),
+                ohlcStorage.getHistorical(Set.of(1L), OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 10).get(1L));
+        ohlcStorage.stop();
+
+        Assertions.assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(ohlcStorage, "notCommitted")).isEmpty());
+        Assertions.assertEquals(List.of(createOhlc(1, 0, 14)), ohlcStorage.getHistorical(1, OhlcPeriod.M1));
+    }
+
+    @Test
+    public void shouldStoreLatestOfSameBarInOneBatch() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.store(createOhlc(1, 1, 11));
+        ohlcStorage.store(createOhlc(1, 0, 12));
+        ohlcStorage.stop();
+
+        Assertions.assertEquals(List.of(createOhlc(1, 1, 11), createOhlc(1, 0, 12)), ohlcDao.getHistorical(1, OhlcPeriod.M1));
+    }
+
+    @Test
+    public void shouldUpsertWhenDriverGivesNoRowCounts() {
+        var dao = new OhlcDaoImpl(new JdbcTemplate(database) {
+            @Override
+            public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+                int[] updated = super.batchUpdate(sql, pss);
+                Arrays.fill(updated, Statement.SUCCESS_NO_INFO);
+                return updated;
+            }
+        });
+        dao.storeAll(List.of(createOhlc(1, 0, 10)));
+        dao.storeAll(List.of(createOhlc(1, 0, 12), createOhlc(1, 1, 11), createOhlc(1, 1, 13)));
+        dao.amendAll(List.of(Ohlc.first(1, OhlcPeriod.M1, 0, 120), Ohlc.first(1, OhlcPeriod.M1, 2 * OhlcPeriod.M1.getMillis(), 7)));
+
+        var amended = createOhlc(1, 0, 12);
+        amended.setHighPrice(120);
+        Assertions.assertEquals(List.of(Ohlc.first(1, OhlcPeriod.M1, 2 * OhlcPeriod.M1.getMillis(), 7), createOhlc(1, 1, 13), amended),
+                ohlcDao.getHistorical(1, OhlcPeriod.M1));
+    }
+
+    @Test
+    public void shouldAmendBarsInOrderWithStores() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, 0, 120));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, 0, 50));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, OhlcPeriod.M1.getMillis(), 7));
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, OhlcPeriod.M1.getMillis(), 9));
+        // amendments are not read before they are written
+        Assertions.assertEquals(List.of(createOhlc(1, 0, 10)), ohlcStorage.getHistorical(1, OhlcPeriod.M1));
+        ohlcStorage.stop();
+        ohlcStorage.amend(Ohlc.first(1, OhlcPeriod.M1, 0, 0.1));
+        ohlcStorage.stop();
+
+        var stored = ohlcDao.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(2, stored.size());
+        Assertions.assertEquals(Ohlc.builder().instrumentId(1).period(OhlcPeriod.M1).startPeriod(OhlcPeriod.M1.getMillis())
+                .openPrice(7).highPrice(9).lowPrice(7).closePrice(7).build(), stored.get(0));
+        var amended = createOhlc(1, 0, 10);
+        amended.setHighPrice(120);
+        amended.setLowPrice(0.1);
+        Assertions.assertEquals(amended, stored.get(1));
+    }
+
+    @Test
+    public void shouldDropOnlyRefusedBarsAfterRetries() {
+        ohlcStorage.store(createOhlc(1, 0, 10));
+        ohlcStorage.store(Ohlc.builder().instrumentId(1).startPeriod(1).build());
+        ohlcStorage.store(createOhlc(1, 2, 12));
+        ohlcStorage.stop();
+
+        Assertions.assertEquals(List.of(createOhlc(1, 2, 12), createOhlc(1, 0, 10)), ohlcDao.getHistorical(1, OhlcPeriod.M1));
+        Assertions.assertEquals(1, ohlcStorage.getDroppedBars());
+        Assertions.assertEquals(0, ohlcStorage.getBacklog());
+    }
+
+    @Test
+    public void shouldGetRangeNewestFirst() {
+        for (int i = 0; i < 20; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.stop();
+        ohlcStorage.store(createOhlc(1, 20, 20));
+        ohlcStorage.store(createOhlc(1, 9, 99));
+
+        var result = ohlcStorage.getHistorical(1, OhlcPeriod.M1,
+                5 * OhlcPeriod.M1.getMillis(), 21 * OhlcPeriod.M1.getMillis(), 12);
+        Assertions.assertEquals(12, result.size());
+        Assertions.assertEquals(createOhlc(1, 20, 20), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 9, 99), result.get(11));
+    }
+
+    @Test
+    public void shouldVisitSameBarsAsGetHistorical() {
+        for (int i = 0; i < 20; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.stop();
+        ohlcStorage.store(createOhlc(1, 20, 20));
+        ohlcStorage.store(createOhlc(1, 9, 99));
+        ohlcStorage.store(createOhlc(1, 3, 33));
+
+        // pages of 4 bars, the pending bars are merged across them
+        for (int limit : new int[]{4, 5, 8, 12, 100}) {
+            var visited = new ArrayList<Ohlc>();
+            ohlcStorage.forEachHistorical(1, OhlcPeriod.M1, 5 * OhlcPeriod.M1.getMillis(), 21 * OhlcPeriod.M1.getMillis(), limit,
+                    (start, open, high, low, close) -> visited.add(Ohlc.builder().instrumentId(1).period(OhlcPeriod.M1)
+                            .startPeriod(start).openPrice(open).highPrice(high).lowPrice(low).closePrice(close).build()));
+            Assertions.assertEquals(ohlcStorage.getHistorical(1, OhlcPeriod.M1,
+                    5 * OhlcPeriod.M1.getMillis(), 21 * OhlcPeriod.M1.getMillis(), limit), visited);
+        }
+    }
+
+    @Test
+    public void shouldGetWatchlistLikeSingleInstruments() {
+        for (int i = 0; i < 10; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+            ohlcStorage.store(createOhlc(2, i, 20 + i));
+        }
+        ohlcStorage.stop();
+        ohlcStorage.store(createOhlc(2, 10, 30));
+        ohlcStorage.store(createOhlc(3, 0, 40));
+
+        long from = 2 * OhlcPeriod.M1.getMillis();
+        long to = 11 * OhlcPeriod.M1.getMillis();
+        for (int limit : new int[]{3, Integer.MAX_VALUE}) {
+            var result = ohlcStorage.getHistorical(Set.of(1L, 2L, 3L, 4L), OhlcPeriod.M1, from, to, limit);
+            Assertions.assertEquals(4, result.size());
+            for (long instrumentId = 1; instrumentId <= 4; instrumentId++) {
+                Assertions.assertEquals(ohlcStorage.getHistorical(instrumentId, OhlcPeriod.M1, from, to, limit), result.get(instrumentId));
+            }
+        }
+        var limited = ohlcStorage.getHistorical(Set.of(2L, 4L), OhlcPeriod.M1, from, to, 3);
+        Assertions.assertEquals(List.of(createOhlc(2, 10, 30), createOhlc(2, 9, 29), createOhlc(2, 8, 28)), limited.get(2L));
+        Assertions.assertTrue(limited.get(4L).isEmpty());
+    }
+
+    @Test
+    public void shouldReplaceRange() {
+        for (int i = 0; i < 10; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.stop();
+
+        ohlcStorage.replace(1, OhlcPeriod.M1, 2 * OhlcPeriod.M1.getMillis(), 8 * OhlcPeriod.M1.getMillis(),
+                List.of(createOhlc(1, 3, 33), createOhlc(1, 5, 55)));
+
+        var stored = ohlcDao.getHistorical(1, OhlcPeriod.M1);
+        Assertions.assertEquals(List.of(createOhlc(1, 9, 9), createOhlc(1, 8, 8), createOhlc(1, 5, 55),
+                createOhlc(1, 3, 33), createOhlc(1, 1, 1), createOhlc(1, 0, 0)), stored);
+    }
+
+    @Test
+    public void shouldPageBackwardsWithCursor() {
+        for (int i = 0; i < 25; i++) {
+            ohlcStorage.store(createOhlc(1, i, i));
+        }
+        ohlcStorage.stop();
+
+        long cursor = Long.MAX_VALUE;
+        int pages = 0;
+        int expectedMinute = 24;
+        while (true) {
+            var page = ohlcDao.getHistorical(1, OhlcPeriod.M1, Long.MIN_VALUE, cursor, 10);
+            for (Ohlc ohlc : page) {
+                Assertions.assertEquals(createOhlc(1, expectedMinute, expectedMinute), ohlc);
+                expectedMinute--;
+            }
+            pages++;
+            if (page.size() < 10) {
+                break;
+            }
+            cursor = page.get(page.size() - 1).getStartPeriod();
+        }
+        Assertions.assertEquals(3, pages);
+        Assertions.assertEquals(-1, expectedMinute);
+    }
+
+    private void awaitBacklog(int backlog) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (ohlcStorage.getBacklog() != backlog && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(backlog, ohlcStorage.getBacklog());
+    }
+
+    private Ohlc createOhlc(long instrumentId, int minute, double closePrice) {
+        return Ohlc.builder()
+                .instrumentId(instrumentId)
+                .period(OhlcPeriod.M1)
+                .startPeriod(minute * OhlcPeriod.M1.getMillis())
+                .openPrice(1)
+                .highPrice(100)
+                .lowPrice(0.5)
+                .closePrice(closePrice)
+                .build();
+    }
+}
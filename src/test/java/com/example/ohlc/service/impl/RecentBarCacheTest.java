@@ -0,0 +1,123 @@
+package com.example.ohlc.service.impl;
+
+import com.example.ohlc.dto.OhlcPeriod;
+import com.example.ohlc.entity.Ohlc;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public class RecentBarCacheTest {
+    private static final long MINUTE = OhlcPeriod.M1.getMillis();
+
+    private final MutableClock clock = new MutableClock();
+
+    @Test
+    public void shouldKeepLastBarsOfSeries() {
+        var cache = new RecentBarCache(40, 10, 60_000, clock);
+        for (int i = 0; i < 100; i++) {
+            cache.add(createOhlc(1, i));
+        }
+        var result = cache.get(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 40);
+        Assertions.assertEquals(40, result.size());
+        Assertions.assertEquals(createOhlc(1, 99), result.get(0));
+        Assertions.assertEquals(createOhlc(1, 60), result.get(39));
+
+        var range = cache.get(1, OhlcPeriod.M1, 70 * MINUTE, 75 * MINUTE, 40);
+        Assertions.assertEquals(5, range.size());
+        Assertions.assertEquals(createOhlc(1, 74), range.get(0));
+        Assertions.assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void shouldMissRangeOlderThanCached() {
+        var cache = new RecentBarCache(40, 10, 60_000, clock);
+        for (int i = 0; i < 100; i++) {
+            cache.add(createOhlc(1, i));
+        }
+        Assertions.assertNull(cache.get(1, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 41));
+        Assertions.assertNull(cache.get(1, OhlcPeriod.M1, 10 * MINUTE, 20 * MINUTE, 10));
+        Assertions.assertNull(cache.get(2, OhlcPeriod.M1, Long.MIN_VALUE, Long.MAX_VALUE, 1));
+        Assertions.assertNull(cache.get(1, OhlcPeriod.H1, Long.MIN_VALUE, Long.MAX_VALUE, 1));
+        Assertions.assertEquals(0.0, cache.getHitRatio());
+    }
+
+    @Test
+    public void shouldReplaceBarWithSameStart() {
+        var cache = new RecentBarCache(40, 10, 60_000, clock);
+        cache.add(createOhlc(1, 0));
+        cache.add(createOhlc(1, 1));
+        var amended = createOhlc(1, 0);
+        amended.setClosePrice(7);
+        cache.add(amended);
+        var result = cache.get(1, OhlcPeriod.M1, 0, Long.MAX_VALUE, 10);
+        Assertions.assertEquals(2, result.size());
+        Assertions.assertEquals(amended, result.get(1));
+    }
+
+    @Test
+    public void shouldLimitSeriesAndEvictIdle() {
+        var cache = new RecentBarCache(40, 2, 1_000, clock);
+        cache.add(createOhlc(1, 0));
+        cache.add(createOhlc(2, 0));
+        cache.add(createOhlc(3, 0));
+        Assertions.assertEquals(2, cache.getSeriesCount());
+        Assertions.assertNull(cache.get(3, OhlcPeriod.M1, 0, Long.MAX_VALUE, 1));
+
+        clock.millis = 1_000;
+        Assertions.assertNotNull(cache.get(1, OhlcPeriod.M1, 0, Long.MAX_VALUE, 1));
+        clock.millis = 1_500;
+        cache.evictIdle();
+        Assertions.assertEquals(1, cache.getSeriesCount());
+        Assertions.assertNull(cache.get(2, OhlcPeriod.M1, 0, Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    public void shouldMissAfterClear() {
+        var cache = new RecentBarCache(40, 10, 60_000, clock);
+        cache.add(createOhlc(1, 0));
+        cache.add(createOhlc(2, 0));
+        cache.clear();
+        Assertions.assertEquals(0, cache.getSeriesCount());
+        Assertions.assertNull(cache.get(1, OhlcPeriod.M1, 0, Long.MAX_VALUE, 1));
+    }
+
+    private Ohlc createOhlc(long instrumentId, int minute) {
+        return Ohlc.builder()
+                .instrumentId(instrumentId)
+                .period(OhlcPeriod.M1)
+                .startPeriod(minute * MINUTE)
+                .openPrice(minute)
+                .highPrice(minute + 1)
+                .lowPrice(minute - 1)
+                .closePrice(minute + 0.5)
+                .build();
+    }
+
+    private static final class MutableClock extends Clock {
+        private long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}